@@ -0,0 +1,60 @@
+package protocol;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of ephemeral X25519 key generation and key agreement, and of taking a pre-generated
+ * pair from an EphemeralKeyPool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandshakeBenchmark {
+    private KeyPair ours;
+    private KeyPair theirs;
+    private byte[] theirsRaw;
+    private EphemeralKeyPool pool;
+
+    @Setup
+    public void setup() throws Exception {
+        ours = Handshake.generateEphemeralKeyPair();
+        theirs = Handshake.generateEphemeralKeyPair();
+        theirsRaw = Handshake.rawPublicKey(theirs.getPublic());
+        pool = new EphemeralKeyPool(1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public KeyPair generateEphemeralKeyPair() throws Exception {
+        return Handshake.generateEphemeralKeyPair();
+    }
+
+    @Benchmark
+    public byte[] computeSharedSecret() throws Exception {
+        return Handshake.computeSharedSecret(ours.getPrivate(), theirs.getPublic());
+    }
+
+    /**
+     * Mostly misses once the refill thread falls behind, so compare with generateEphemeralKeyPair
+     * under bursty rather than sustained load.
+     */
+    @Benchmark
+    public KeyPair takeFromPool() throws Exception {
+        return pool.take();
+    }
+
+    @Benchmark
+    public Object decodeRawPublicKey() throws Exception {
+        return Handshake.publicKeyFromRaw(theirsRaw);
+    }
+}
@@ -0,0 +1,98 @@
+package protocol;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end send/receive round trip over a loopback socket pair, and a burst of sends
+ * compared across immediate flushing, a batching flush policy and {@link PeerChannel#sendAll}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PeerChannelBenchmark {
+    static final int BURST = 16;
+
+    @Param({"BINARY", "TEXT"})
+    WireFormat format;
+
+    @Param({"64", "4096"})
+    int payloadSize;
+
+    private PeerChannel sender;
+    private PeerChannel receiver;
+    private String payload;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "bench".getBytes());
+        try (ServerSocket server = new ServerSocket(0)) {
+            Socket client = new Socket("127.0.0.1", server.getLocalPort());
+            Socket accepted = server.accept();
+            client.setTcpNoDelay(true);
+            accepted.setTcpNoDelay(true);
+            sender = new PeerChannel(client, key, format);
+            receiver = new PeerChannel(accepted, key, format);
+        }
+        payload = "x".repeat(payloadSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public ProtocolMessage sendAndReceive() throws Exception {
+        sender.send("chat", payload);
+        return receiver.receive();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public ProtocolMessage sendBurst(Burst burst) throws Exception {
+        if (burst.mode == SendMode.SEND_ALL) {
+            sender.sendAll(burst.messages);
+        } else {
+            for (ProtocolMessage msg : burst.messages) {
+                sender.send(msg.getType(), msg.getPayload());
+            }
+            sender.flush();
+        }
+        ProtocolMessage last = null;
+        for (int i = 0; i < BURST; i++) {
+            last = receiver.receive();
+        }
+        return last;
+    }
+
+    public enum SendMode { IMMEDIATE, BATCHED, SEND_ALL }
+
+    @State(Scope.Thread)
+    public static class Burst {
+        @Param({"IMMEDIATE", "BATCHED", "SEND_ALL"})
+        SendMode mode;
+
+        List<ProtocolMessage> messages;
+
+        @Setup(Level.Trial)
+        public void setup(PeerChannelBenchmark bench) throws Exception {
+            bench.sender.setFlushPolicy(mode == SendMode.BATCHED
+                    ? new FlushPolicy(BURST, 64 * 1024, 0) : FlushPolicy.IMMEDIATE);
+            messages = new ArrayList<>();
+            for (int i = 0; i < BURST; i++) {
+                messages.add(new ProtocolMessage("chat", bench.payload, 0));
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package protocol;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Send/receive round trip over a loopback socket pair, with Strings and ProtocolMessages
+ * versus pooled buffers and a reused Frame. Run with {@code -prof gc} to compare the
+ * allocation per message ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PooledMessageBenchmark {
+    @Param({"64", "4096"})
+    int payloadSize;
+
+    @Param({"AES_256_GCM", "CHACHA20_POLY1305"})
+    CipherSuite suite;
+
+    private final BufferPool pool = new BufferPool();
+    private final Frame frame = new Frame();
+    private PeerChannel sender;
+    private PeerChannel receiver;
+    private String payload;
+    private ByteBuffer plaintext;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "bench".getBytes());
+        try (ServerSocket server = new ServerSocket(0)) {
+            Socket client = new Socket("127.0.0.1", server.getLocalPort());
+            Socket accepted = server.accept();
+            client.setTcpNoDelay(true);
+            accepted.setTcpNoDelay(true);
+            sender = new PeerChannel(client, key, suite, WireFormat.BINARY);
+            receiver = new PeerChannel(accepted, key, suite, WireFormat.BINARY);
+        }
+        payload = "x".repeat(payloadSize);
+        plaintext = pool.acquire(payloadSize);
+        while (plaintext.hasRemaining()) plaintext.put((byte) 'x');
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.release(plaintext);
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public ProtocolMessage strings() throws Exception {
+        sender.send("chat", payload);
+        return receiver.receive();
+    }
+
+    @Benchmark
+    public int pooledBuffers() throws Exception {
+        plaintext.rewind();
+        sender.send("chat", plaintext);
+        receiver.receive(frame);
+        return frame.getPayload().remaining();
+    }
+}
@@ -0,0 +1,63 @@
+package protocol;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Framing cost of the legacy text format versus the binary FrameCodec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolMessageBenchmark {
+    @Param({"64", "1024"})
+    int payloadSize;
+
+    private ProtocolMessage message;
+    private String serialized;
+    private byte[] payload;
+    private ByteBuffer encodeBuffer;
+    private ByteBuffer encoded;
+    private final Frame frame = new Frame();
+
+    @Setup
+    public void setup() {
+        payload = new byte[payloadSize];
+        message = new ProtocolMessage("chat", Base64.getEncoder().encodeToString(payload), 123456);
+        serialized = message.serialize();
+        encodeBuffer = ByteBuffer.allocate(FrameCodec.encodedLength("chat", 123456, payloadSize));
+        encoded = ByteBuffer.allocate(encodeBuffer.capacity());
+        FrameCodec.encode(encoded, "chat", 123456, payload, 0, payload.length);
+        encoded.flip();
+    }
+
+    @Benchmark
+    public String textSerialize() {
+        return message.serialize();
+    }
+
+    @Benchmark
+    public ProtocolMessage textDeserialize() {
+        return ProtocolMessage.deserialize(serialized);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncode() {
+        encodeBuffer.clear();
+        FrameCodec.encode(encodeBuffer, "chat", 123456, payload, 0, payload.length);
+        return encodeBuffer;
+    }
+
+    @Benchmark
+    public Frame binaryDecode() {
+        encoded.rewind();
+        FrameCodec.decode(encoded, frame);
+        return frame;
+    }
+}
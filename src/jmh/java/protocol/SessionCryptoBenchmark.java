@@ -0,0 +1,64 @@
+package protocol;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypt/decrypt cost across payload sizes, for the one-shot static helpers and for a
+ * per-session SessionCrypto instance with each cipher suite. The static helpers are always
+ * AES-GCM and ignore the suite parameter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionCryptoBenchmark {
+    @Param({"16", "256", "4096", "65536"})
+    int payloadSize;
+
+    @Param({"AES_256_GCM", "CHACHA20_POLY1305"})
+    CipherSuite suite;
+
+    private SecretKey key;
+    private SessionCrypto crypto;
+    private byte[] plaintext;
+    private byte[] sealed;
+    private byte[] staticSealed;
+    private byte[] out;
+    private long counter;
+
+    @Setup
+    public void setup() throws Exception {
+        key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "bench".getBytes());
+        crypto = new SessionCrypto(key, suite);
+        plaintext = new byte[payloadSize];
+        sealed = crypto.encrypt(0, plaintext);
+        staticSealed = SessionCrypto.encrypt(plaintext, key);
+        out = new byte[SessionCrypto.ciphertextLength(payloadSize)];
+        counter = 1;
+    }
+
+    @Benchmark
+    public byte[] staticEncrypt() throws Exception {
+        return SessionCrypto.encrypt(plaintext, key);
+    }
+
+    @Benchmark
+    public byte[] staticDecrypt() throws Exception {
+        return SessionCrypto.decrypt(staticSealed, key);
+    }
+
+    @Benchmark
+    public int sessionEncrypt() throws Exception {
+        return crypto.encrypt(counter++, plaintext, 0, plaintext.length, out, 0);
+    }
+
+    @Benchmark
+    public int sessionDecrypt() throws Exception {
+        return crypto.decrypt(0, sealed, 0, sealed.length, out, 0);
+    }
+}
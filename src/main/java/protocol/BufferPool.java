@@ -0,0 +1,209 @@
+package protocol;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool hands out reusable direct ByteBuffers, so the send and receive paths do not
+ * allocate a buffer per message. Direct buffers also let NIO channels read and write without
+ * copying through a temporary buffer of their own.
+ *
+ * Buffers come in power-of-two size classes from {@link #MIN_CLASS_SIZE} to
+ * {@link #MAX_CLASS_SIZE}; each class keeps up to a fixed number of free buffers. Larger
+ * requests get a buffer of their own that is dropped on release.
+ *
+ * With leak detection on, every buffer handed out is tracked until it is released: releasing
+ * a buffer twice (or one that did not come from the pool) throws, and a buffer that is
+ * garbage collected without being released is counted in {@link #getLeakCount()} and
+ * remembered with the stack trace of the code that acquired it. Detection costs an
+ * allocation per acquire, so it is meant for tests and debugging; it is on by default when
+ * the system property {@code protocol.bufferPool.leakDetection} is {@code true}.
+ *
+ * Thread-safe; a buffer may be released by a different thread than the one that acquired it.
+ */
+public class BufferPool {
+    /** Smallest size class. */
+    public static final int MIN_CLASS_SIZE = 512;
+    /** Largest size class; bigger buffers are not pooled. */
+    public static final int MAX_CLASS_SIZE = 1024 * 1024;
+    /** Default number of free buffers kept per size class. */
+    public static final int DEFAULT_MAX_FREE_PER_CLASS = 64;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_CLASS_SIZE) - MIN_SHIFT + 1;
+    private static final BufferPool DEFAULT =
+            new BufferPool(DEFAULT_MAX_FREE_PER_CLASS, Boolean.getBoolean("protocol.bufferPool.leakDetection"));
+
+    private final BlockingQueue<ByteBuffer>[] free;
+    private final AtomicLong allocated = new AtomicLong();
+    // Leak detection only
+    private final boolean leakDetection;
+    private final Cleaner cleaner;
+    private final Map<Integer, List<Lease>> leases;
+    private final AtomicLong leakCount = new AtomicLong();
+    private volatile Throwable lastLeak;
+
+    public BufferPool() {
+        this(DEFAULT_MAX_FREE_PER_CLASS, false);
+    }
+
+    /**
+     * @param maxFreePerClass number of released buffers kept for reuse in each size class
+     * @param leakDetection   whether to track buffers until they are released
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxFreePerClass, boolean leakDetection) {
+        if (maxFreePerClass < 1) throw new IllegalArgumentException("maxFreePerClass must be at least 1");
+        this.free = new BlockingQueue[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            free[i] = new ArrayBlockingQueue<>(maxFreePerClass);
+        }
+        this.leakDetection = leakDetection;
+        this.cleaner = leakDetection ? Cleaner.create(Threads.daemonFactory("buffer-pool-cleaner")) : null;
+        this.leases = leakDetection ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Returns the pool shared by the protocol's own hot paths.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    public boolean isLeakDetectionEnabled() {
+        return leakDetection;
+    }
+
+    /**
+     * Returns a cleared direct buffer with at least size bytes of capacity and its limit set
+     * to size. Release it with {@link #release(ByteBuffer)} once it is no longer used.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size < 0) throw new IllegalArgumentException("Negative buffer size: " + size);
+        int index = classIndex(size);
+        ByteBuffer buf = index < 0 ? null : free[index].poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(index < 0 ? size : MIN_CLASS_SIZE << index);
+            allocated.incrementAndGet();
+        }
+        buf.clear().limit(size);
+        if (leakDetection) track(buf);
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not touch it afterwards.
+     */
+    public void release(ByteBuffer buf) {
+        if (leakDetection) untrack(buf);
+        int index = classIndex(buf.capacity());
+        if (index >= 0 && buf.isDirect() && buf.capacity() == MIN_CLASS_SIZE << index) {
+            free[index].offer(buf);
+        }
+    }
+
+    /**
+     * Returns the number of buffers the pool has allocated since it was created. Once the
+     * pool is warm this stops growing.
+     */
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns the number of free buffers held for reuse.
+     */
+    public int getFreeCount() {
+        int n = 0;
+        for (BlockingQueue<ByteBuffer> queue : free) {
+            n += queue.size();
+        }
+        return n;
+    }
+
+    /**
+     * Returns the number of buffers that were garbage collected without being released.
+     * Always 0 without leak detection.
+     */
+    public long getLeakCount() {
+        return leakCount.get();
+    }
+
+    /**
+     * Returns where the most recently detected leaked buffer was acquired, or null.
+     */
+    public Throwable getLastLeak() {
+        return lastLeak;
+    }
+
+    private static int classIndex(int size) {
+        if (size > MAX_CLASS_SIZE) return -1;
+        if (size <= MIN_CLASS_SIZE) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private void track(ByteBuffer buf) {
+        int hash = System.identityHashCode(buf);
+        Lease lease = new Lease(this, buf, hash);
+        leases.computeIfAbsent(hash, h -> new CopyOnWriteArrayList<>()).add(lease);
+        lease.cleanable = cleaner.register(buf, lease);
+    }
+
+    private void untrack(ByteBuffer buf) {
+        int hash = System.identityHashCode(buf);
+        List<Lease> list = leases.get(hash);
+        if (list != null) {
+            for (Lease lease : list) {
+                if (lease.buffer.get() == buf) {
+                    lease.released = true;
+                    remove(lease);
+                    lease.cleanable.clean();
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("Buffer was already released or did not come from this pool");
+    }
+
+    private void remove(Lease lease) {
+        leases.computeIfPresent(lease.hash, (h, list) -> {
+            list.remove(lease);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    /**
+     * One acquired buffer, tracked until it is released. Runs when the buffer becomes
+     * unreachable, so it must not hold the buffer strongly.
+     */
+    private static final class Lease implements Runnable {
+        final BufferPool pool;
+        final WeakReference<ByteBuffer> buffer;
+        final int hash;
+        final Throwable site = new Throwable("Buffer acquired here was never released");
+        volatile boolean released;
+        Cleaner.Cleanable cleanable;
+
+        Lease(BufferPool pool, ByteBuffer buffer, int hash) {
+            this.pool = pool;
+            this.buffer = new WeakReference<>(buffer);
+            this.hash = hash;
+        }
+
+        @Override
+        public void run() {
+            if (released) return;
+            pool.remove(this);
+            pool.leakCount.incrementAndGet();
+            pool.lastLeak = site;
+        }
+    }
+}
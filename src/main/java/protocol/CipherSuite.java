@@ -0,0 +1,63 @@
+package protocol;
+
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.AEADCipher;
+import org.bouncycastle.crypto.modes.ChaCha20Poly1305;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+
+import java.util.List;
+
+/**
+ * CipherSuite selects the AEAD cipher that protects a session. Both suites take a 256-bit
+ * key, a 96-bit nonce and a 128-bit tag, so the message layout and
+ * {@link SessionCrypto#OVERHEAD} are the same whichever is negotiated.
+ *
+ * ChaCha20-Poly1305 is usually the faster choice on hosts without AES instructions, such as
+ * many ARM boards, since it needs no table lookups or carry-less multiplication.
+ */
+public enum CipherSuite {
+    AES_256_GCM(1, "AES-256-GCM"),
+    CHACHA20_POLY1305(2, "ChaCha20-Poly1305");
+
+    private final int id;
+    private final String displayName;
+
+    CipherSuite(int id, String displayName) {
+        this.id = id;
+        this.displayName = displayName;
+    }
+
+    /**
+     * Returns the identifier sent in the handshake.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the suite with the given handshake identifier, or null if it is unknown.
+     */
+    public static CipherSuite fromId(int id) {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id) return suite;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the preference order used when none is configured: AES-256-GCM first, then
+     * ChaCha20-Poly1305.
+     */
+    public static List<CipherSuite> defaults() {
+        return List.of(AES_256_GCM, CHACHA20_POLY1305);
+    }
+
+    AEADCipher newCipher() {
+        return this == AES_256_GCM ? GCMBlockCipher.newInstance(AESEngine.newInstance()) : new ChaCha20Poly1305();
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
@@ -0,0 +1,59 @@
+package protocol;
+
+import java.util.List;
+
+/**
+ * ControlReply is one complete reply (or asynchronous event) from the Tor ControlPort.
+ *
+ * Each line of a multi-line reply is kept without its status prefix; data blocks sent with
+ * "NNN+" are appended to their line, separated by newlines and dot-unstuffed.
+ */
+public class ControlReply {
+    private final int status;
+    private final List<String> lines;
+
+    public ControlReply(int status, List<String> lines) {
+        this.status = status;
+        this.lines = List.copyOf(lines);
+    }
+
+    /**
+     * Returns the three-digit status code, e.g. 250, 552, or 650 for events.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    public boolean isOk() {
+        return status == 250;
+    }
+
+    /**
+     * Returns the event type of an asynchronous (650) reply, e.g. "STATUS_CLIENT".
+     */
+    public String getEventType() {
+        String first = lines.isEmpty() ? "" : lines.get(0);
+        int space = first.indexOf(' ');
+        return space < 0 ? first : first.substring(0, space);
+    }
+
+    /**
+     * Returns the value of the first "key=value" line for key, or null.
+     */
+    public String get(String key) {
+        String prefix = key + "=";
+        for (String line : lines) {
+            if (line.startsWith(prefix)) return line.substring(prefix.length());
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return status + " " + String.join(" | ", lines);
+    }
+}
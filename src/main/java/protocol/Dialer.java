@@ -0,0 +1,15 @@
+package protocol;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Dialer opens a raw connection to a peer address, e.g. through Tor's SOCKS port for an
+ * onion address. Used by {@link PeerConnectionPool}; tests can dial loopback sockets instead.
+ */
+public interface Dialer {
+    /**
+     * Returns a connected socket to the address. Must not run the handshake.
+     */
+    Socket dial(String address) throws IOException;
+}
@@ -0,0 +1,81 @@
+package protocol;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EphemeralKeyPool keeps a supply of pre-generated X25519 key pairs for {@link Handshake}.
+ *
+ * A background thread refills the pool whenever a pair is taken, so under a burst of
+ * handshakes (e.g. every contact reconnecting after a Tor restart) key generation happens
+ * ahead of time instead of on the connection's critical path. When the pool is empty a
+ * pair is generated inline, so {@link #take()} never waits for the refill thread.
+ *
+ * Each pair is handed out exactly once. Instances are thread-safe.
+ */
+public class EphemeralKeyPool implements Closeable {
+    private final BlockingQueue<KeyPair> pairs;
+    private final Thread filler;
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool holding up to capacity key pairs and starts filling it.
+     */
+    public EphemeralKeyPool(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+        this.pairs = new ArrayBlockingQueue<>(capacity);
+        this.filler = Threads.daemonFactory("ephemeral-key-pool").newThread(this::fill);
+        filler.start();
+    }
+
+    /**
+     * Returns an unused key pair, generating one inline if the pool is empty.
+     */
+    public KeyPair take() throws GeneralSecurityException {
+        KeyPair pair = pairs.poll();
+        if (pair != null) return pair;
+        misses.incrementAndGet();
+        return Handshake.generateEphemeralKeyPair();
+    }
+
+    /**
+     * Returns the number of key pairs ready to be taken.
+     */
+    public int getAvailable() {
+        return pairs.size();
+    }
+
+    /**
+     * Returns how many times {@link #take()} found the pool empty.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private void fill() {
+        try {
+            while (!closed) {
+                pairs.put(Handshake.generateEphemeralKeyPair());
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        } catch (GeneralSecurityException e) {
+            // Provider misconfigured; take() will report the same error inline
+        }
+    }
+
+    /**
+     * Stops the refill thread and discards the remaining key pairs.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        filler.interrupt();
+        pairs.clear();
+    }
+}
@@ -0,0 +1,253 @@
+package protocol;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * FileTransfer streams a file over a binary PeerChannel in constant memory, and can resume
+ * an interrupted transfer from the last chunk the receiver acknowledged.
+ *
+ * Protocol:
+ * <ol>
+ *   <li>the sender offers the file: {@code file-offer} "id,size,chunkSize,salt";</li>
+ *   <li>the receiver replies {@code file-accept} "id,firstChunk", where firstChunk is the
+ *       number of chunks it already holds from an earlier attempt;</li>
+ *   <li>the sender streams the remaining chunks as sealed {@code file-chunk} frames;</li>
+ *   <li>the receiver syncs the file to disk every 16 MiB and after the last chunk, and each
+ *       time reports its progress with {@code file-ack} "id,chunks".</li>
+ * </ol>
+ *
+ * Every chunk is encrypted on its own with AES-GCM under a transfer key derived from the
+ * session key and a fresh salt per attempt. The chunk index is the nonce counter, and the
+ * last chunk has {@link #FINAL_CHUNK} set in it, so chunks cannot be reordered, dropped
+ * from the end, or spliced in from another transfer without failing authentication.
+ *
+ * The sender reads the file through memory-mapped segments and the receiver writes each
+ * chunk straight to its position in the file, so neither side holds more than a chunk in
+ * heap memory.
+ */
+public class FileTransfer {
+    public static final String OFFER = "file-offer";
+    public static final String ACCEPT = "file-accept";
+    public static final String CHUNK = "file-chunk";
+    public static final String ACK = "file-ack";
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    /** Set in the counter of the last chunk of a file. */
+    public static final long FINAL_CHUNK = 1L << 62;
+
+    private static final long MAP_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final long SYNC_INTERVAL_BYTES = 16L * 1024 * 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path file;
+    private final String transferId;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile long acknowledgedChunks;
+
+    /**
+     * Creates a transfer of the given file with a new random transfer id.
+     */
+    public FileTransfer(Path file) {
+        this(file, newTransferId());
+    }
+
+    /**
+     * Creates a transfer with a known id, to resume an earlier attempt.
+     */
+    public FileTransfer(Path file, String transferId) {
+        if (transferId.isEmpty() || transferId.contains(",")) {
+            throw new IllegalArgumentException("Invalid transfer id: " + transferId);
+        }
+        this.file = file;
+        this.transferId = transferId;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public String getTransferId() {
+        return transferId;
+    }
+
+    /**
+     * Returns the number of chunks the receiver has reported as written to disk.
+     */
+    public long getAcknowledgedChunks() {
+        return acknowledgedChunks;
+    }
+
+    /**
+     * Sends the file and blocks until the receiver acknowledges the last chunk. No other
+     * thread may receive on the channel meanwhile. Returns the index of the first chunk
+     * sent, which is 0 unless the receiver resumed an earlier attempt.
+     */
+    public long send(PeerChannel channel) throws Exception {
+        long size = Files.size(file);
+        long chunks = chunkCount(size, chunkSize);
+        byte[] salt = new byte[16];
+        RANDOM.nextBytes(salt);
+        channel.send(OFFER, transferId + "," + size + "," + chunkSize + "," + Base64.getEncoder().encodeToString(salt));
+
+        List<String> accept = expect(channel, ACCEPT, transferId);
+        long first = Long.parseLong(accept.get(1));
+        if (first < 0 || first > chunks) throw new IOException("Invalid resume point: " + first);
+        acknowledgedChunks = first;
+
+        SessionCrypto crypto = new SessionCrypto(transferKey(channel, salt, transferId), channel.getCipherSuite());
+        ByteBuffer sealed = ByteBuffer.allocate(SessionCrypto.ciphertextLength(chunkSize));
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer segment = null;
+            long segmentStart = 0;
+            for (long index = first; index < chunks; index++) {
+                long offset = index * chunkSize;
+                int length = (int) Math.min(chunkSize, size - offset);
+                if (segment == null || offset + length > segmentStart + segment.capacity()) {
+                    segmentStart = offset;
+                    segment = in.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_SEGMENT_SIZE, size - offset));
+                }
+                ByteBuffer chunk = segment.duplicate();
+                chunk.position((int) (offset - segmentStart)).limit(chunk.position() + length);
+                long counter = index == chunks - 1 ? index | FINAL_CHUNK : index;
+                sealed.clear();
+                crypto.encrypt(counter, chunk, sealed);
+                sealed.flip();
+                channel.sendSealed(CHUNK, counter, sealed);
+            }
+        }
+        channel.flush();
+
+        while (acknowledgedChunks < chunks) {
+            acknowledgedChunks = Long.parseLong(expect(channel, ACK, transferId).get(1));
+        }
+        return first;
+    }
+
+    /**
+     * Accepts an offer received on the channel and writes the file to target, blocking until
+     * the last chunk is on disk. No other thread may receive on the channel meanwhile.
+     *
+     * Data is written to target + ".part" and moved into place when complete. Progress is
+     * recorded in target + ".part.ack", so a later offer with the same transfer id resumes
+     * after the last acknowledged chunk. Returns the size of the file.
+     */
+    public static long receive(PeerChannel channel, ProtocolMessage offer, Path target) throws Exception {
+        if (!OFFER.equals(offer.getType())) throw new IllegalArgumentException("Not a file offer: " + offer.getType());
+        List<String> fields = split(offer.getPayload(), 4);
+        String id = fields.get(0);
+        long size = Long.parseLong(fields.get(1));
+        int chunkSize = Integer.parseInt(fields.get(2));
+        byte[] salt = Base64.getDecoder().decode(fields.get(3));
+        if (size < 0 || chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid file offer: " + offer.getPayload());
+        }
+        long chunks = chunkCount(size, chunkSize);
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        Path progress = target.resolveSibling(target.getFileName() + ".part.ack");
+        String resumeKey = id + "," + size + "," + chunkSize;
+
+        long first = 0;
+        if (Files.exists(progress) && Files.exists(part)) {
+            List<String> saved = split(Files.readString(progress, StandardCharsets.US_ASCII).trim(), 4);
+            if (resumeKey.equals(saved.get(0) + "," + saved.get(1) + "," + saved.get(2))) {
+                first = Math.min(Long.parseLong(saved.get(3)), chunks);
+            }
+        }
+        long syncEvery = Math.max(1, SYNC_INTERVAL_BYTES / chunkSize);
+
+        try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Anything past the acknowledged chunks may not have reached the disk intact
+            out.truncate(first * chunkSize);
+            channel.send(ACCEPT, id + "," + first);
+            SessionCrypto crypto = new SessionCrypto(transferKey(channel, salt, id), channel.getCipherSuite());
+            long expected = first;
+            while (expected < chunks) {
+                ProtocolMessage msg = channel.receive();
+                if (msg == null) throw new IOException("Connection closed during file transfer");
+                if (!msg.isSealed() || !CHUNK.equals(msg.getType())) {
+                    throw new IOException("Unexpected message during file transfer: " + msg.getType());
+                }
+                long counter = msg.getCounter();
+                long index = counter & ~FINAL_CHUNK;
+                boolean last = (counter & FINAL_CHUNK) != 0;
+                if (index != expected || last != (index == chunks - 1)) {
+                    throw new IOException("Unexpected file chunk " + index + (last ? " (final)" : ""));
+                }
+                // The nonce carries the counter, so the index and final marker are authenticated
+                byte[] body = msg.getBody();
+                int n = crypto.decrypt(counter, body, 0, body.length, body, 0);
+                long offset = index * chunkSize;
+                if (n != Math.min(chunkSize, size - offset)) throw new IOException("Wrong length for file chunk " + index);
+                ByteBuffer data = ByteBuffer.wrap(body, 0, n);
+                while (data.hasRemaining()) {
+                    offset += out.write(data, offset);
+                }
+                expected++;
+                if (expected < chunks && (expected - first) % syncEvery == 0) {
+                    out.force(false);
+                    Files.writeString(progress, resumeKey + "," + expected, StandardCharsets.US_ASCII);
+                    channel.send(ACK, id + "," + expected);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(progress);
+        channel.send(ACK, id + "," + chunks);
+        channel.flush();
+        return size;
+    }
+
+    /**
+     * Returns the number of chunks in a file. An empty file is sent as one empty chunk.
+     */
+    static long chunkCount(long size, int chunkSize) {
+        return Math.max(1, (size + chunkSize - 1) / chunkSize);
+    }
+
+    private static SecretKey transferKey(PeerChannel channel, byte[] salt, String transferId) {
+        return channel.deriveKey(salt, ("cwtch-file-v1:" + transferId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> expect(PeerChannel channel, String type, String transferId) throws Exception {
+        ProtocolMessage msg = channel.receive();
+        if (msg == null) throw new IOException("Connection closed during file transfer");
+        if (!type.equals(msg.getType()) || msg.isSealed()) {
+            throw new IOException("Expected " + type + " but received " + msg.getType());
+        }
+        List<String> fields = split(msg.getPayload(), 2);
+        if (!transferId.equals(fields.get(0))) throw new IOException("Reply for another transfer: " + fields.get(0));
+        return fields;
+    }
+
+    private static List<String> split(String payload, int fields) throws IOException {
+        String[] parts = payload.split(",", fields);
+        if (parts.length != fields) throw new IOException("Malformed file transfer message: " + payload);
+        return List.of(parts);
+    }
+
+    private static String newTransferId() {
+        byte[] id = new byte[12];
+        RANDOM.nextBytes(id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+    }
+}
@@ -0,0 +1,53 @@
+package protocol;
+
+/**
+ * FlushPolicy decides when a PeerChannel writes buffered messages to the socket.
+ *
+ * A batch is flushed as soon as any limit is reached: it holds maxMessages messages, it
+ * holds at least maxBytes bytes, or its first message has waited maxLingerMicros. A limit of
+ * zero is disabled. Without a linger limit, a partly filled batch is only written by
+ * {@link PeerChannel#flush()} or when the channel is closed.
+ */
+public final class FlushPolicy {
+    /** Write every message as soon as it is sent (the default). */
+    public static final FlushPolicy IMMEDIATE = new FlushPolicy(1, 0, 0);
+
+    private final int maxMessages;
+    private final int maxBytes;
+    private final long maxLingerMicros;
+
+    public FlushPolicy(int maxMessages, int maxBytes, long maxLingerMicros) {
+        if (maxMessages < 0 || maxBytes < 0 || maxLingerMicros < 0) {
+            throw new IllegalArgumentException("Flush limits must not be negative");
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxLingerMicros = maxLingerMicros;
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxLingerMicros() {
+        return maxLingerMicros;
+    }
+
+    /**
+     * Returns true if every message is written on its own.
+     */
+    public boolean isImmediate() {
+        return maxMessages == 1;
+    }
+
+    /**
+     * Returns true if a batch of the given size must be flushed now.
+     */
+    boolean shouldFlush(int messages, int bytes) {
+        return (maxMessages > 0 && messages >= maxMessages) || (maxBytes > 0 && bytes >= maxBytes);
+    }
+}
@@ -0,0 +1,107 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame is a decoded view of one binary frame (see {@link FrameCodec}).
+ *
+ * Instances are mutable so a reader can reuse one Frame for every message it decodes.
+ * The payload is a view of the buffer the frame was decoded from, not a copy, so it is
+ * only valid until that buffer is reused. Decoding from the same buffer again reuses the
+ * view, so a reader that reuses its Frame and buffer decodes without allocating.
+ */
+public class Frame {
+    private int version;
+    private int flags;
+    private String type;
+    private long streamId;
+    private long epoch;
+    private long counter;
+    private ByteBuffer source;
+    private ByteBuffer payload;
+    private int headerStart;
+    private int headerEnd;
+
+    /**
+     * Sets the frame's fields; the header is src[headerStart..start) and the payload
+     * src[start..end).
+     */
+    void set(int version, int flags, String type, long streamId, long epoch, long counter, ByteBuffer src,
+             int headerStart, int start, int end) {
+        this.headerStart = headerStart;
+        this.headerEnd = start;
+        this.version = version;
+        this.flags = flags;
+        this.type = type;
+        this.streamId = streamId;
+        this.epoch = epoch;
+        this.counter = counter;
+        if (source != src) {
+            source = src;
+            payload = src.duplicate();
+        }
+        payload.limit(end).position(start);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Returns true if the payload was encrypted by the application (see {@link FrameCodec#FLAG_SEALED}).
+     */
+    public boolean isSealed() {
+        return (flags & FrameCodec.FLAG_SEALED) != 0;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the stream the frame belongs to; 0 for the channel's own message sequence.
+     */
+    public long getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Returns the key epoch the payload was encrypted under; 0 for the session key itself
+     * (see {@link RekeyPolicy}).
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getCounter() {
+        return counter;
+    }
+
+    /**
+     * Returns the payload between the buffer's position and limit: the raw (encrypted)
+     * payload as decoded, or the plaintext once the frame has been opened in place (see
+     * {@link PeerChannel#receive(Frame)}). The returned buffer is a view into the source buffer.
+     */
+    public ByteBuffer getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns the index in the payload's buffer at which the encoded header, length field
+     * included, starts. The header ends where the payload starts as decoded.
+     */
+    int getHeaderStart() {
+        return headerStart;
+    }
+
+    /**
+     * Returns the length of the encoded header, length field included.
+     */
+    int getHeaderLength() {
+        return headerEnd - headerStart;
+    }
+}
@@ -0,0 +1,313 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameCodec encodes and decodes the versioned binary wire format used by PeerChannel.
+ *
+ * Frame layout (all multi-byte integers big-endian):
+ * <pre>
+ *   u32     length    number of bytes that follow this field
+ *   u8      version   currently 1
+ *   u8      flags     bit 0: sealed (see {@link #FLAG_SEALED}); bit 1: stream (see
+ *                     {@link #FLAG_STREAM}); bit 2: epoch (see {@link #FLAG_EPOCH});
+ *                     other bits must be zero
+ *   u8      type      type code; 0 means an extended type name follows
+ *   [u8 n, n bytes]   extended type name (US-ASCII), only when type == 0
+ *   varint  counter   unsigned LEB128 message counter
+ *   [varint stream]   unsigned LEB128 stream id, only when the stream flag is set
+ *   [varint epoch]    unsigned LEB128 key epoch, only when the epoch flag is set
+ *   ...     payload   raw ciphertext, the rest of the frame
+ * </pre>
+ *
+ * The payload of an ordinary frame is encrypted with the session key under the frame's counter,
+ * and the header in front of it, length field included, is authenticated as associated data.
+ * A sealed frame carries a payload the application already encrypted with a key of its own
+ * (see {@link FileTransfer}); its counter belongs to the application too.
+ *
+ * Frames without a stream id belong to stream 0, the channel's own message sequence. Other
+ * streams are logical conversations multiplexed over the channel by a
+ * {@link StreamMultiplexer}; their frames share the channel's counter sequence.
+ *
+ * Frames without an epoch are encrypted with the session key itself (epoch 0). A session that
+ * rekeys (see {@link RekeyPolicy}) names the key of each later frame by its epoch.
+ *
+ * Encoding and decoding work directly on ByteBuffers; well-known message types never
+ * go through an intermediate String.
+ */
+public final class FrameCodec {
+    public static final int VERSION = 1;
+    /** Size of the length prefix. */
+    public static final int LENGTH_FIELD_SIZE = 4;
+    /** Largest accepted value of the length field (16 MiB). */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    /** Upper bound on the header size of a frame with a well-known type. */
+    public static final int MAX_HEADER_SIZE = LENGTH_FIELD_SIZE + 3 + 10 + 10 + 10;
+
+    /** Flag: the payload was encrypted by the application and is delivered as is. */
+    public static final int FLAG_SEALED = 0x01;
+    /** Flag: a stream id follows the counter. Set by the codec for any stream other than 0. */
+    public static final int FLAG_STREAM = 0x02;
+    /** Flag: a key epoch follows. Set by the codec for any epoch other than 0. */
+    public static final int FLAG_EPOCH = 0x04;
+
+    static final int TYPE_EXTENDED = 0;
+    private static final String[] TYPE_NAMES = {null, "handshake", "chat", "group"};
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Returns the one-byte code for a message type, or 0 if the type has no code
+     * and must be sent as an extended type name.
+     */
+    public static int typeCode(String type) {
+        switch (type) {
+            case "handshake": return 1;
+            case "chat": return 2;
+            case "group": return 3;
+            default: return TYPE_EXTENDED;
+        }
+    }
+
+    /**
+     * Returns the total encoded size (including the length prefix) of a frame.
+     */
+    public static int encodedLength(String type, long counter, int payloadLength) {
+        return headerLength(type, counter) + payloadLength;
+    }
+
+    /**
+     * Returns the total encoded size (including the length prefix) of a frame on a stream.
+     */
+    public static int encodedLength(String type, long streamId, long counter, int payloadLength) {
+        return headerLength(type, streamId, counter) + payloadLength;
+    }
+
+    /**
+     * Returns the size of the header (including the length prefix) of a frame.
+     */
+    public static int headerLength(String type, long counter) {
+        return headerLength(type, 0, counter);
+    }
+
+    /**
+     * Returns the size of the header (including the length prefix) of a frame on a stream.
+     */
+    public static int headerLength(String type, long streamId, long counter) {
+        return headerLength(type, streamId, 0, counter);
+    }
+
+    /**
+     * Returns the size of the header (including the length prefix) of a frame on a stream,
+     * encrypted under the given key epoch.
+     */
+    public static int headerLength(String type, long streamId, long epoch, long counter) {
+        int n = LENGTH_FIELD_SIZE + 3 + varintLength(counter);
+        if (typeCode(type) == TYPE_EXTENDED) {
+            n += 1 + type.length();
+        }
+        if (streamId != 0) {
+            n += varintLength(streamId);
+        }
+        if (epoch != 0) {
+            n += varintLength(epoch);
+        }
+        return n;
+    }
+
+    /**
+     * Writes a complete frame into dst. The payload buffer is consumed.
+     */
+    public static void encode(ByteBuffer dst, String type, long counter, ByteBuffer payload) {
+        writeHeader(dst, type, counter, payload.remaining());
+        dst.put(payload);
+    }
+
+    /**
+     * Writes a complete frame into dst from a region of a byte array.
+     */
+    public static void encode(ByteBuffer dst, String type, long counter, byte[] payload, int offset, int length) {
+        writeHeader(dst, type, counter, length);
+        dst.put(payload, offset, length);
+    }
+
+    /**
+     * Writes only the frame header for a payload of the given length. The caller must then
+     * write exactly payloadLength bytes into dst, e.g. by encrypting straight into it.
+     */
+    public static void writeHeader(ByteBuffer dst, String type, long counter, int payloadLength) {
+        writeHeader(dst, 0, type, counter, payloadLength);
+    }
+
+    /**
+     * Writes a frame header with the given flags.
+     */
+    public static void writeHeader(ByteBuffer dst, int flags, String type, long counter, int payloadLength) {
+        writeHeader(dst, flags, type, 0, counter, payloadLength);
+    }
+
+    /**
+     * Writes a frame header for a stream. Stream 0 is written without a stream id.
+     */
+    public static void writeHeader(ByteBuffer dst, int flags, String type, long streamId, long counter,
+                                   int payloadLength) {
+        writeHeader(dst, flags, type, streamId, 0, counter, payloadLength);
+    }
+
+    /**
+     * Writes a frame header for a stream and key epoch. Epoch 0 is written without an epoch.
+     */
+    public static void writeHeader(ByteBuffer dst, int flags, String type, long streamId, long epoch, long counter,
+                                   int payloadLength) {
+        if ((flags & ~FLAG_SEALED) != 0) throw new IllegalArgumentException("Unknown frame flags: " + flags);
+        if (counter < 0) throw new IllegalArgumentException("Negative counter: " + counter);
+        if (streamId < 0) throw new IllegalArgumentException("Negative stream id: " + streamId);
+        if (epoch < 0) throw new IllegalArgumentException("Negative epoch: " + epoch);
+        if (streamId != 0) flags |= FLAG_STREAM;
+        if (epoch != 0) flags |= FLAG_EPOCH;
+        int code = typeCode(type);
+        int frameLength = headerLength(type, streamId, epoch, counter) - LENGTH_FIELD_SIZE + payloadLength;
+        if (frameLength > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Frame too large: " + frameLength);
+        }
+        if (dst.remaining() < LENGTH_FIELD_SIZE + frameLength) {
+            throw new IllegalArgumentException("Buffer too small for frame of " + frameLength + " bytes");
+        }
+        dst.putInt(frameLength);
+        dst.put((byte) VERSION);
+        dst.put((byte) flags);
+        dst.put((byte) code);
+        if (code == TYPE_EXTENDED) {
+            int n = type.length();
+            if (n == 0 || n > 255) throw new IllegalArgumentException("Invalid message type: " + type);
+            dst.put((byte) n);
+            for (int i = 0; i < n; i++) {
+                char c = type.charAt(i);
+                if (c > 0x7F) throw new IllegalArgumentException("Message type must be ASCII: " + type);
+                dst.put((byte) c);
+            }
+        }
+        putVarint(dst, counter);
+        if (streamId != 0) {
+            putVarint(dst, streamId);
+        }
+        if (epoch != 0) {
+            putVarint(dst, epoch);
+        }
+    }
+
+    /**
+     * Returns the value of the length prefix at the current position of src,
+     * or -1 if fewer than four bytes are available.
+     */
+    public static int peekLength(ByteBuffer src) {
+        if (src.remaining() < LENGTH_FIELD_SIZE) return -1;
+        int length = src.getInt(src.position());
+        if (length < 4 || length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Decodes one frame from src into frame.
+     *
+     * If src does not yet hold a complete frame, nothing is consumed and false is returned,
+     * so callers can accumulate more bytes and retry. On success src is advanced past the
+     * frame and frame's payload is a view of src.
+     */
+    public static boolean decode(ByteBuffer src, Frame frame) {
+        int length = peekLength(src);
+        if (length < 0 || src.remaining() < LENGTH_FIELD_SIZE + length) return false;
+        int start = src.position();
+        int end = start + LENGTH_FIELD_SIZE + length;
+        int p = start + LENGTH_FIELD_SIZE;
+        int version = src.get(p++) & 0xFF;
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported frame version: " + version);
+        int flags = src.get(p++) & 0xFF;
+        if ((flags & ~(FLAG_SEALED | FLAG_STREAM | FLAG_EPOCH)) != 0) throw new IllegalArgumentException("Unknown frame flags: " + flags);
+        int code = src.get(p++) & 0xFF;
+        String type;
+        if (code == TYPE_EXTENDED) {
+            if (p >= end) throw new IllegalArgumentException("Truncated frame header");
+            int n = src.get(p++) & 0xFF;
+            if (n == 0 || p + n > end) throw new IllegalArgumentException("Invalid extended type");
+            String previous = frame.getType();
+            if (previous != null && sameName(src, p, n, previous)) {
+                // A reused Frame usually sees the same type again; keep its String
+                type = previous;
+                p += n;
+            } else {
+                char[] name = new char[n];
+                for (int i = 0; i < n; i++) name[i] = (char) (src.get(p++) & 0x7F);
+                type = new String(name);
+            }
+        } else if (code < TYPE_NAMES.length) {
+            type = TYPE_NAMES[code];
+        } else {
+            throw new IllegalArgumentException("Unknown type code: " + code);
+        }
+        long counter = 0;
+        int shift = 0;
+        while (true) {
+            if (p >= end || shift > 63) throw new IllegalArgumentException("Malformed counter");
+            int b = src.get(p++);
+            counter |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            shift += 7;
+        }
+        long streamId = 0;
+        if ((flags & FLAG_STREAM) != 0) {
+            shift = 0;
+            while (true) {
+                if (p >= end || shift > 63) throw new IllegalArgumentException("Malformed stream id");
+                int b = src.get(p++);
+                streamId |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+                shift += 7;
+            }
+            if (streamId <= 0) throw new IllegalArgumentException("Invalid stream id: " + streamId);
+        }
+        long epoch = 0;
+        if ((flags & FLAG_EPOCH) != 0) {
+            shift = 0;
+            while (true) {
+                if (p >= end || shift > 63) throw new IllegalArgumentException("Malformed epoch");
+                int b = src.get(p++);
+                epoch |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+                shift += 7;
+            }
+            if (epoch <= 0) throw new IllegalArgumentException("Invalid epoch: " + epoch);
+        }
+        frame.set(version, flags, type, streamId, epoch, counter, src, start, p, end);
+        src.position(end);
+        return true;
+    }
+
+    private static boolean sameName(ByteBuffer src, int p, int n, String name) {
+        if (name.length() != n) return false;
+        for (int i = 0; i < n; i++) {
+            if ((src.get(p + i) & 0x7F) != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    static int varintLength(long value) {
+        int n = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    static void putVarint(ByteBuffer dst, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+}
@@ -0,0 +1,146 @@
+package protocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * GroupKeyring is the member side of a {@link GroupSession}: it keeps the current key of
+ * each group the member belongs to and opens the group's messages.
+ *
+ * A receive loop passes {@link GroupSession#KEY} messages to {@link #acceptKey}, and sealed
+ * {@link GroupSession#MESSAGE} and {@link OutboundQueue#MESSAGE} frames to {@link #open}.
+ * Only the latest epoch of a group is kept, and each epoch has its own replay window.
+ * Queued messages also remember how far the queue has been delivered without gaps, so a
+ * reconnect may deliver any number of them again.
+ *
+ * The keyring does not know who owns a group; callers should only accept keys arriving on
+ * the channel of the group's owner. Instances are thread-safe.
+ */
+public class GroupKeyring {
+    private final Map<String, GroupKey> keys = new ConcurrentHashMap<>();
+
+    /**
+     * Stores the key carried by a {@link GroupSession#KEY} message. Returns false, and keeps
+     * the current key, if the message is for an older or the current epoch.
+     */
+    public boolean acceptKey(ProtocolMessage msg) throws IOException {
+        if (!GroupSession.KEY.equals(msg.getType()) || msg.isSealed()) {
+            throw new IllegalArgumentException("Not a group key message: " + msg.getType());
+        }
+        String[] fields = msg.getPayload().split(",", 3);
+        if (fields.length != 3) throw new IOException("Malformed group key message");
+        long epoch;
+        byte[] raw;
+        try {
+            epoch = Long.parseLong(fields[1]);
+            raw = Base64.getDecoder().decode(fields[2]);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed group key message", e);
+        }
+        if (raw.length != 32) throw new IOException("Invalid group key length: " + raw.length);
+        GroupKey next = new GroupKey(epoch, new SessionCrypto(new SecretKeySpec(raw, "AES")));
+        GroupKey stored = keys.merge(fields[0], next, (old, k) -> k.epoch > old.epoch ? k : old);
+        return stored == next;
+    }
+
+    /**
+     * Decrypts a sealed group message, or a queued message from an {@link OutboundQueue}.
+     * Returns a message with the sender's type and plaintext, and the sequence number within
+     * the epoch as its counter. Returns null for a message already opened, e.g. a queued
+     * message delivered again after a reconnect.
+     *
+     * @throws IOException if the group or epoch is unknown, or the message is too old
+     * @throws GeneralSecurityException if the message fails authentication
+     */
+    public ProtocolMessage open(ProtocolMessage msg) throws IOException, GeneralSecurityException {
+        boolean known = GroupSession.MESSAGE.equals(msg.getType()) || OutboundQueue.MESSAGE.equals(msg.getType());
+        if (!known || !msg.isSealed()) {
+            throw new IllegalArgumentException("Not a group message: " + msg.getType());
+        }
+        byte[] body = msg.getBody();
+        ByteBuffer buf = ByteBuffer.wrap(body);
+        int idLength = buf.remaining() > 0 ? buf.get() & 0xFF : -1;
+        if (idLength < 1 || buf.remaining() < idLength + Long.BYTES + SessionCrypto.OVERHEAD + 1) {
+            throw new IOException("Malformed group message");
+        }
+        String groupId = new String(body, 1, idLength, StandardCharsets.UTF_8);
+        buf.position(1 + idLength);
+        long epoch = buf.getLong();
+        GroupKey key = keys.get(groupId);
+        if (key == null || key.epoch != epoch) {
+            throw new IOException("No key for group " + groupId + " epoch " + epoch);
+        }
+        long counter = msg.getCounter();
+        boolean queued = OutboundQueue.MESSAGE.equals(msg.getType());
+        if (queued && counter <= key.getDelivered()) {
+            Metrics.count(Metrics.Counter.REPLAYS_REJECTED, 1);
+            return null;
+        }
+        if (!key.window.check(counter)) {
+            Metrics.count(Metrics.Counter.REPLAYS_REJECTED, 1);
+            if (counter > key.window.getHighest() - key.window.getSize()) return null;
+            throw new IOException("Too old group message " + counter + " (possible replay attack)");
+        }
+        byte[] inner = new byte[SessionCrypto.plaintextLength(buf.remaining())];
+        synchronized (key) {
+            key.crypto.decrypt(counter, body, buf.position(), buf.remaining(), inner, 0);
+        }
+        if (!key.window.accept(counter)) {
+            Metrics.count(Metrics.Counter.REPLAYS_REJECTED, 1);
+            return null;
+        }
+        if (queued) key.advanceDelivered();
+        int typeLength = inner[0] & 0xFF;
+        if (1 + typeLength > inner.length) throw new IOException("Malformed group message");
+        String type = new String(inner, 1, typeLength, StandardCharsets.UTF_8);
+        String payload = new String(inner, 1 + typeLength, inner.length - 1 - typeLength, StandardCharsets.UTF_8);
+        return new ProtocolMessage(type, payload, counter);
+    }
+
+    /**
+     * Returns the current epoch of a group, or -1 if the member has no key for it.
+     */
+    public long getEpoch(String groupId) {
+        GroupKey key = keys.get(groupId);
+        return key == null ? -1 : key.epoch;
+    }
+
+    /**
+     * Forgets a group's key, e.g. after leaving it.
+     */
+    public void remove(String groupId) {
+        keys.remove(groupId);
+    }
+
+    private static final class GroupKey {
+        final long epoch;
+        final SessionCrypto crypto;
+        final ReplayWindow window = new ReplayWindow(GroupSession.REPLAY_WINDOW_SIZE);
+        // Queues only: every sequence up to this one has been opened
+        private long delivered = -1;
+
+        GroupKey(long epoch, SessionCrypto crypto) {
+            this.epoch = epoch;
+            this.crypto = crypto;
+        }
+
+        synchronized long getDelivered() {
+            return delivered;
+        }
+
+        /**
+         * Moves the delivered mark over the sequences the window has accepted since.
+         */
+        synchronized void advanceDelivered() {
+            while (delivered < window.getHighest() && !window.check(delivered + 1)) {
+                delivered++;
+            }
+        }
+    }
+}
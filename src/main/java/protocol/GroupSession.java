@@ -0,0 +1,261 @@
+package protocol;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * GroupSession broadcasts messages to the members of a group, encrypting each message once
+ * under a shared group key instead of once per member.
+ *
+ * The group owner holds a pairwise PeerChannel to every member:
+ * <ul>
+ *   <li>the group key is distributed over the pairwise channels as a {@link #KEY} message
+ *       "groupId,epoch,key", so it is protected by each member's session key;</li>
+ *   <li>a group message is encrypted once with {@link SessionCrypto} under the group key,
+ *       and the same bytes are sent as a sealed {@link #MESSAGE} frame to every member
+ *       concurrently;</li>
+ *   <li>adding or removing a member starts a new epoch with a fresh random key, so a new
+ *       member cannot read earlier messages and a removed one cannot read later ones.</li>
+ * </ul>
+ * A sealed group message body is {@code u8 idLength | groupId | u64 epoch | nonce | ciphertext | tag},
+ * where the frame counter is the message's sequence number within the epoch. Members open
+ * these with a {@link GroupKeyring}.
+ *
+ * Member channels must be binary socket channels (see {@link PeerChannel#sendSealed}).
+ */
+public class GroupSession implements Closeable {
+    public static final String KEY = "group-key";
+    public static final String MESSAGE = "group-msg";
+    /** How far group messages may be reordered in flight, e.g. by concurrent senders. */
+    static final int REPLAY_WINDOW_SIZE = 1024;
+
+    private static final int KEY_SIZE = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String groupId;
+    private final byte[] header;
+    private final Map<String, PeerChannel> members = new LinkedHashMap<>();
+    // Sends share the read lock; membership changes take the write lock, so every message
+    // of an epoch is written before the next epoch's key
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ExecutorService fanout = Threads.newThreadPerTaskExecutor("group-fanout");
+    private long epoch;
+    private SecretKey key;
+    private SessionCrypto crypto;
+    private long sequence;
+
+    /**
+     * Creates a group with a new random id.
+     */
+    public GroupSession() {
+        this(newGroupId());
+    }
+
+    public GroupSession(String groupId) {
+        int id = groupId.getBytes(StandardCharsets.UTF_8).length;
+        if (id == 0 || id > 255 || groupId.contains(",")) {
+            throw new IllegalArgumentException("Invalid group id: " + groupId);
+        }
+        this.groupId = groupId;
+        this.header = header(groupId);
+    }
+
+    /**
+     * Returns the {@code u8 idLength | groupId} prefix of sealed bodies for a group.
+     */
+    static byte[] header(String groupId) {
+        byte[] id = groupId.getBytes(StandardCharsets.UTF_8);
+        byte[] header = new byte[1 + id.length];
+        header[0] = (byte) id.length;
+        System.arraycopy(id, 0, header, 1, id.length);
+        return header;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    /**
+     * Returns the current key epoch: 0 before the first member joins, then incremented on
+     * every membership change.
+     */
+    public long getEpoch() {
+        lock.readLock().lock();
+        try {
+            return epoch;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Set<String> getMembers() {
+        lock.readLock().lock();
+        try {
+            return new LinkedHashSet<>(members.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a member (replacing its channel if already present), rotates the group key and
+     * distributes it to all members.
+     */
+    public void addMember(String memberId, PeerChannel channel) throws IOException {
+        lock.writeLock().lock();
+        try {
+            members.put(memberId, channel);
+            rotate();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a member and, if it was present, rotates the group key and distributes it to
+     * the remaining members. The member's channel is not closed.
+     */
+    public boolean removeMember(String memberId) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (members.remove(memberId) == null) return false;
+            rotate();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Encrypts the message once and sends it to every member concurrently. Blocks until
+     * every member's send has completed; if any failed, throws an IOException naming them
+     * after the others have been delivered. Returns the message's sequence number.
+     */
+    public long send(String type, String plaintext) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (crypto == null) throw new IllegalStateException("Group has no members");
+            long counter;
+            byte[] body;
+            synchronized (this) {
+                counter = sequence++;
+                body = seal(crypto, header, epoch, counter, type, plaintext);
+            }
+            deliver(members, channel -> channel.sendSealed(MESSAGE, counter, ByteBuffer.wrap(body)));
+            return counter;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Builds a sealed body {@code header | u64 epoch | nonce | ciphertext | tag}; the inner
+     * plaintext is {@code u8 typeLength | type | payload}.
+     */
+    static byte[] seal(SessionCrypto crypto, byte[] header, long epoch, long counter, String type, String plaintext)
+            throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.UTF_8);
+        if (typeBytes.length > 255) throw new IllegalArgumentException("Message type too long: " + type);
+        byte[] data = plaintext.getBytes(StandardCharsets.UTF_8);
+        byte[] inner = new byte[1 + typeBytes.length + data.length];
+        inner[0] = (byte) typeBytes.length;
+        System.arraycopy(typeBytes, 0, inner, 1, typeBytes.length);
+        System.arraycopy(data, 0, inner, 1 + typeBytes.length, data.length);
+        int offset = header.length + Long.BYTES;
+        byte[] body = new byte[offset + SessionCrypto.ciphertextLength(inner.length)];
+        ByteBuffer.wrap(body).put(header).putLong(epoch);
+        try {
+            crypto.encrypt(counter, inner, 0, inner.length, body, offset);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt message", e);
+        }
+        return body;
+    }
+
+    /**
+     * Starts a new epoch with a fresh key and sends it to every member. Write lock held.
+     */
+    private void rotate() throws IOException {
+        byte[] raw = new byte[KEY_SIZE];
+        RANDOM.nextBytes(raw);
+        synchronized (this) {
+            key = new SecretKeySpec(raw, "AES");
+            crypto = new SessionCrypto(key);
+            sequence = 0;
+            epoch++;
+        }
+        String payload = groupId + "," + epoch + "," + Base64.getEncoder().encodeToString(raw);
+        deliver(members, channel -> {
+            channel.send(KEY, payload);
+            channel.flush();
+        });
+    }
+
+    /**
+     * Runs the delivery for every channel concurrently and waits for all of them.
+     */
+    private void deliver(Map<String, PeerChannel> targets, Delivery delivery) throws IOException {
+        Map<String, Future<?>> results = new LinkedHashMap<>();
+        for (Map.Entry<String, PeerChannel> e : targets.entrySet()) {
+            PeerChannel channel = e.getValue();
+            results.put(e.getKey(), fanout.submit(() -> {
+                delivery.deliver(channel);
+                return null;
+            }));
+        }
+        List<String> failed = new ArrayList<>();
+        List<Throwable> causes = new ArrayList<>();
+        for (Map.Entry<String, Future<?>> e : results.entrySet()) {
+            try {
+                e.getValue().get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending to group " + groupId);
+            } catch (ExecutionException ex) {
+                failed.add(e.getKey());
+                causes.add(ex.getCause());
+            }
+        }
+        if (!failed.isEmpty()) {
+            IOException failure = new IOException("Failed to send to group members " + failed);
+            causes.forEach(failure::addSuppressed);
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the fan-out threads. Member channels are left open.
+     */
+    @Override
+    public void close() {
+        fanout.shutdown();
+    }
+
+    private interface Delivery {
+        void deliver(PeerChannel channel) throws Exception;
+    }
+
+    private static String newGroupId() {
+        byte[] id = new byte[16];
+        RANDOM.nextBytes(id);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+    }
+}
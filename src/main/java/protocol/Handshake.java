@@ -1,29 +1,100 @@
 package protocol;
 
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import javax.crypto.KeyAgreement;
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.spec.NamedParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Handshake handles the ECDH key exchange between two peers to derive a shared session key.
  * This is used for establishing end-to-end encrypted channels in the protocol.
  *
  * Uses X25519 for ECDH and BouncyCastle for cryptography.
+ *
+ * On the wire each side sends one message, initiator first. Public keys use the fixed
+ * 32-byte raw X25519 encoding (RFC 7748).
+ * <pre>
+ *   full:    u8 1 || public key || offer                            (initiator)
+ *            u8 1 || public key || u8 suite                         (responder)
+ *   resume:  u8 2 || ticket id (16) || nonce (16) || public key || offer   (initiator)
+ *            u8 2 || nonce (16) || u8 suite                         (responder)
+ *   reject:  u8 0                                                   (responder)
+ *   offer:   u8 count || count suite ids, most preferred first
+ * </pre>
+ * The responder picks the first {@link CipherSuite} in its own preference list that the
+ * initiator offered, or rejects the handshake if there is none. The offer and the choice
+ * are mixed into the session key derivation, so a peer whose offer was tampered with ends
+ * up with a different key and the first message fails to decrypt.
+ * A full handshake derives the session key as HKDF(shared secret, salt = initiator key ||
+ * responder key, info). With a {@link ResumptionCache}, both sides also keep a resumption
+ * secret. A reconnecting initiator presents the ticket. If the responder still holds it, the
+ * new session key is HKDF(resumption secret, salt = both nonces), with no ECDH at all. If not,
+ * the responder answers with a full handshake, using the public key the initiator sent along.
+ * Resumed sessions do not get fresh forward secrecy, so tickets should have a short TTL.
+ * Either way, each direction encrypts with its own key derived from the session key (see
+ * {@link HandshakeResult#getSendKey()}).
+ *
+ * Key pair generators, key factories and agreement objects are pooled and reused rather
+ * than looked up from the provider on every call. Pass an {@link EphemeralKeyPool} to
+ * take key pairs generated ahead of time.
  */
 public class Handshake {
     static {
         Security.addProvider(new BouncyCastleProvider());
     }
 
+    private static final byte[] SESSION_INFO = "cwtch-session-v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESUMED_SESSION_INFO = "cwtch-session-resumed-v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESUME_INFO = "cwtch-resume-v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TICKET_INFO = "cwtch-ticket-v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INITIATOR_KEY_INFO = "cwtch-initiator-to-responder-v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RESPONDER_KEY_INFO = "cwtch-responder-to-initiator-v1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte MODE_REJECT = 0;
+    private static final byte MODE_FULL = 1;
+    private static final byte MODE_RESUME = 2;
+    private static final int TICKET_ID_LENGTH = 16;
+    private static final int RESUME_NONCE_LENGTH = 16;
+    private static final int RESUME_SECRET_LENGTH = 32;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /** Length of a raw X25519 public key. */
+    public static final int PUBLIC_KEY_LENGTH = 32;
+    // DER prefix of an X.509 SubjectPublicKeyInfo for X25519, followed by the raw key
+    private static final byte[] X509_PREFIX = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00};
+
+    private static final Queue<KeyPairGenerator> GENERATORS = new ConcurrentLinkedQueue<>();
+    private static final Queue<KeyAgreement> AGREEMENTS = new ConcurrentLinkedQueue<>();
+    private static final Queue<KeyFactory> FACTORIES = new ConcurrentLinkedQueue<>();
+
     /**
      * Generates a new X25519 key pair for ephemeral ECDH.
      */
     public static KeyPair generateEphemeralKeyPair() throws GeneralSecurityException {
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("X25519", "BC");
-        kpg.initialize(new NamedParameterSpec("X25519"));
-        return kpg.generateKeyPair();
+        KeyPairGenerator kpg = GENERATORS.poll();
+        if (kpg == null) {
+            kpg = KeyPairGenerator.getInstance("X25519", "BC");
+            kpg.initialize(new NamedParameterSpec("X25519"));
+        }
+        try {
+            return kpg.generateKeyPair();
+        } finally {
+            GENERATORS.offer(kpg);
+        }
     }
 
     /**
@@ -33,25 +104,380 @@ public class Handshake {
      * @return The shared secret (32 bytes)
      */
     public static byte[] computeSharedSecret(PrivateKey privateKey, PublicKey peerPublicKey) throws GeneralSecurityException {
-        KeyAgreement ka = KeyAgreement.getInstance("X25519", "BC");
+        KeyAgreement ka = AGREEMENTS.poll();
+        if (ka == null) {
+            ka = KeyAgreement.getInstance("X25519", "BC");
+        }
         ka.init(privateKey);
         ka.doPhase(peerPublicKey, true);
-        return ka.generateSecret();
+        byte[] secret = ka.generateSecret();
+        // Only returned after a successful agreement, so a pooled object is never half-used
+        AGREEMENTS.offer(ka);
+        return secret;
     }
 
     /**
-     * Encodes a public key as Base64 for transmission.
+     * Encodes a public key as Base64 of its raw 32-byte form, for transmission.
      */
     public static String encodePublicKey(PublicKey publicKey) {
-        return Base64.getEncoder().encodeToString(publicKey.getEncoded());
+        return Base64.getEncoder().encodeToString(rawPublicKey(publicKey));
     }
 
     /**
-     * Decodes a Base64-encoded public key.
+     * Decodes a public key produced by {@link #encodePublicKey(PublicKey)}.
      */
     public static PublicKey decodePublicKey(String base64) throws GeneralSecurityException {
-        KeyFactory kf = KeyFactory.getInstance("X25519", "BC");
-        return kf.generatePublic(new java.security.spec.XECPublicKeySpec(new NamedParameterSpec("X25519"),
-                new java.math.BigInteger(1, Base64.getDecoder().decode(base64))));
+        return publicKeyFromRaw(Base64.getDecoder().decode(base64));
+    }
+
+    /**
+     * Returns the raw 32-byte encoding of an X25519 public key.
+     */
+    public static byte[] rawPublicKey(PublicKey publicKey) {
+        byte[] encoded = publicKey.getEncoded();
+        if (encoded.length != X509_PREFIX.length + PUBLIC_KEY_LENGTH) {
+            throw new IllegalArgumentException("Not an X25519 public key");
+        }
+        return Arrays.copyOfRange(encoded, X509_PREFIX.length, encoded.length);
+    }
+
+    /**
+     * Rebuilds an X25519 public key from its raw 32-byte encoding.
+     */
+    public static PublicKey publicKeyFromRaw(byte[] raw) throws GeneralSecurityException {
+        if (raw.length != PUBLIC_KEY_LENGTH) {
+            throw new InvalidKeyException("X25519 public key must be " + PUBLIC_KEY_LENGTH + " bytes");
+        }
+        byte[] encoded = Arrays.copyOf(X509_PREFIX, X509_PREFIX.length + PUBLIC_KEY_LENGTH);
+        System.arraycopy(raw, 0, encoded, X509_PREFIX.length, PUBLIC_KEY_LENGTH);
+        KeyFactory kf = FACTORIES.poll();
+        if (kf == null) {
+            kf = KeyFactory.getInstance("X25519", "BC");
+        }
+        try {
+            return kf.generatePublic(new X509EncodedKeySpec(encoded));
+        } finally {
+            FACTORIES.offer(kf);
+        }
+    }
+
+    /**
+     * Runs the initiator side of the handshake over a connected stream pair.
+     * The streams must not be buffered past the handshake, so pass the raw socket streams.
+     */
+    public static HandshakeResult initiate(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        return initiate(in, out, null, null, null);
+    }
+
+    /**
+     * Runs the initiator side, taking the ephemeral key pair from pool (may be null).
+     */
+    public static HandshakeResult initiate(InputStream in, OutputStream out, EphemeralKeyPool pool)
+            throws IOException, GeneralSecurityException {
+        return initiate(in, out, pool, null, null);
+    }
+
+    /**
+     * Runs the initiator side, resuming an earlier session with peer if cache holds a ticket
+     * for it. Either way a new ticket for peer is stored in cache afterwards.
+     *
+     * @param pool ephemeral key source, or null to generate keys inline
+     * @param cache resumption tickets, or null to always run the full handshake
+     * @param peer the peer's onion address or identity key
+     */
+    public static HandshakeResult initiate(InputStream in, OutputStream out, EphemeralKeyPool pool,
+                                           ResumptionCache cache, String peer)
+            throws IOException, GeneralSecurityException {
+        return initiate(in, out, pool, cache, peer, CipherSuite.defaults());
+    }
+
+    /**
+     * Runs the initiator side, offering the given cipher suites, most preferred first.
+     */
+    public static HandshakeResult initiate(InputStream in, OutputStream out, EphemeralKeyPool pool,
+                                           ResumptionCache cache, String peer, List<CipherSuite> suites)
+            throws IOException, GeneralSecurityException {
+        byte[] offer = encodeOffer(suites);
+        long start = Metrics.start();
+        HandshakeResult result = runInitiator(in, out, pool, cache, peer, offer);
+        finished(result, start);
+        return result;
+    }
+
+    private static HandshakeResult runInitiator(InputStream in, OutputStream out, EphemeralKeyPool pool,
+                                                ResumptionCache cache, String peer, byte[] offer)
+            throws IOException, GeneralSecurityException {
+        KeyPair ephemeral = pool != null ? pool.take() : generateEphemeralKeyPair();
+        byte[] ours = rawPublicKey(ephemeral.getPublic());
+        ResumptionCache.Ticket ticket = cache != null ? cache.take(peer) : null;
+        byte[] nonce = null;
+        if (ticket == null) {
+            write(out, new byte[] {MODE_FULL}, ours, offer);
+        } else {
+            nonce = new byte[RESUME_NONCE_LENGTH];
+            RANDOM.nextBytes(nonce);
+            // The public key rides along so a responder that lost the ticket can still
+            // answer with a full handshake without another round trip
+            write(out, new byte[] {MODE_RESUME}, ticket.id, nonce, ours, offer);
+        }
+        DataInputStream data = new DataInputStream(in);
+        int mode = data.readUnsignedByte();
+        if (mode == MODE_REJECT) throw new IOException("Peer supports none of the offered cipher suites");
+        if (mode == MODE_RESUME && ticket != null) {
+            byte[] theirNonce = readBytes(data, RESUME_NONCE_LENGTH);
+            CipherSuite suite = readChoice(data, offer);
+            return resumed(true, ticket.secret, concat(nonce, theirNonce), offer, suite, cache, peer);
+        }
+        if (mode != MODE_FULL) throw new IOException("Unexpected handshake mode: " + mode);
+        byte[] theirs = readBytes(data, PUBLIC_KEY_LENGTH);
+        CipherSuite suite = readChoice(data, offer);
+        return full(true, ephemeral.getPrivate(), theirs, ours, theirs, offer, suite, cache, peer);
+    }
+
+    /**
+     * Runs the responder side of the handshake over a connected stream pair.
+     */
+    public static HandshakeResult respond(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        return respond(in, out, null, null);
+    }
+
+    /**
+     * Runs the responder side, taking the ephemeral key pair from pool (may be null).
+     */
+    public static HandshakeResult respond(InputStream in, OutputStream out, EphemeralKeyPool pool)
+            throws IOException, GeneralSecurityException {
+        return respond(in, out, pool, null);
+    }
+
+    /**
+     * Runs the responder side, accepting resumption tickets found in cache (may be null).
+     * Tickets are stored by ticket id, as the responder does not know who is connecting.
+     */
+    public static HandshakeResult respond(InputStream in, OutputStream out, EphemeralKeyPool pool,
+                                          ResumptionCache cache)
+            throws IOException, GeneralSecurityException {
+        return respond(in, out, pool, cache, CipherSuite.defaults());
+    }
+
+    /**
+     * Runs the responder side, choosing the first of the given cipher suites, in order, that
+     * the initiator offered.
+     */
+    public static HandshakeResult respond(InputStream in, OutputStream out, EphemeralKeyPool pool,
+                                          ResumptionCache cache, List<CipherSuite> suites)
+            throws IOException, GeneralSecurityException {
+        encodeOffer(suites);
+        long start = Metrics.start();
+        HandshakeResult result = runResponder(readHello(in), out, pool, cache, suites);
+        finished(result, start);
+        return result;
+    }
+
+    /**
+     * Reads the initiator's message. No key agreement happens until it is answered, so a
+     * server can read it without holding a handshake slot (see {@link PeerServer}).
+     */
+    static Hello readHello(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int mode = data.readUnsignedByte();
+        if (mode == MODE_RESUME) {
+            byte[] ticketId = readBytes(data, TICKET_ID_LENGTH);
+            byte[] nonce = readBytes(data, RESUME_NONCE_LENGTH);
+            byte[] publicKey = readBytes(data, PUBLIC_KEY_LENGTH);
+            return new Hello(ticketId, nonce, publicKey, readOffer(data));
+        }
+        if (mode != MODE_FULL) throw new IOException("Unexpected handshake mode: " + mode);
+        byte[] publicKey = readBytes(data, PUBLIC_KEY_LENGTH);
+        return new Hello(null, null, publicKey, readOffer(data));
+    }
+
+    /**
+     * Runs the rest of the responder side for a message read with {@link #readHello}.
+     */
+    static HandshakeResult respond(Hello hello, OutputStream out, EphemeralKeyPool pool, ResumptionCache cache,
+                                   List<CipherSuite> suites) throws IOException, GeneralSecurityException {
+        encodeOffer(suites);
+        long start = Metrics.start();
+        HandshakeResult result = runResponder(hello, out, pool, cache, suites);
+        finished(result, start);
+        return result;
+    }
+
+    private static HandshakeResult runResponder(Hello hello, OutputStream out, EphemeralKeyPool pool,
+                                                ResumptionCache cache, List<CipherSuite> suites)
+            throws IOException, GeneralSecurityException {
+        CipherSuite suite = choose(out, hello.offer, suites);
+        if (hello.ticketId != null) {
+            ResumptionCache.Ticket ticket = cache != null ? cache.take(ticketKey(hello.ticketId)) : null;
+            if (ticket != null) {
+                byte[] nonce = new byte[RESUME_NONCE_LENGTH];
+                RANDOM.nextBytes(nonce);
+                write(out, new byte[] {MODE_RESUME}, nonce, new byte[] {(byte) suite.getId()});
+                return resumed(false, ticket.secret, concat(hello.nonce, nonce), hello.offer, suite, cache, null);
+            }
+        }
+        return respondFull(out, pool, hello.publicKey, hello.offer, suite, cache);
+    }
+
+    private static void finished(HandshakeResult result, long start) {
+        Metrics.stop(Metrics.Timer.HANDSHAKE, start);
+        Metrics.count(Metrics.Counter.HANDSHAKES, 1);
+        if (result.isResumed()) Metrics.count(Metrics.Counter.HANDSHAKES_RESUMED, 1);
+    }
+
+    private static HandshakeResult respondFull(OutputStream out, EphemeralKeyPool pool, byte[] theirs, byte[] offer,
+                                               CipherSuite suite, ResumptionCache cache)
+            throws IOException, GeneralSecurityException {
+        KeyPair ephemeral = pool != null ? pool.take() : generateEphemeralKeyPair();
+        byte[] ours = rawPublicKey(ephemeral.getPublic());
+        write(out, new byte[] {MODE_FULL}, ours, new byte[] {(byte) suite.getId()});
+        return full(false, ephemeral.getPrivate(), theirs, theirs, ours, offer, suite, cache, null);
+    }
+
+    private static HandshakeResult full(boolean initiator, PrivateKey ours, byte[] peerKey, byte[] initiatorKey, byte[] responderKey,
+                                        byte[] offer, CipherSuite suite, ResumptionCache cache, String peer)
+            throws GeneralSecurityException {
+        byte[] secret = computeSharedSecret(ours, publicKeyFromRaw(peerKey));
+        byte[] salt = concat(initiatorKey, responderKey);
+        SecretKey sessionKey = SessionCrypto.deriveSessionKey(secret, salt, sessionInfo(SESSION_INFO, offer, suite));
+        storeTicket(cache, peer, hkdf(secret, salt, RESUME_INFO, RESUME_SECRET_LENGTH));
+        return result(initiator, sessionKey, false, suite);
+    }
+
+    private static HandshakeResult resumed(boolean initiator, byte[] resumptionSecret, byte[] nonces, byte[] offer, CipherSuite suite,
+                                           ResumptionCache cache, String peer) {
+        SecretKey sessionKey = SessionCrypto.deriveSessionKey(resumptionSecret, nonces,
+                sessionInfo(RESUMED_SESSION_INFO, offer, suite));
+        // Ratchet the ticket so each one is used at most once
+        storeTicket(cache, peer, hkdf(resumptionSecret, nonces, RESUME_INFO, RESUME_SECRET_LENGTH));
+        return result(initiator, sessionKey, true, suite);
+    }
+
+    /**
+     * Splits the session key into one key per direction, so the peers never encrypt under
+     * the same key and nonce even though both start counting at 0.
+     */
+    private static HandshakeResult result(boolean initiator, SecretKey sessionKey, boolean resumed, CipherSuite suite) {
+        SecretKey toResponder = SessionCrypto.deriveSessionKey(sessionKey.getEncoded(), null, INITIATOR_KEY_INFO);
+        SecretKey toInitiator = SessionCrypto.deriveSessionKey(sessionKey.getEncoded(), null, RESPONDER_KEY_INFO);
+        return initiator
+                ? new HandshakeResult(sessionKey, toResponder, toInitiator, resumed, suite)
+                : new HandshakeResult(sessionKey, toInitiator, toResponder, resumed, suite);
+    }
+
+    private static byte[] sessionInfo(byte[] label, byte[] offer, CipherSuite suite) {
+        byte[] info = concat(label, offer);
+        return concat(info, new byte[] {(byte) suite.getId()});
+    }
+
+    /**
+     * The initiator's message as the responder received it; ticketId and nonce are null for a
+     * full handshake.
+     */
+    static final class Hello {
+        final byte[] ticketId;
+        final byte[] nonce;
+        final byte[] publicKey;
+        final byte[] offer;
+
+        Hello(byte[] ticketId, byte[] nonce, byte[] publicKey, byte[] offer) {
+            this.ticketId = ticketId;
+            this.nonce = nonce;
+            this.publicKey = publicKey;
+            this.offer = offer;
+        }
+    }
+
+    private static byte[] encodeOffer(List<CipherSuite> suites) {
+        if (suites.isEmpty() || suites.size() > 255) {
+            throw new IllegalArgumentException("Between 1 and 255 cipher suites must be offered");
+        }
+        byte[] offer = new byte[1 + suites.size()];
+        offer[0] = (byte) suites.size();
+        for (int i = 0; i < suites.size(); i++) {
+            offer[1 + i] = (byte) suites.get(i).getId();
+        }
+        return offer;
+    }
+
+    private static byte[] readOffer(DataInputStream in) throws IOException {
+        int count = in.readUnsignedByte();
+        if (count == 0) throw new IOException("Empty cipher suite offer");
+        byte[] offer = new byte[1 + count];
+        offer[0] = (byte) count;
+        in.readFully(offer, 1, count);
+        return offer;
+    }
+
+    /**
+     * Picks our most preferred suite that was offered, or sends a rejection and fails.
+     */
+    private static CipherSuite choose(OutputStream out, byte[] offer, List<CipherSuite> suites) throws IOException {
+        for (CipherSuite suite : suites) {
+            if (offered(offer, suite.getId())) return suite;
+        }
+        write(out, new byte[] {MODE_REJECT});
+        throw new IOException("No cipher suite in common with the peer");
+    }
+
+    private static CipherSuite readChoice(DataInputStream in, byte[] offer) throws IOException {
+        int id = in.readUnsignedByte();
+        CipherSuite suite = CipherSuite.fromId(id);
+        if (suite == null || !offered(offer, id)) throw new IOException("Peer chose a cipher suite that was not offered: " + id);
+        return suite;
+    }
+
+    private static boolean offered(byte[] offer, int id) {
+        for (int i = 1; i < offer.length; i++) {
+            if ((offer[i] & 0xff) == id) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stores a ticket under the peer (initiator) or under its id (responder, peer == null).
+     */
+    private static void storeTicket(ResumptionCache cache, String peer, byte[] resumptionSecret) {
+        if (cache == null) return;
+        byte[] id = hkdf(resumptionSecret, null, TICKET_INFO, TICKET_ID_LENGTH);
+        cache.put(peer != null ? peer : ticketKey(id), id, resumptionSecret);
+    }
+
+    private static String ticketKey(byte[] ticketId) {
+        return Base64.getEncoder().encodeToString(ticketId);
+    }
+
+    private static byte[] hkdf(byte[] secret, byte[] salt, byte[] info, int length) {
+        HKDFBytesGenerator generator = new HKDFBytesGenerator(new SHA256Digest());
+        generator.init(new HKDFParameters(secret, salt, info));
+        byte[] out = new byte[length];
+        generator.generateBytes(out, 0, length);
+        return out;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    private static void write(OutputStream out, byte[]... parts) throws IOException {
+        // Single write so the message leaves in one segment
+        int length = 0;
+        for (byte[] part : parts) length += part.length;
+        byte[] msg = new byte[length];
+        int p = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, msg, p, part.length);
+            p += part.length;
+        }
+        out.write(msg);
+        out.flush();
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
     }
 }
@@ -0,0 +1,74 @@
+package protocol;
+
+import javax.crypto.SecretKey;
+
+/**
+ * HandshakeResult holds what both peers agreed on during a {@link Handshake}.
+ */
+public class HandshakeResult {
+    private final SecretKey sessionKey;
+    private final SecretKey sendKey;
+    private final SecretKey receiveKey;
+    private final boolean resumed;
+    private final CipherSuite cipherSuite;
+
+    public HandshakeResult(SecretKey sessionKey) {
+        this(sessionKey, false);
+    }
+
+    public HandshakeResult(SecretKey sessionKey, boolean resumed) {
+        this(sessionKey, resumed, CipherSuite.AES_256_GCM);
+    }
+
+    /**
+     * Uses the session key in both directions.
+     */
+    public HandshakeResult(SecretKey sessionKey, boolean resumed, CipherSuite cipherSuite) {
+        this(sessionKey, sessionKey, sessionKey, resumed, cipherSuite);
+    }
+
+    public HandshakeResult(SecretKey sessionKey, SecretKey sendKey, SecretKey receiveKey, boolean resumed,
+                           CipherSuite cipherSuite) {
+        this.sessionKey = sessionKey;
+        this.sendKey = sendKey;
+        this.receiveKey = receiveKey;
+        this.resumed = resumed;
+        this.cipherSuite = cipherSuite;
+    }
+
+    /**
+     * Returns the session key derived from the ECDH shared secret. Both peers hold the same
+     * key; further keys are derived from it.
+     */
+    public SecretKey getSessionKey() {
+        return sessionKey;
+    }
+
+    /**
+     * Returns the key this side encrypts its messages with; it is the peer's receive key.
+     */
+    public SecretKey getSendKey() {
+        return sendKey;
+    }
+
+    /**
+     * Returns the key the peer's messages are encrypted with.
+     */
+    public SecretKey getReceiveKey() {
+        return receiveKey;
+    }
+
+    /**
+     * Returns true if the session was resumed from a ticket instead of a full ECDH exchange.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Returns the cipher suite the peers negotiated for the session.
+     */
+    public CipherSuite getCipherSuite() {
+        return cipherSuite;
+    }
+}
@@ -1,8 +1,27 @@
 package protocol;
 
+import org.bouncycastle.crypto.digests.SHA3Digest;
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
+import org.bouncycastle.crypto.util.PrivateKeyFactory;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.*;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Identity represents a user's long-term cryptographic identity (Ed25519/X25519 key pair)
@@ -10,8 +29,25 @@ import java.util.Base64;
  * and as the basis for onion address generation.
  *
  * This class provides methods for key generation, serialization, and loading from storage.
+ *
+ * The Ed25519 key doubles as the key of the identity's v3 onion service: the onion address
+ * is derived from the public key, and {@link #getOnionServiceKey()} gives the key blob for
+ * ADD_ONION. An identity that is saved and loaded again therefore keeps its address across
+ * restarts.
  */
 public class Identity {
+    private static final String FILE_HEADER = "cwtch-identity-v1";
+    private static final int KEY_LENGTH = 32;
+    // DER prefixes of PKCS#8 and X.509 encodings of Ed25519 keys, followed by the raw key
+    private static final byte[] PKCS8_PREFIX = {
+            0x30, 0x2e, 0x02, 0x01, 0x00, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x04, 0x22, 0x04, 0x20};
+    private static final byte[] X509_PREFIX = {
+            0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00};
+    // scrypt cost for passphrase-protected files (N = 2^15, r = 8, p = 1)
+    private static final int SCRYPT_N = 1 << 15;
+    private static final int SCRYPT_R = 8;
+    private static final int SCRYPT_P = 1;
+
     private final PrivateKey privateKey;
     private final PublicKey publicKey;
 
@@ -55,5 +91,184 @@ public class Identity {
         return Base64.getEncoder().encodeToString(privateKey.getEncoded());
     }
 
-    // TODO: Add methods for loading/saving keys from/to disk securely.
+    /**
+     * Returns the v3 onion address of this identity's service, e.g. "abc...xyz.onion".
+     */
+    public String getOnionAddress() {
+        return getOnionServiceId() + ".onion";
+    }
+
+    /**
+     * Returns the onion address without ".onion", as Tor reports it in ServiceID.
+     * Per rend-spec-v3: base32(pubkey || checksum || version), with
+     * checksum = SHA3-256(".onion checksum" || pubkey || version)[:2] and version 3.
+     */
+    public String getOnionServiceId() {
+        byte[] pub = rawPublicKey();
+        SHA3Digest sha3 = new SHA3Digest(256);
+        byte[] prefix = ".onion checksum".getBytes(StandardCharsets.US_ASCII);
+        sha3.update(prefix, 0, prefix.length);
+        sha3.update(pub, 0, pub.length);
+        sha3.update((byte) 3);
+        byte[] checksum = new byte[32];
+        sha3.doFinal(checksum, 0);
+        byte[] address = Arrays.copyOf(pub, KEY_LENGTH + 3);
+        address[KEY_LENGTH] = checksum[0];
+        address[KEY_LENGTH + 1] = checksum[1];
+        address[KEY_LENGTH + 2] = 3;
+        return base32(address);
+    }
+
+    /**
+     * Returns the key blob for Tor's ADD_ONION command: "ED25519-V3:" followed by the Base64
+     * of the expanded secret key (SHA-512 of the seed, clamped), which is how Tor stores it.
+     */
+    public String getOnionServiceKey() {
+        try {
+            byte[] expanded = MessageDigest.getInstance("SHA-512").digest(rawSeed());
+            expanded[0] &= (byte) 248;
+            expanded[31] &= 127;
+            expanded[31] |= 64;
+            return "ED25519-V3:" + Base64.getEncoder().encodeToString(expanded);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Saves the identity to a file readable only by the owner (where the file system
+     * supports POSIX permissions). The private key is stored unencrypted.
+     */
+    public void save(Path file) throws IOException {
+        write(file, "private=" + Base64.getEncoder().encodeToString(rawSeed()));
+    }
+
+    /**
+     * Saves the identity with its private key encrypted under a passphrase (scrypt and
+     * AES-GCM).
+     */
+    public void save(Path file, char[] passphrase) throws IOException {
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        try {
+            byte[] sealed = SessionCrypto.encrypt(rawSeed(), passphraseKey(passphrase, salt));
+            write(file, "scrypt-salt=" + Base64.getEncoder().encodeToString(salt) + "\n"
+                    + "private-encrypted=" + Base64.getEncoder().encodeToString(sealed));
+        } catch (Exception e) {
+            throw new IOException("Failed to encrypt identity", e);
+        }
+    }
+
+    /**
+     * Loads an identity saved with {@link #save(Path)}.
+     */
+    public static Identity load(Path file) throws IOException, GeneralSecurityException {
+        return load(file, null);
+    }
+
+    /**
+     * Loads an identity, decrypting it with passphrase if it was saved with one.
+     */
+    public static Identity load(Path file, char[] passphrase) throws IOException, GeneralSecurityException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+        if (lines.isEmpty() || !lines.get(0).equals(FILE_HEADER)) {
+            throw new IOException("Not an identity file: " + file);
+        }
+        Map<String, byte[]> fields = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            int eq = line.indexOf('=');
+            if (eq > 0) fields.put(line.substring(0, eq), Base64.getDecoder().decode(line.substring(eq + 1)));
+        }
+        byte[] seed = fields.get("private");
+        if (seed == null && fields.containsKey("private-encrypted")) {
+            if (passphrase == null) throw new IOException("Identity file is encrypted: " + file);
+            try {
+                seed = SessionCrypto.decrypt(fields.get("private-encrypted"), passphraseKey(passphrase, fields.get("scrypt-salt")));
+            } catch (GeneralSecurityException e) {
+                throw new GeneralSecurityException("Wrong passphrase or corrupted identity file", e);
+            } catch (Exception e) {
+                throw new IOException("Failed to decrypt identity", e);
+            }
+        }
+        if (seed == null || seed.length != KEY_LENGTH) throw new IOException("Identity file has no valid private key: " + file);
+        Identity identity = fromSeed(seed);
+        byte[] pub = fields.get("public");
+        if (pub != null && !Arrays.equals(pub, identity.rawPublicKey())) {
+            throw new IOException("Identity file public key does not match its private key: " + file);
+        }
+        return identity;
+    }
+
+    /**
+     * Rebuilds an identity from its 32-byte Ed25519 seed.
+     */
+    public static Identity fromSeed(byte[] seed) throws GeneralSecurityException {
+        if (seed.length != KEY_LENGTH) throw new InvalidKeyException("Ed25519 seed must be 32 bytes");
+        KeyFactory kf = KeyFactory.getInstance("Ed25519", "BC");
+        PrivateKey privateKey = kf.generatePrivate(new PKCS8EncodedKeySpec(concat(PKCS8_PREFIX, seed)));
+        byte[] pub = new Ed25519PrivateKeyParameters(seed, 0).generatePublicKey().getEncoded();
+        PublicKey publicKey = kf.generatePublic(new X509EncodedKeySpec(concat(X509_PREFIX, pub)));
+        return new Identity(privateKey, publicKey);
+    }
+
+    private byte[] rawSeed() {
+        try {
+            return ((Ed25519PrivateKeyParameters) PrivateKeyFactory.createKey(privateKey.getEncoded())).getEncoded();
+        } catch (IOException | ClassCastException e) {
+            throw new IllegalStateException("Not an Ed25519 private key", e);
+        }
+    }
+
+    private byte[] rawPublicKey() {
+        byte[] encoded = publicKey.getEncoded();
+        return Arrays.copyOfRange(encoded, encoded.length - KEY_LENGTH, encoded.length);
+    }
+
+    private void write(Path file, String secret) throws IOException {
+        String content = FILE_HEADER + "\n"
+                + "public=" + Base64.getEncoder().encodeToString(rawPublicKey()) + "\n"
+                + secret + "\n";
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        // Write to a private temporary file first so the key is never briefly world-readable
+        Path tmp = FileSystems.getDefault().supportedFileAttributeViews().contains("posix")
+                ? Files.createTempFile(dir, ".identity", ".tmp", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+                : Files.createTempFile(dir, ".identity", ".tmp");
+        try {
+            Files.writeString(tmp, content, StandardCharsets.US_ASCII);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static SecretKey passphraseKey(char[] passphrase, byte[] salt) {
+        byte[] password = new String(passphrase).getBytes(StandardCharsets.UTF_8);
+        byte[] key = SCrypt.generate(password, salt, SCRYPT_N, SCRYPT_R, SCRYPT_P, 32);
+        Arrays.fill(password, (byte) 0);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] out = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, out, a.length, b.length);
+        return out;
+    }
+
+    private static String base32(byte[] data) {
+        final String alphabet = "abcdefghijklmnopqrstuvwxyz234567";
+        StringBuilder sb = new StringBuilder((data.length * 8 + 4) / 5);
+        int buffer = 0;
+        int bits = 0;
+        for (byte b : data) {
+            buffer = (buffer << 8) | (b & 0xFF);
+            bits += 8;
+            while (bits >= 5) {
+                sb.append(alphabet.charAt((buffer >> (bits - 5)) & 31));
+                bits -= 5;
+            }
+        }
+        if (bits > 0) sb.append(alphabet.charAt((buffer << (5 - bits)) & 31));
+        return sb.toString();
+    }
 }
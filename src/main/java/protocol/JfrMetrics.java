@@ -0,0 +1,155 @@
+package protocol;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.Closeable;
+
+/**
+ * JfrMetrics records like {@link SimpleMetrics} and also emits JDK Flight Recorder events,
+ * so the protocol can be observed with a recording ({@code -XX:StartFlightRecording} or
+ * {@code jcmd <pid> JFR.start}) and no external agent:
+ * <ul>
+ *   <li>{@code protocol.Latency}: one event per handshake and Tor control command;</li>
+ *   <li>{@code protocol.CryptoLatency}: one event per encryption or decryption. Disabled by
+ *       default because of its volume; enable it in the recording settings;</li>
+ *   <li>{@code protocol.Counters}: the counter totals, every second;</li>
+ *   <li>{@code protocol.Gauge}: every registered gauge (queue depths), every second.</li>
+ * </ul>
+ * Events are only built when a recording has them enabled. Close the instance to stop the
+ * periodic events.
+ */
+public class JfrMetrics extends SimpleMetrics implements Closeable {
+    private final Runnable periodic = this::emitPeriodic;
+
+    public JfrMetrics() {
+        FlightRecorder.addPeriodicEvent(CountersEvent.class, periodic);
+    }
+
+    @Override
+    public void record(Timer timer, long nanos) {
+        super.record(timer, nanos);
+        if (timer == Timer.ENCRYPT || timer == Timer.DECRYPT) {
+            CryptoLatencyEvent event = new CryptoLatencyEvent();
+            if (event.isEnabled()) {
+                event.operation = timer.name();
+                event.latency = nanos;
+                event.commit();
+            }
+        } else {
+            LatencyEvent event = new LatencyEvent();
+            if (event.isEnabled()) {
+                event.operation = timer.name();
+                event.latency = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    private void emitPeriodic() {
+        CountersEvent counters = new CountersEvent();
+        counters.messagesSent = getCount(Counter.MESSAGES_SENT);
+        counters.bytesSent = getCount(Counter.BYTES_SENT);
+        counters.messagesReceived = getCount(Counter.MESSAGES_RECEIVED);
+        counters.bytesReceived = getCount(Counter.BYTES_RECEIVED);
+        counters.replaysRejected = getCount(Counter.REPLAYS_REJECTED);
+        counters.handshakes = getCount(Counter.HANDSHAKES);
+        counters.handshakesResumed = getCount(Counter.HANDSHAKES_RESUMED);
+        counters.commit();
+        if (new GaugeEvent().isEnabled()) {
+            getGauges().forEach((name, value) -> {
+                GaugeEvent gauge = new GaugeEvent();
+                gauge.name = name;
+                gauge.value = value;
+                gauge.commit();
+            });
+        }
+    }
+
+    /**
+     * Stops the periodic events.
+     */
+    @Override
+    public void close() {
+        FlightRecorder.removePeriodicEvent(periodic);
+    }
+
+    @Name("protocol.Latency")
+    @Label("Protocol Operation Latency")
+    @Category("Cwtch Protocol")
+    @StackTrace(false)
+    static class LatencyEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("protocol.CryptoLatency")
+    @Label("Encryption Latency")
+    @Category("Cwtch Protocol")
+    @Description("One event per message encrypted or decrypted")
+    @Enabled(false)
+    @StackTrace(false)
+    static class CryptoLatencyEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("protocol.Counters")
+    @Label("Protocol Counters")
+    @Category("Cwtch Protocol")
+    @Period("1 s")
+    @StackTrace(false)
+    static class CountersEvent extends Event {
+        @Label("Messages Sent")
+        long messagesSent;
+
+        @Label("Bytes Sent")
+        @DataAmount
+        long bytesSent;
+
+        @Label("Messages Received")
+        long messagesReceived;
+
+        @Label("Bytes Received")
+        @DataAmount
+        long bytesReceived;
+
+        @Label("Replays Rejected")
+        long replaysRejected;
+
+        @Label("Handshakes")
+        long handshakes;
+
+        @Label("Resumed Handshakes")
+        long handshakesResumed;
+    }
+
+    @Name("protocol.Gauge")
+    @Label("Protocol Queue Depth")
+    @Category("Cwtch Protocol")
+    @StackTrace(false)
+    static class GaugeEvent extends Event {
+        @Label("Name")
+        String name;
+
+        @Label("Value")
+        long value;
+    }
+}
@@ -0,0 +1,111 @@
+package protocol;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics receives measurements from the protocol's hot paths: message and byte counters,
+ * replay rejections, latencies of encryption, decryption, handshakes and Tor control
+ * commands, and queue depths of channels and outbound queues.
+ *
+ * One implementation is installed for the whole process with {@link #install(Metrics)}.
+ * The default, {@link #NOOP}, records nothing, and instrumented code checks for it before
+ * reading the clock, so disabled metrics cost a field read per operation. Use
+ * {@link SimpleMetrics} for in-process counters and histograms, {@link JfrMetrics} to also
+ * emit JDK Flight Recorder events, or subclass this to feed another metrics library.
+ *
+ * Implementations must be thread-safe and should not block.
+ */
+public abstract class Metrics {
+    /** Monotonic counters. */
+    public enum Counter {
+        MESSAGES_SENT,
+        BYTES_SENT,
+        MESSAGES_RECEIVED,
+        BYTES_RECEIVED,
+        REPLAYS_REJECTED,
+        HANDSHAKES,
+        HANDSHAKES_RESUMED
+    }
+
+    /** Timed operations. */
+    public enum Timer {
+        ENCRYPT,
+        DECRYPT,
+        HANDSHAKE,
+        TOR_COMMAND
+    }
+
+    /** Records nothing. */
+    public static final Metrics NOOP = new Metrics() {
+        @Override
+        public void increment(Counter counter, long delta) {
+        }
+
+        @Override
+        public void record(Timer timer, long nanos) {
+        }
+
+        @Override
+        public void registerGauge(String name, LongSupplier value) {
+        }
+
+        @Override
+        public void unregisterGauge(String name) {
+        }
+    };
+
+    private static volatile Metrics current = NOOP;
+
+    /**
+     * Installs the process-wide metrics, or {@link #NOOP} if metrics is null. Gauges are
+     * registered when channels and queues are created, so install before opening them.
+     */
+    public static void install(Metrics metrics) {
+        current = metrics != null ? metrics : NOOP;
+    }
+
+    /**
+     * Returns the installed metrics.
+     */
+    public static Metrics get() {
+        return current;
+    }
+
+    /**
+     * Adds delta to a counter.
+     */
+    public abstract void increment(Counter counter, long delta);
+
+    /**
+     * Records the duration of one timed operation.
+     */
+    public abstract void record(Timer timer, long nanos);
+
+    /**
+     * Registers a gauge, e.g. a queue depth, that is read whenever metrics are reported.
+     * A gauge with the same name is replaced.
+     */
+    public abstract void registerGauge(String name, LongSupplier value);
+
+    public abstract void unregisterGauge(String name);
+
+    /**
+     * Returns a start time for {@link #stop}, or 0 without reading the clock when metrics
+     * are disabled.
+     */
+    static long start() {
+        return current == NOOP ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Records the time since start, unless start came from disabled metrics.
+     */
+    static void stop(Timer timer, long start) {
+        if (start != 0) current.record(timer, System.nanoTime() - start);
+    }
+
+    static void count(Counter counter, long delta) {
+        Metrics metrics = current;
+        if (metrics != NOOP) metrics.increment(counter, delta);
+    }
+}
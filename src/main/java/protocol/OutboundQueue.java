@@ -0,0 +1,367 @@
+package protocol;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * OutboundQueue is a durable store-and-forward queue of messages for one peer, so that
+ * messages to an offline contact survive until it reconnects.
+ *
+ * Messages are kept in an append-only log of memory-mapped segment files, named after the
+ * sequence number of their first message. Each message is stored exactly as it goes on the
+ * wire: a sealed {@link #MESSAGE} frame whose body is encrypted once, at enqueue time, under
+ * a queue key kept in the queue directory. Flushing the queue on reconnect
+ * ({@link #drainTo(PeerChannel)}) sends the queue key as a {@link GroupSession#KEY} message
+ * and then copies the segments to the socket as they are, with no re-encryption or
+ * re-framing. The peer opens the messages with a {@link GroupKeyring} and acknowledges them
+ * with {@link #ACK} "sequence" messages, which the sender passes to
+ * {@link #acknowledge(long)}.
+ *
+ * Acknowledgements are cumulative. Segments whose messages are all acknowledged are deleted,
+ * and the last segment is reused once it is fully acknowledged, so the log only holds
+ * pending messages. Messages live in the page cache rather than on the heap, so a queue can
+ * hold millions of them.
+ *
+ * Data written to the mapped segments survives a crash of the JVM. Protection against an
+ * operating system crash or power loss comes from fsync, which is batched: the log is
+ * forced to disk every {@link #setSyncBatchSize(int)} messages, on {@link #sync()} and on
+ * {@link #close()}. Delivery is at least once; a message can be sent again if the
+ * acknowledgement was lost, and the receiving keyring drops the duplicate.
+ *
+ * Instances are thread-safe; enqueueing waits while the queue is being drained.
+ */
+public class OutboundQueue implements Closeable {
+    public static final String MESSAGE = "queued-msg";
+    public static final String ACK = "queued-ack";
+    static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    // The queue key never rotates, so its messages all belong to one epoch
+    private static final long EPOCH = 1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Path dir;
+    private final int segmentSize;
+    private final String queueId;
+    private final byte[] rawKey;
+    private final byte[] header;
+    private final SessionCrypto crypto;
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private final FileChannel ackFile;
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(Long.BYTES);
+    private MappedByteBuffer tail;
+    private long nextSequence;
+    private long acknowledged = -1;
+    private int syncBatchSize = 64;
+    private int unsynced;
+
+    /**
+     * Opens the queue stored in dir, creating it if missing. Pending messages of an earlier
+     * run are recovered; a message torn by a crash during its append is discarded.
+     */
+    public OutboundQueue(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    OutboundQueue(Path dir, long segmentSize) throws IOException {
+        if (segmentSize < 1024 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = (int) segmentSize;
+        Files.createDirectories(dir);
+        String[] key = loadOrCreateKey(dir.resolve("queue.key"));
+        this.queueId = key[0];
+        this.rawKey = Base64.getDecoder().decode(key[1]);
+        this.header = GroupSession.header(queueId);
+        this.crypto = new SessionCrypto(new SecretKeySpec(rawKey, "AES"));
+
+        this.ackFile = FileChannel.open(dir.resolve("queue.ack"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (ackFile.size() >= Long.BYTES) {
+            ackFile.read(ackBuffer, 0);
+            acknowledged = ackBuffer.flip().getLong();
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        if (segments.isEmpty()) {
+            openTail(acknowledged + 1);
+        } else {
+            recoverTail();
+        }
+        Metrics.get().registerGauge("outbound-queue-" + queueId + ".pending", this::size);
+    }
+
+    /**
+     * Sets after how many enqueued messages the log is forced to disk (default 64).
+     */
+    public synchronized void setSyncBatchSize(int syncBatchSize) {
+        if (syncBatchSize < 1) throw new IllegalArgumentException("syncBatchSize must be positive");
+        this.syncBatchSize = syncBatchSize;
+    }
+
+    public String getQueueId() {
+        return queueId;
+    }
+
+    /**
+     * Returns the number of messages not yet acknowledged.
+     */
+    public synchronized long size() {
+        return nextSequence - acknowledged - 1;
+    }
+
+    /**
+     * Returns the sequence number the next enqueued message will get.
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Encrypts and frames a message and appends it to the log. Returns its sequence number.
+     */
+    public synchronized long enqueue(String type, String plaintext) throws IOException {
+        requireOpen();
+        long counter = nextSequence;
+        byte[] body = GroupSession.seal(crypto, header, EPOCH, counter, type, plaintext);
+        int length = FrameCodec.encodedLength(MESSAGE, counter, body.length);
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Message of " + length + " bytes does not fit in a queue segment");
+        }
+        if (tail.remaining() < length) {
+            rollTail(counter);
+        }
+        int start = tail.position();
+        FrameCodec.writeHeader(tail, FrameCodec.FLAG_SEALED, MESSAGE, counter, body.length);
+        // The length is written last, so a crash mid-append leaves a zero length behind
+        tail.putInt(start, 0);
+        tail.put(body);
+        tail.putInt(start, length - FrameCodec.LENGTH_FIELD_SIZE);
+        nextSequence++;
+        if (++unsynced >= syncBatchSize) {
+            sync();
+        }
+        return counter;
+    }
+
+    /**
+     * Acknowledges every message up to and including sequence, and compacts the log.
+     */
+    public synchronized void acknowledge(long sequence) throws IOException {
+        requireOpen();
+        sequence = Math.min(sequence, nextSequence - 1);
+        if (sequence <= acknowledged) return;
+        acknowledged = sequence;
+        ackBuffer.clear();
+        ackBuffer.putLong(acknowledged).flip();
+        ackFile.write(ackBuffer, 0);
+
+        // Every message of a segment is acknowledged once the next segment starts after it
+        long tailBase = segments.lastKey();
+        List<Long> done = new ArrayList<>();
+        for (Map.Entry<Long, Path> e : segments.headMap(tailBase).entrySet()) {
+            if (segments.higherKey(e.getKey()) <= acknowledged + 1) done.add(e.getKey());
+        }
+        for (Long base : done) {
+            Files.deleteIfExists(segments.remove(base));
+        }
+        if (acknowledged == nextSequence - 1 && tail.position() > 0) {
+            // Reuse the tail from the start; nothing in it is needed any more
+            int used = tail.position();
+            ByteBuffer clear = tail.duplicate().position(0);
+            byte[] zeros = new byte[Math.min(used, 64 * 1024)];
+            while (clear.position() < used) {
+                clear.put(zeros, 0, Math.min(zeros.length, used - clear.position()));
+            }
+            tail.position(0);
+        }
+    }
+
+    /**
+     * Sends every unacknowledged message to the channel: first the queue key, then the
+     * stored frames straight from the segments. The messages stay queued until they are
+     * acknowledged. Returns the number of messages sent.
+     */
+    public synchronized long drainTo(PeerChannel channel) throws Exception {
+        requireOpen();
+        long pending = size();
+        if (pending == 0) return 0;
+        channel.send(GroupSession.KEY, queueId + "," + EPOCH + "," + Base64.getEncoder().encodeToString(rawKey));
+        Path tailFile = segments.lastEntry().getValue();
+        Frame frame = new Frame();
+        for (Path file : new ArrayList<>(segments.values())) {
+            ByteBuffer segment;
+            int end;
+            if (file.equals(tailFile)) {
+                segment = tail.duplicate();
+                end = tail.position();
+            } else {
+                try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+                    segment = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+                }
+                end = endOfLog(segment);
+            }
+            int start = firstAfter(segment, end, acknowledged, frame);
+            if (start < end) {
+                channel.sendFrames(segment.limit(end).position(start));
+            }
+        }
+        Metrics.count(Metrics.Counter.MESSAGES_SENT, pending);
+        return pending;
+    }
+
+    /**
+     * Forces appended messages and the acknowledgement position to disk.
+     */
+    public synchronized void sync() throws IOException {
+        requireOpen();
+        tail.force();
+        ackFile.force(false);
+        unsynced = 0;
+    }
+
+    /**
+     * Syncs and closes the queue.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (tail == null) return;
+        Metrics.get().unregisterGauge("outbound-queue-" + queueId + ".pending");
+        sync();
+        tail = null;
+        ackFile.close();
+    }
+
+    private void requireOpen() throws IOException {
+        if (tail == null) throw new IOException("Queue is closed: " + dir);
+    }
+
+    /**
+     * Maps the last segment and finds the end of its complete messages. If an append was
+     * torn by a crash, its leftovers could be mistaken for messages after later appends,
+     * so the queue continues in a fresh segment instead.
+     */
+    private void recoverTail() throws IOException {
+        Map.Entry<Long, Path> last = segments.lastEntry();
+        tail = map(last.getValue());
+        int end = endOfLog(tail);
+        long next = last.getKey();
+        Frame frame = new Frame();
+        ByteBuffer scan = tail.duplicate().position(0).limit(end);
+        while (scan.hasRemaining() && FrameCodec.decode(scan, frame)) {
+            next = frame.getCounter() + 1;
+        }
+        nextSequence = Math.max(next, acknowledged + 1);
+        tail.position(end);
+        // A torn append always leaves its version byte behind a zero length
+        boolean torn = end + FrameCodec.LENGTH_FIELD_SIZE < segmentSize
+                && tail.get(end + FrameCodec.LENGTH_FIELD_SIZE) != 0;
+        if (torn && end == 0) {
+            try (FileChannel fc = FileChannel.open(last.getValue(), StandardOpenOption.WRITE)) {
+                fc.truncate(0);
+            }
+            tail = map(last.getValue());
+        } else if (torn) {
+            openTail(nextSequence);
+        }
+    }
+
+    private void rollTail(long base) throws IOException {
+        tail.force();
+        openTail(base);
+    }
+
+    private void openTail(long base) throws IOException {
+        Path file = dir.resolve(String.format("%020d", base) + SEGMENT_SUFFIX);
+        tail = map(file);
+        segments.put(base, file);
+        nextSequence = base;
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Mapping beyond the end grows the file; the new space reads as zeros
+            return fc.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * Returns the offset just past the last complete frame of a segment. The log ends at a
+     * zero length field or at a length that runs past the segment.
+     */
+    private static int endOfLog(ByteBuffer segment) {
+        int pos = 0;
+        int limit = segment.capacity();
+        while (limit - pos >= FrameCodec.LENGTH_FIELD_SIZE) {
+            int length = segment.getInt(pos);
+            if (length <= 0 || length > limit - pos - FrameCodec.LENGTH_FIELD_SIZE) break;
+            pos += FrameCodec.LENGTH_FIELD_SIZE + length;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the offset of the first frame whose counter is above acknowledged.
+     */
+    private static int firstAfter(ByteBuffer segment, int end, long acknowledged, Frame frame) {
+        ByteBuffer scan = segment.duplicate().position(0).limit(end);
+        while (scan.hasRemaining()) {
+            int start = scan.position();
+            FrameCodec.decode(scan, frame);
+            if (frame.getCounter() > acknowledged) return start;
+        }
+        return end;
+    }
+
+    /**
+     * Reads "queueId\nkey" from the key file, or creates one readable only by the owner.
+     */
+    private static String[] loadOrCreateKey(Path file) throws IOException {
+        if (Files.exists(file)) {
+            String[] lines = Files.readString(file, StandardCharsets.US_ASCII).trim().split("\n");
+            if (lines.length != 2) throw new IOException("Malformed queue key file: " + file);
+            return lines;
+        }
+        byte[] id = new byte[16];
+        byte[] key = new byte[32];
+        RANDOM.nextBytes(id);
+        RANDOM.nextBytes(key);
+        String[] fields = {Base64.getUrlEncoder().withoutPadding().encodeToString(id),
+                Base64.getEncoder().encodeToString(key)};
+        Path tmp = FileSystems.getDefault().supportedFileAttributeViews().contains("posix")
+                ? Files.createTempFile(file.getParent(), ".queue", ".tmp",
+                        PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+                : Files.createTempFile(file.getParent(), ".queue", ".tmp");
+        try {
+            Files.writeString(tmp, fields[0] + "\n" + fields[1] + "\n", StandardCharsets.US_ASCII);
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return fields;
+    }
+}
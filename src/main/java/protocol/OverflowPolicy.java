@@ -0,0 +1,23 @@
+package protocol;
+
+/**
+ * OverflowPolicy decides what {@link PeerChannel#sendAsync(String, String)} does when the
+ * channel's send queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait for the writer to make room (the default). Backpressure reaches the sending thread.
+     */
+    BLOCK,
+
+    /**
+     * Fail the new message's future immediately with an IOException.
+     */
+    FAIL_FAST,
+
+    /**
+     * Fail the oldest queued message's future with an IOException and queue the new one,
+     * for traffic where only the latest messages matter, such as presence or typing status.
+     */
+    DROP_OLDEST
+}
@@ -2,51 +2,847 @@ package protocol;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.crypto.SecretKey;
 
 /**
  * PeerChannel manages a peer-to-peer connection over a socket (e.g., via Tor hidden service),
  * handling sending and receiving ProtocolMessages with encryption.
+ *
+ * Messages are exchanged as binary frames by default (see {@link FrameCodec});
+ * the legacy line-based text format can be selected with {@link WireFormat#TEXT}.
+ *
+ * A PeerChannel either owns a blocking socket, or is a thin synchronous adapter over a
+ * session hosted by a {@link PeerEngine}.
+ *
+ * By default every send is written to the socket immediately. A {@link FlushPolicy} can
+ * batch messages so that several frames leave in one socket write, which over Tor means
+ * fewer, fuller cells. {@link #sendAll(List)} writes a whole batch in one go.
+ *
+ * {@link #sendAsync(String, String)} does not wait for the socket: messages go into a bounded
+ * queue that a single writer task drains, coalescing everything queued into one write.
+ * Any number of threads may share a channel this way; enqueueing takes no lock, and what
+ * happens when the queue is full is set by an {@link OverflowPolicy}.
+ *
+ * {@link #send(String, ByteBuffer)} and {@link #receive(Frame)} work on caller-supplied buffers
+ * (for example from a {@link BufferPool}) and on the channel's own reused buffers, so a
+ * binary socket channel sends and receives messages without allocating per message.
  */
 public class PeerChannel {
+    /** Keepalive request; answered automatically by {@link #receive()}. */
+    public static final String PING = "ping";
+    /** Keepalive reply; consumed by {@link #receive()}. */
+    public static final String PONG = "pong";
+    /** Default capacity of the {@link #sendAsync(String, String)} queue. */
+    public static final int DEFAULT_SEND_QUEUE_CAPACITY = 1024;
+    private static final Object END_OF_STREAM = new Object();
+    private static final AtomicLong IDS = new AtomicLong();
+    // The writer flushes at least this often while draining a long queue
+    private static final int WRITE_BATCH_BYTES = 64 * 1024;
+
     private final Socket socket;
-    private final BufferedReader in;
-    private final PrintWriter out;
-    private final SecretKey sessionKey;
-    private long sendCounter = 0;
-    private long recvCounter = 0;
+    private final WireFormat wireFormat;
+    private final SessionFramer framer;
+    // Text format
+    private BufferedReader reader;
+    private PrintWriter writer;
+    // Binary format
+    private DataInputStream in;
+    private OutputStream out;
+    private ByteBuffer sendBuffer;
+    private ByteBuffer recvBuffer;
+    private final Frame frame = new Frame();
+    private volatile ReceivePipeline pipeline;
+    // Outbound batching, guarded by sendLock
+    private final Object sendLock = new Object();
+    private volatile long lastReceivedNanos = System.nanoTime();
+    private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+    private int batchedMessages;
+    private int batchedBytes;
+    private long batchId;
+    private IOException deferredFailure;
+    // Engine-backed channels
+    private PeerSession session;
+    private BlockingQueue<Object> inbox;
+    // Asynchronous sends; slots bounds the queue and one writer task at a time drains it
+    private final Queue<PendingSend> sendQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writerScheduled = new AtomicBoolean();
+    private volatile Semaphore sendSlots = new Semaphore(DEFAULT_SEND_QUEUE_CAPACITY);
+    private volatile int sendQueueCapacity = DEFAULT_SEND_QUEUE_CAPACITY;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile boolean closed;
+    // Prefix of this channel's queue depth gauges
+    private final String metricsName = "peer-channel-" + IDS.incrementAndGet();
+    private final AtomicBoolean gaugesRegistered = new AtomicBoolean();
 
+    /**
+     * Creates a binary channel that uses the session key in both directions. Prefer
+     * {@link #PeerChannel(Socket, HandshakeResult)}, which gives each direction its own key.
+     */
     public PeerChannel(Socket socket, SecretKey sessionKey) throws IOException {
+        this(socket, sessionKey, WireFormat.BINARY);
+    }
+
+    public PeerChannel(Socket socket, SecretKey sessionKey, WireFormat wireFormat) throws IOException {
+        this(socket, sessionKey, CipherSuite.AES_256_GCM, wireFormat);
+    }
+
+    /**
+     * Creates a binary channel with the per-direction keys and cipher suite of a completed
+     * handshake.
+     */
+    public PeerChannel(Socket socket, HandshakeResult handshake) throws IOException {
+        this(socket, new SessionFramer(handshake), WireFormat.BINARY);
+    }
+
+    public PeerChannel(Socket socket, SecretKey sessionKey, CipherSuite suite, WireFormat wireFormat)
+            throws IOException {
+        this(socket, new SessionFramer(sessionKey, suite), wireFormat);
+    }
+
+    private PeerChannel(Socket socket, SessionFramer framer, WireFormat wireFormat) throws IOException {
         this.socket = socket;
-        this.sessionKey = sessionKey;
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.framer = framer;
+        this.wireFormat = wireFormat;
+        if (wireFormat == WireFormat.TEXT) {
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.writer = new PrintWriter(socket.getOutputStream(), false);
+        } else {
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = socket.getOutputStream();
+            this.sendBuffer = ByteBuffer.allocate(4096);
+            this.recvBuffer = ByteBuffer.allocate(4096);
+        }
+        registerGauges();
+    }
+
+    /**
+     * Creates a channel whose I/O is performed by the given engine. Received messages are
+     * queued until {@link #receive()} is called.
+     */
+    public PeerChannel(PeerEngine engine, SocketChannel channel, SecretKey sessionKey) throws IOException {
+        this(engine, channel, new SessionFramer(sessionKey, CipherSuite.AES_256_GCM));
+    }
+
+    /**
+     * Creates an engine-backed channel with the per-direction keys and cipher suite of a
+     * completed handshake.
+     */
+    public PeerChannel(PeerEngine engine, SocketChannel channel, HandshakeResult handshake) throws IOException {
+        this(engine, channel, new SessionFramer(handshake));
+    }
+
+    private PeerChannel(PeerEngine engine, SocketChannel channel, SessionFramer framer) throws IOException {
+        this.socket = channel.socket();
+        this.framer = null;
+        this.wireFormat = WireFormat.BINARY;
+        BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        this.inbox = queue;
+        // Before the session starts, so an early close cannot unregister them first
+        registerGauges();
+        this.session = engine.register(channel, framer, new PeerListener() {
+            @Override
+            public void onMessage(PeerSession session, ProtocolMessage message) {
+                queue.add(message);
+            }
+
+            @Override
+            public void onClose(PeerSession session, Throwable cause) {
+                unregisterGauges();
+                queue.add(cause != null ? cause : END_OF_STREAM);
+            }
+        });
+    }
+
+    private void registerGauges() {
+        gaugesRegistered.set(true);
+        Metrics metrics = Metrics.get();
+        metrics.registerGauge(metricsName + ".send-queue",
+                () -> getSendQueueDepth() + (session != null ? session.queuedWrites() : batchedMessages));
+        metrics.registerGauge(metricsName + ".receive-queue",
+                () -> session != null ? inbox.size() : pipeline != null ? pipeline.inFlight() : 0);
+    }
+
+    /**
+     * Drops the queue depth gauges, once the channel is closed or the peer has gone.
+     */
+    private void unregisterGauges() {
+        if (!gaugesRegistered.compareAndSet(true, false)) return;
+        Metrics metrics = Metrics.get();
+        metrics.unregisterGauge(metricsName + ".send-queue");
+        metrics.unregisterGauge(metricsName + ".receive-queue");
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * Returns the cipher suite that encrypts this channel's messages.
+     */
+    public CipherSuite getCipherSuite() {
+        return session != null ? session.getCipherSuite() : framer.suite();
+    }
+
+    /**
+     * Sets how far received counters may be reordered (see {@link ReplayWindow}). The default
+     * of 0 requires strictly in-order counters. Set before the first receive.
+     */
+    public void setReplayWindowSize(int size) {
+        if (session != null) {
+            session.setReplayWindowSize(size);
+        } else {
+            framer.setReplayWindow(new ReplayWindow(size));
+        }
+    }
+
+    /**
+     * Sets when the channel moves its sending side to a fresh key; the default is
+     * {@link RekeyPolicy#DEFAULT}. The peer follows automatically. The text wire format
+     * never rekeys.
+     */
+    public void setRekeyPolicy(RekeyPolicy policy) {
+        if (session != null) {
+            session.setRekeyPolicy(policy);
+            return;
+        }
+        synchronized (sendLock) {
+            framer.setRekeyPolicy(policy);
+        }
+    }
+
+    /**
+     * Moves the sending side to a fresh key now, whatever the policy, unless nothing has been
+     * sent under the current key yet. Messages already sent are still accepted by the peer.
+     * Binary format only.
+     */
+    public void rekey() {
+        if (wireFormat != WireFormat.BINARY) throw new IllegalStateException("Only the binary wire format rekeys");
+        if (session != null) {
+            session.rekey();
+            return;
+        }
+        synchronized (sendLock) {
+            framer.rekey();
+        }
+    }
+
+    /**
+     * Returns the key epoch of the next message sent: 0 while the session key is in use.
+     */
+    public long getSendEpoch() {
+        if (session != null) return session.getSendEpoch();
+        synchronized (sendLock) {
+            return framer.sendEpoch();
+        }
+    }
+
+    /**
+     * Decrypts received frames on the given executor, up to depth frames ahead of the caller
+     * of {@link #receive()}, which still gets messages in counter order. Worth enabling on
+     * high-volume sessions where a single core cannot keep up with decryption.
+     *
+     * Binary socket mode only. Call before the first receive; a background thread starts
+     * reading from the socket immediately.
+     */
+    public synchronized void enablePipelinedReceive(Executor workers, int depth) {
+        requireBinarySocket();
+        if (pipeline != null) {
+            throw new IllegalStateException("Pipelined receive already enabled");
+        }
+        ReceivePipeline p = new ReceivePipeline(in, framer, workers, depth);
+        p.start();
+        pipeline = p;
+    }
+
+    /**
+     * Sets the flush policy for subsequent sends. Any batch in progress is flushed first.
+     * Has no effect on engine-backed channels, whose writes are always coalesced.
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) throws IOException {
+        synchronized (sendLock) {
+            flushLocked();
+            this.flushPolicy = flushPolicy;
+        }
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
     }
 
     /**
      * Sends a ProtocolMessage (encrypts payload).
      */
     public void send(String type, String plaintext) throws Exception {
-        String encrypted = SessionCrypto.encrypt(plaintext, sessionKey);
-        ProtocolMessage msg = new ProtocolMessage(type, encrypted, sendCounter++);
-        out.println(msg.serialize());
+        if (session != null) {
+            session.send(type, plaintext);
+            return;
+        }
+        synchronized (sendLock) {
+            append(type, plaintext);
+            if (flushPolicy.isImmediate() || flushPolicy.shouldFlush(batchedMessages, batchedBytes)) {
+                flushLocked();
+            } else if (batchedMessages == 1 && flushPolicy.getMaxLingerMicros() > 0) {
+                scheduleLingerFlush();
+            }
+        }
+    }
+
+    /**
+     * Sends the remaining bytes of plaintext as a message, encrypting them straight into
+     * the outgoing batch. The buffer is consumed and may be reused once this returns.
+     */
+    public void send(String type, ByteBuffer plaintext) throws Exception {
+        if (session != null) {
+            session.send(type, plaintext);
+            return;
+        }
+        synchronized (sendLock) {
+            append(0, type, plaintext);
+            if (flushPolicy.isImmediate() || flushPolicy.shouldFlush(batchedMessages, batchedBytes)) {
+                flushLocked();
+            } else if (batchedMessages == 1 && flushPolicy.getMaxLingerMicros() > 0) {
+                scheduleLingerFlush();
+            }
+        }
+    }
+
+    /**
+     * Sets the capacity of the {@link #sendAsync(String, String)} queue and what happens when
+     * it is full. Defaults to {@link #DEFAULT_SEND_QUEUE_CAPACITY} and {@link OverflowPolicy#BLOCK}.
+     * Call while nothing is queued.
+     */
+    public void setSendQueue(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) throw new IllegalArgumentException("Send queue capacity must be at least 1");
+        if (!sendQueue.isEmpty()) throw new IllegalStateException("Send queue is not empty");
+        this.sendSlots = new Semaphore(capacity);
+        this.sendQueueCapacity = capacity;
+        this.overflowPolicy = policy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Returns the number of messages waiting in the {@link #sendAsync(String, String)} queue.
+     * The same depth, plus any batched messages, is reported as the channel's
+     * {@code send-queue} gauge (see {@link Metrics}).
+     */
+    public int getSendQueueDepth() {
+        return sendQueueCapacity - sendSlots.availablePermits();
+    }
+
+    /**
+     * Queues a message for encryption and sending by the channel's writer and returns at
+     * once, or, under {@link OverflowPolicy#BLOCK}, once there is room in the queue. The
+     * future completes when the message has been written to the socket (or handed to the
+     * engine), or fails with the IOException that stopped it. Messages are sent in the
+     * order they were queued. Safe to call from any number of threads.
+     */
+    public CompletableFuture<Void> sendAsync(String type, String plaintext) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("Channel is closed"));
+            return future;
+        }
+        Semaphore slots = sendSlots;
+        if (!slots.tryAcquire()) {
+            switch (overflowPolicy) {
+                case FAIL_FAST:
+                    future.completeExceptionally(new IOException("Send queue is full"));
+                    return future;
+                case DROP_OLDEST:
+                    while (!slots.tryAcquire()) {
+                        PendingSend oldest = sendQueue.poll();
+                        if (oldest != null) {
+                            slots.release();
+                            oldest.future.completeExceptionally(new IOException("Dropped from a full send queue"));
+                        } else {
+                            Thread.onSpinWait();
+                        }
+                    }
+                    break;
+                default:
+                    try {
+                        slots.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        future.completeExceptionally(e);
+                        return future;
+                    }
+            }
+        }
+        sendQueue.add(new PendingSend(type, plaintext, future));
+        if (writerScheduled.compareAndSet(false, true)) {
+            Writer.EXECUTOR.execute(this::runWriter);
+        }
+        return future;
+    }
+
+    private void runWriter() {
+        do {
+            drainSendQueue();
+            writerScheduled.set(false);
+            // A sender may have queued after the last poll but before the flag was cleared
+        } while (!sendQueue.isEmpty() && writerScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Sends everything in the send queue. Messages are polled under sendLock, so concurrent
+     * drainers (the writer and close) keep them in queue order.
+     */
+    private void drainSendQueue() {
+        List<PendingSend> batch = new ArrayList<>();
+        while (!sendQueue.isEmpty()) {
+            IOException failure = null;
+            synchronized (sendLock) {
+                PendingSend pending;
+                while (failure == null && (session != null || batchedBytes < WRITE_BATCH_BYTES)
+                        && (pending = sendQueue.poll()) != null) {
+                    sendSlots.release();
+                    try {
+                        if (session != null) {
+                            session.send(pending.type, pending.plaintext);
+                        } else {
+                            append(pending.type, pending.plaintext);
+                        }
+                        batch.add(pending);
+                    } catch (GeneralSecurityException e) {
+                        pending.future.completeExceptionally(e);
+                    } catch (IOException e) {
+                        pending.future.completeExceptionally(e);
+                        failure = e;
+                    }
+                }
+                if (failure == null && session == null) {
+                    try {
+                        flushLocked();
+                    } catch (IOException e) {
+                        // Part of the batch may have been written; nothing more can follow it
+                        deferredFailure = e;
+                        failure = e;
+                    }
+                }
+            }
+            for (PendingSend pending : batch) {
+                if (failure == null) {
+                    pending.future.complete(null);
+                } else {
+                    pending.future.completeExceptionally(failure);
+                }
+            }
+            batch.clear();
+            if (failure != null) {
+                failQueued(failure);
+                return;
+            }
+        }
+    }
+
+    private void failQueued(IOException failure) {
+        PendingSend pending;
+        while ((pending = sendQueue.poll()) != null) {
+            sendSlots.release();
+            pending.future.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Sends a payload the caller has already encrypted under a key of its own, for example a
+     * per-transfer key (see {@link FileTransfer}). The frame is marked sealed and the payload
+     * is not encrypted again; the counter is the caller's and does not use a session counter.
+     * The remaining bytes of sealed are consumed. Binary socket mode only.
+     */
+    public void sendSealed(String type, long counter, ByteBuffer sealed) throws IOException {
+        requireBinarySocket();
+        synchronized (sendLock) {
+            if (deferredFailure != null) throw deferredFailure;
+            int length = FrameCodec.encodedLength(type, counter, sealed.remaining());
+            ensureSendCapacity(length);
+            FrameCodec.writeHeader(sendBuffer, FrameCodec.FLAG_SEALED, type, counter, sealed.remaining());
+            sendBuffer.put(sealed);
+            batchedBytes += length;
+            batchedMessages++;
+            Metrics.count(Metrics.Counter.MESSAGES_SENT, 1);
+            Metrics.count(Metrics.Counter.BYTES_SENT, length);
+            if (flushPolicy.isImmediate() || flushPolicy.shouldFlush(batchedMessages, batchedBytes)) {
+                flushLocked();
+            } else if (batchedMessages == 1 && flushPolicy.getMaxLingerMicros() > 0) {
+                scheduleLingerFlush();
+            }
+        }
+    }
+
+    /**
+     * Writes frames that are already encoded and sealed, e.g. from an {@link OutboundQueue},
+     * after anything batched. The frames are copied to the socket in bounded chunks, so a
+     * memory-mapped region is never copied to the heap as a whole. The remaining bytes of
+     * frames are consumed.
+     */
+    void sendFrames(ByteBuffer frames) throws IOException {
+        requireBinarySocket();
+        synchronized (sendLock) {
+            flushLocked();
+            Metrics.count(Metrics.Counter.BYTES_SENT, frames.remaining());
+            byte[] chunk = new byte[Math.min(frames.remaining(), 64 * 1024)];
+            while (frames.hasRemaining()) {
+                int n = Math.min(chunk.length, frames.remaining());
+                frames.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+            out.flush();
+        }
     }
 
     /**
-     * Receives the next ProtocolMessage (decrypts payload).
+     * Derives a key from the session key, e.g. for sealed payloads.
+     */
+    SecretKey deriveKey(byte[] salt, byte[] info) {
+        requireBinarySocket();
+        return framer.deriveKey(salt, info);
+    }
+
+    private void requireBinarySocket() {
+        if (session != null || wireFormat != WireFormat.BINARY) {
+            throw new IllegalStateException("Only supported on binary socket channels");
+        }
+    }
+
+    /**
+     * Encrypts and frames a batch of messages into one buffer and writes it with a single
+     * socket write, together with anything already batched. Each message's payload is the
+     * plaintext to send; its counter is ignored.
+     */
+    public void sendAll(List<ProtocolMessage> messages) throws Exception {
+        if (session != null) {
+            for (ProtocolMessage msg : messages) {
+                session.send(msg.getType(), msg.getPayload());
+            }
+            return;
+        }
+        synchronized (sendLock) {
+            for (ProtocolMessage msg : messages) {
+                append(msg.getType(), msg.getPayload());
+            }
+            flushLocked();
+        }
+    }
+
+    /**
+     * Writes any batched messages to the socket.
+     */
+    public void flush() throws IOException {
+        if (session != null) return;
+        synchronized (sendLock) {
+            flushLocked();
+        }
+    }
+
+    /**
+     * Sends a message on a logical stream (see {@link StreamMultiplexer}). It is written with
+     * anything batched once flush is true or the batch has grown large. Binary format only.
+     */
+    void sendOnStream(long streamId, String type, String plaintext, boolean flush)
+            throws IOException, GeneralSecurityException {
+        if (wireFormat != WireFormat.BINARY) throw new IllegalStateException("Streams need the binary wire format");
+        if (session != null) {
+            session.send(streamId, type, plaintext);
+            return;
+        }
+        synchronized (sendLock) {
+            append(streamId, type, plaintext);
+            if (flush || batchedBytes >= WRITE_BATCH_BYTES) {
+                flushLocked();
+            }
+        }
+    }
+
+    private void append(String type, String plaintext) throws IOException, GeneralSecurityException {
+        append(0, type, plaintext);
+    }
+
+    private void append(long streamId, String type, String plaintext) throws IOException, GeneralSecurityException {
+        append(streamId, type, ByteBuffer.wrap(plaintext.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void append(long streamId, String type, ByteBuffer data) throws IOException, GeneralSecurityException {
+        if (deferredFailure != null) throw deferredFailure;
+        if (wireFormat == WireFormat.TEXT) {
+            long counter = framer.nextSendCounter();
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            byte[] encrypted = framer.textSendCrypto().encrypt(counter, bytes);
+            String line = new ProtocolMessage(type, Base64.getEncoder().encodeToString(encrypted), counter).serialize();
+            writer.println(line);
+            batchedBytes += line.length() + 1;
+            Metrics.count(Metrics.Counter.BYTES_SENT, line.length() + 1);
+        } else {
+            int length = framer.sealedLength(type, streamId, data.remaining());
+            ensureSendCapacity(length);
+            framer.seal(type, streamId, data, sendBuffer);
+            batchedBytes += length;
+            Metrics.count(Metrics.Counter.BYTES_SENT, length);
+        }
+        batchedMessages++;
+        Metrics.count(Metrics.Counter.MESSAGES_SENT, 1);
+    }
+
+    private void ensureSendCapacity(int length) {
+        if (sendBuffer.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(sendBuffer.capacity() * 2, sendBuffer.position() + length));
+            sendBuffer.flip();
+            bigger.put(sendBuffer);
+            sendBuffer = bigger;
+        }
+    }
+
+    private void flushLocked() throws IOException {
+        if (deferredFailure != null) throw deferredFailure;
+        if (batchedMessages == 0) return;
+        batchedMessages = 0;
+        batchedBytes = 0;
+        batchId++;
+        if (wireFormat == WireFormat.TEXT) {
+            writer.flush();
+            if (writer.checkError()) throw new IOException("Failed to write to peer");
+        } else {
+            out.write(sendBuffer.array(), 0, sendBuffer.position());
+            out.flush();
+            sendBuffer.clear();
+        }
+    }
+
+    private void scheduleLingerFlush() {
+        long id = batchId;
+        Linger.SCHEDULER.schedule(() -> {
+            synchronized (sendLock) {
+                if (batchId != id || deferredFailure != null) return;
+                try {
+                    flushLocked();
+                } catch (IOException e) {
+                    // Reported to the next caller of send or flush
+                    deferredFailure = e;
+                }
+            }
+        }, flushPolicy.getMaxLingerMicros(), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Receives the next ProtocolMessage (decrypts payload). Sealed frames are returned with
+     * their body still encrypted (see {@link ProtocolMessage#isSealed()}).
+     * Returns null once the peer has closed the connection.
+     *
+     * Keepalive pings are answered here and, like pongs, not returned to the caller.
      */
     public ProtocolMessage receive() throws Exception {
-        String line = in.readLine();
-        if (line == null) return null;
-        ProtocolMessage msg = ProtocolMessage.deserialize(line);
-        if (msg.getCounter() != recvCounter++) {
-            throw new IOException("Message counter mismatch (possible replay attack)");
+        while (true) {
+            ProtocolMessage msg = receiveNext();
+            if (msg == null) {
+                unregisterGauges();
+                return null;
+            }
+            lastReceivedNanos = System.nanoTime();
+            // Engine sessions count their own messages
+            if (session == null) Metrics.count(Metrics.Counter.MESSAGES_RECEIVED, 1);
+            if (msg.isSealed()) return msg;
+            if (PING.equals(msg.getType())) {
+                send(PONG, "");
+                flush();
+            } else if (!PONG.equals(msg.getType())) {
+                return msg;
+            }
+        }
+    }
+
+    /**
+     * Receives the next message into frame without allocating: the message is decrypted in
+     * place in the channel's receive buffer, and the frame's payload is a view of the
+     * plaintext that stays valid until the next receive. Sealed frames keep their encrypted
+     * payload. Keepalives are handled as in {@link #receive()}. Returns false once the peer
+     * has closed the connection.
+     *
+     * Binary socket mode only, and not with pipelined receive.
+     */
+    public boolean receive(Frame frame) throws Exception {
+        requireBinarySocket();
+        if (pipeline != null) throw new IllegalStateException("Not supported with pipelined receive");
+        while (true) {
+            if (!readFrame(frame)) {
+                unregisterGauges();
+                return false;
+            }
+            lastReceivedNanos = System.nanoTime();
+            Metrics.count(Metrics.Counter.MESSAGES_RECEIVED, 1);
+            if (frame.isSealed()) return true;
+            framer.openInPlace(frame);
+            if (PING.equals(frame.getType())) {
+                send(PONG, "");
+                flush();
+            } else if (!PONG.equals(frame.getType())) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Sends a keepalive ping. The peer answers from its receive loop; the answer shows up in
+     * {@link #getLastReceivedNanos()}.
+     */
+    public void ping() throws Exception {
+        send(PING, "");
+        flush();
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the last message of any kind was
+     * received, or at which the channel was created.
+     */
+    public long getLastReceivedNanos() {
+        return lastReceivedNanos;
+    }
+
+    private ProtocolMessage receiveNext() throws Exception {
+        if (session != null) {
+            Object item = inbox.take();
+            if (item == END_OF_STREAM) {
+                inbox.add(END_OF_STREAM);
+                return null;
+            }
+            if (item instanceof Throwable) {
+                inbox.add(item);
+                throw new IOException("Peer session failed", (Throwable) item);
+            }
+            return (ProtocolMessage) item;
+        }
+        if (wireFormat == WireFormat.TEXT) {
+            String line = reader.readLine();
+            if (line == null) return null;
+            Metrics.count(Metrics.Counter.BYTES_RECEIVED, line.length() + 1);
+            ProtocolMessage msg = ProtocolMessage.deserialize(line);
+            framer.checkReceiveCounter(msg.getCounter());
+            // Legacy peers use random IVs, so the nonce is not checked against the counter here
+            byte[] decrypted = framer.textReceiveCrypto().decrypt(-1, Base64.getDecoder().decode(msg.getPayload()));
+            framer.acceptReceiveCounter(msg.getCounter());
+            return new ProtocolMessage(msg.getType(), new String(decrypted, StandardCharsets.UTF_8), msg.getCounter());
+        }
+        if (pipeline != null) {
+            return pipeline.take();
+        }
+        if (!readFrame(frame)) return null;
+        if (frame.isSealed()) {
+            return sealedMessage(frame);
+        }
+        return framer.open(frame);
+    }
+
+    /**
+     * Copies a sealed frame into a message. Sealed frames carry their own counters, so they
+     * are not checked against the session's replay window.
+     */
+    static ProtocolMessage sealedMessage(Frame frame) {
+        ByteBuffer payload = frame.getPayload();
+        byte[] body = new byte[payload.remaining()];
+        payload.duplicate().get(body);
+        return new ProtocolMessage(frame.getType(), body, frame.getCounter(), frame.getStreamId());
+    }
+
+    /**
+     * Reads one complete binary frame from the socket into recvBuffer and decodes it into
+     * frame. Returns false on a clean end of stream.
+     */
+    private boolean readFrame(Frame frame) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (length < 0 || length > FrameCodec.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
         }
-        String decrypted = SessionCrypto.decrypt(msg.getPayload(), sessionKey);
-        return new ProtocolMessage(msg.getType(), decrypted, msg.getCounter());
+        int total = FrameCodec.LENGTH_FIELD_SIZE + length;
+        Metrics.count(Metrics.Counter.BYTES_RECEIVED, total);
+        if (recvBuffer.capacity() < total) {
+            recvBuffer = ByteBuffer.allocate(total);
+        }
+        recvBuffer.clear();
+        recvBuffer.putInt(length);
+        in.readFully(recvBuffer.array(), FrameCodec.LENGTH_FIELD_SIZE, length);
+        recvBuffer.position(0).limit(total);
+        if (!FrameCodec.decode(recvBuffer, frame)) {
+            throw new IOException("Incomplete frame");
+        }
+        return true;
     }
 
+    /**
+     * Closes the channel. Queued and batched messages are sent first.
+     */
     public void close() throws IOException {
-        socket.close();
+        closed = true;
+        unregisterGauges();
+        drainSendQueue();
+        if (session != null) {
+            session.close();
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException ignored) {
+            // The peer may already be gone
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+            socket.close();
+        }
+    }
+
+    private static final class PendingSend {
+        final String type;
+        final String plaintext;
+        final CompletableFuture<Void> future;
+
+        PendingSend(String type, String plaintext, CompletableFuture<Void> future) {
+            this.type = type;
+            this.plaintext = plaintext;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Threads that drain send queues, shared by all channels. A channel uses at most one at
+     * a time.
+     */
+    private static final class Writer {
+        static final ExecutorService EXECUTOR = Threads.newThreadPerTaskExecutor("peer-channel-writer");
+    }
+
+    /**
+     * Timer shared by all channels for linger-based flushes.
+     */
+    private static final class Linger {
+        static final ScheduledExecutorService SCHEDULER =
+                Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("peer-channel-linger"));
     }
 }
@@ -0,0 +1,271 @@
+package protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PeerConnectionPool keeps authenticated outbound PeerChannels to peers, keyed by onion
+ * address, so that sending to a contact does not pay for a new Tor circuit and handshake
+ * every time.
+ *
+ * <ul>
+ *   <li>Live channels are reused by every caller of {@link #get(String)}.</li>
+ *   <li>Concurrent connects to the same address are coalesced into one dial and handshake.</li>
+ *   <li>Each channel's receive loop runs on its own thread and feeds a {@link PeerHandler},
+ *       as for inbound connections on a {@link PeerServer}.</li>
+ *   <li>A maintenance task evicts channels that have not been used for the idle timeout and
+ *       pings the others. A channel that received nothing since the previous ping is
+ *       considered dead and closed, before a user message is lost on it.</li>
+ * </ul>
+ * Handshakes use a {@link ResumptionCache}, so reconnecting to a recently seen peer skips
+ * the ECDH exchange.
+ */
+public class PeerConnectionPool implements Closeable {
+    private final Dialer dialer;
+    private final PeerHandler handler;
+    private long idleTimeoutMillis = 5 * 60 * 1000L;
+    private long keepaliveIntervalMillis = 60 * 1000L;
+    private int handshakeTimeoutMillis = 60 * 1000;
+    private ResumptionCache resumptionCache = new ResumptionCache(1000, 60 * 60 * 1000L);
+    private EphemeralKeyPool keyPool;
+    private List<CipherSuite> cipherSuites = CipherSuite.defaults();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> pending = new ConcurrentHashMap<>();
+    private final ExecutorService readers = Threads.newThreadPerTaskExecutor("peer-pool-reader");
+    private final AtomicLong connects = new AtomicLong();
+    private ScheduledExecutorService maintenance;
+    private volatile boolean closed;
+
+    public PeerConnectionPool(Dialer dialer, PeerHandler handler) {
+        this.dialer = dialer;
+        this.handler = handler;
+    }
+
+    /**
+     * Sets how long a channel may go without a send or get before it is closed.
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Sets how often idle channels are pinged and checked. Takes effect before the first connect.
+     */
+    public void setKeepaliveIntervalMillis(long keepaliveIntervalMillis) {
+        if (keepaliveIntervalMillis < 1) throw new IllegalArgumentException("keepaliveIntervalMillis must be positive");
+        this.keepaliveIntervalMillis = keepaliveIntervalMillis;
+    }
+
+    public void setHandshakeTimeoutMillis(int handshakeTimeoutMillis) {
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    }
+
+    /**
+     * Sets the resumption tickets used for reconnects, or null to always run a full handshake.
+     */
+    public void setResumptionCache(ResumptionCache resumptionCache) {
+        this.resumptionCache = resumptionCache;
+    }
+
+    /**
+     * Sets a pool of pre-generated ephemeral keys for handshakes (may be null).
+     */
+    public void setEphemeralKeyPool(EphemeralKeyPool keyPool) {
+        this.keyPool = keyPool;
+    }
+
+    /**
+     * Sets the cipher suites offered to peers, most preferred first.
+     */
+    public void setCipherSuites(List<CipherSuite> cipherSuites) {
+        if (cipherSuites.isEmpty()) throw new IllegalArgumentException("At least one cipher suite is required");
+        this.cipherSuites = List.copyOf(cipherSuites);
+    }
+
+    /**
+     * Returns a live channel to the address, connecting if necessary. Callers waiting for the
+     * same address share one connect attempt and its outcome.
+     */
+    public PeerChannel get(String address) throws IOException {
+        if (closed) throw new IOException("Connection pool is closed");
+        Entry entry = entries.get(address);
+        if (entry != null && !entry.closed) {
+            entry.touch();
+            return entry.channel;
+        }
+        CompletableFuture<Entry> attempt = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = pending.putIfAbsent(address, attempt);
+        if (existing == null) {
+            try {
+                // Another caller may have finished connecting since the lookup above
+                entry = entries.get(address);
+                if (entry == null || entry.closed) {
+                    entry = connect(address);
+                }
+                attempt.complete(entry);
+            } catch (Exception e) {
+                attempt.completeExceptionally(e);
+            } finally {
+                pending.remove(address, attempt);
+            }
+        }
+        try {
+            entry = (existing != null ? existing : attempt).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + address, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Failed to connect to " + address, cause);
+        }
+        entry.touch();
+        return entry.channel;
+    }
+
+    /**
+     * Sends a message to the address over a pooled channel. If the send fails the channel is
+     * evicted, so the next call reconnects.
+     */
+    public void send(String address, String type, String plaintext) throws Exception {
+        PeerChannel channel = get(address);
+        try {
+            channel.send(type, plaintext);
+        } catch (IOException e) {
+            evict(address, entries.get(address));
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of pooled channels.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of connections dialed so far.
+     */
+    public long getConnectCount() {
+        return connects.get();
+    }
+
+    private Entry connect(String address) throws IOException {
+        startMaintenance();
+        connects.incrementAndGet();
+        Socket socket = dialer.dial(address);
+        Entry entry;
+        try {
+            socket.setSoTimeout(handshakeTimeoutMillis);
+            HandshakeResult result = Handshake.initiate(socket.getInputStream(), socket.getOutputStream(),
+                    keyPool, resumptionCache, address, cipherSuites);
+            socket.setSoTimeout(0);
+            entry = new Entry(new PeerChannel(socket, result));
+        } catch (Exception e) {
+            socket.close();
+            if (e instanceof IOException) throw (IOException) e;
+            throw new IOException("Handshake with " + address + " failed", e);
+        }
+        entries.put(address, entry);
+        readers.execute(() -> readLoop(address, entry));
+        return entry;
+    }
+
+    private void readLoop(String address, Entry entry) {
+        Exception failure = null;
+        try {
+            handler.onConnect(entry.channel);
+            ProtocolMessage msg;
+            while ((msg = entry.channel.receive()) != null) {
+                handler.onMessage(entry.channel, msg);
+            }
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            boolean expected = entry.closed;
+            evict(address, entry);
+            handler.onClose(entry.channel, expected ? null : failure);
+        }
+    }
+
+    private synchronized void startMaintenance() {
+        if (maintenance != null) return;
+        maintenance = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("peer-pool-maintenance"));
+        maintenance.scheduleWithFixedDelay(this::maintain, keepaliveIntervalMillis, keepaliveIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void maintain() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            if (now - entry.lastUsedNanos > TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis)) {
+                evict(e.getKey(), entry);
+            } else if (entry.lastPingNanos != 0 && entry.channel.getLastReceivedNanos() - entry.lastPingNanos < 0) {
+                // Nothing came back since the last ping: the circuit is gone
+                evict(e.getKey(), entry);
+            } else {
+                try {
+                    entry.lastPingNanos = System.nanoTime();
+                    entry.channel.ping();
+                } catch (Exception ex) {
+                    evict(e.getKey(), entry);
+                }
+            }
+        }
+    }
+
+    private void evict(String address, Entry entry) {
+        if (entry == null) return;
+        entries.remove(address, entry);
+        if (entry.closed) return;
+        entry.closed = true;
+        try {
+            entry.channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Closes all pooled channels and stops the maintenance task.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            evict(e.getKey(), e.getValue());
+        }
+        readers.shutdown();
+    }
+
+    private static final class Entry {
+        final PeerChannel channel;
+        volatile long lastUsedNanos = System.nanoTime();
+        volatile long lastPingNanos;
+        volatile boolean closed;
+
+        Entry(PeerChannel channel) {
+            this.channel = channel;
+        }
+
+        void touch() {
+            lastUsedNanos = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package protocol;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PeerEngine hosts many peer sessions on a small, fixed pool of event-loop threads.
+ *
+ * Each event loop owns a {@link Selector} and services its sessions with non-blocking
+ * {@link SocketChannel}s: inbound bytes are reassembled into frames incrementally, decrypted
+ * and delivered to the session's {@link PeerListener}; outbound frames are queued and written
+ * with gathering writes. Sessions are spread over the loops round-robin.
+ */
+public class PeerEngine implements Closeable {
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private final BufferPool pool;
+
+    /**
+     * Starts an engine with the given number of event-loop threads.
+     */
+    public PeerEngine(int threads) throws IOException {
+        this(threads, BufferPool.getDefault());
+    }
+
+    /**
+     * Starts an engine whose sessions take their buffers from the given pool.
+     */
+    PeerEngine(int threads, BufferPool pool) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        this.pool = pool;
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("peer-engine-" + i);
+        }
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Hands a connected channel to the engine. The channel is switched to non-blocking mode
+     * and owned by the returned session from now on.
+     */
+    public PeerSession register(SocketChannel channel, SecretKey sessionKey, PeerListener listener) throws IOException {
+        return register(channel, sessionKey, CipherSuite.AES_256_GCM, listener);
+    }
+
+    /**
+     * Hands a connected channel to the engine, encrypting with the negotiated cipher suite.
+     */
+    public PeerSession register(SocketChannel channel, SecretKey sessionKey, CipherSuite suite, PeerListener listener)
+            throws IOException {
+        return register(channel, new SessionFramer(sessionKey, suite), listener);
+    }
+
+    /**
+     * Hands a connected channel to the engine, encrypting each direction with its own key
+     * from the completed handshake.
+     */
+    public PeerSession register(SocketChannel channel, HandshakeResult handshake, PeerListener listener)
+            throws IOException {
+        return register(channel, new SessionFramer(handshake), listener);
+    }
+
+    PeerSession register(SocketChannel channel, SessionFramer framer, PeerListener listener) throws IOException {
+        if (!channel.isConnected()) throw new IOException("Channel is not connected");
+        channel.configureBlocking(false);
+        EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        PeerSession session = new PeerSession(channel, framer, listener, loop, pool);
+        loop.sessions.incrementAndGet();
+        loop.execute(() -> {
+            try {
+                session.attach(channel.register(loop.selector, SelectionKey.OP_READ, session));
+            } catch (IOException e) {
+                session.close(e);
+            }
+        });
+        return session;
+    }
+
+    /**
+     * Returns the number of sessions that are currently open.
+     */
+    public int getSessionCount() {
+        int n = 0;
+        for (EventLoop loop : loops) {
+            n += loop.sessions.get();
+        }
+        return n;
+    }
+
+    /**
+     * Stops the event loops and closes every session.
+     */
+    @Override
+    public void close() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            try {
+                loop.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * One selector and the thread that drives it.
+     */
+    static final class EventLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final AtomicInteger sessions = new AtomicInteger();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Runs a task on the loop thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    PeerSession session = (PeerSession) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            session.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.onWritable();
+                        }
+                    } catch (Exception e) {
+                        session.close(e);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((PeerSession) key.attachment()).close(null);
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package protocol;
+
+/**
+ * PeerHandler receives the messages of PeerChannels whose receive loop is run by the
+ * library, e.g. inbound connections accepted by a {@link PeerServer}.
+ *
+ * Each channel's callbacks are invoked from that channel's own thread, in order.
+ */
+public interface PeerHandler {
+    /**
+     * Called for every decrypted message received on the channel.
+     */
+    void onMessage(PeerChannel channel, ProtocolMessage message) throws Exception;
+
+    /**
+     * Called after the handshake has completed, before the first message.
+     */
+    default void onConnect(PeerChannel channel) throws Exception {
+    }
+
+    /**
+     * Called once when the channel ends. cause is null if the peer closed the connection.
+     */
+    default void onClose(PeerChannel channel, Exception cause) {
+    }
+}
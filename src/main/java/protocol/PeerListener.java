@@ -0,0 +1,31 @@
+package protocol;
+
+/**
+ * PeerListener receives events for sessions hosted by a {@link PeerEngine}.
+ *
+ * Callbacks run on the engine's event-loop thread and must not block; hand long-running
+ * work off to another executor.
+ */
+public interface PeerListener {
+    /**
+     * Called for every decrypted message, in counter order.
+     */
+    void onMessage(PeerSession session, ProtocolMessage message);
+
+    /**
+     * Called for every decrypted message before it is turned into a ProtocolMessage. The
+     * frame's payload is the plaintext, still in the session's read buffer, and is only valid
+     * during the call. The default copies it into a message for {@link #onMessage}; override
+     * to handle messages without allocating.
+     */
+    default void onFrame(PeerSession session, Frame frame) {
+        onMessage(session, SessionFramer.message(frame));
+    }
+
+    /**
+     * Called once when the session ends. cause is null if the peer closed the connection
+     * or the session was closed locally.
+     */
+    default void onClose(PeerSession session, Throwable cause) {
+    }
+}
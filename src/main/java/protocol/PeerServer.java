@@ -0,0 +1,282 @@
+package protocol;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PeerServer accepts inbound peer connections on the local port a Tor hidden service
+ * forwards to (see {@link TorManager#startHiddenService(int)} and
+ * {@link TorControlClient#addOnion(int, int)}).
+ *
+ * Each connection runs the responder side of the {@link Handshake} and then a receive loop
+ * that feeds a {@link PeerHandler}, all on its own thread. On JDK 21+ these are virtual
+ * threads, so a node can keep tens of thousands of mostly idle contacts connected cheaply.
+ *
+ * Limits on concurrent sessions and in-flight handshakes protect the node from connection
+ * floods: connections over the session limit are closed immediately, and a handshake must
+ * complete within the handshake timeout, however slowly the peer sends. Ephemeral
+ * handshake keys come from an {@link EphemeralKeyPool} sized to the handshake limit, so a
+ * reconnect storm is not held up by key generation, and peers that reconnect within the ticket lifetime resume their
+ * session without any ECDH (see {@link ResumptionCache}).
+ */
+public class PeerServer implements Closeable {
+    private final int port;
+    private final PeerHandler handler;
+    private int maxSessions = 10_000;
+    private int maxConcurrentHandshakes = 64;
+    private int handshakeTimeoutMillis = 30_000;
+    private ResumptionCache resumptionCache = new ResumptionCache(10_000, 60 * 60 * 1000L);
+    private List<CipherSuite> cipherSuites = CipherSuite.defaults();
+
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private Thread acceptThread;
+    private Semaphore sessionSlots;
+    private Semaphore handshakeSlots;
+    private EphemeralKeyPool keyPool;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile boolean running;
+
+    /**
+     * Creates a server for the given local port (0 picks a free port). Call {@link #start()}
+     * to begin accepting connections.
+     */
+    public PeerServer(int port, PeerHandler handler) {
+        this.port = port;
+        this.handler = handler;
+    }
+
+    /**
+     * Sets the maximum number of concurrently connected peers (including handshaking ones).
+     */
+    public void setMaxSessions(int maxSessions) {
+        if (maxSessions < 1) throw new IllegalArgumentException("maxSessions must be at least 1");
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Sets the maximum number of handshakes computed at the same time. A connection only
+     * takes a slot once the peer's handshake message has arrived.
+     */
+    public void setMaxConcurrentHandshakes(int maxConcurrentHandshakes) {
+        if (maxConcurrentHandshakes < 1) throw new IllegalArgumentException("maxConcurrentHandshakes must be at least 1");
+        this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+    }
+
+    /**
+     * Sets how long a connection may take to complete its handshake, including the time
+     * spent waiting for a handshake slot.
+     */
+    public void setHandshakeTimeoutMillis(int handshakeTimeoutMillis) {
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+    }
+
+    /**
+     * Sets the cache of resumption tickets for reconnecting peers, or null to always run the
+     * full handshake. By default up to 10000 tickets are kept for one hour.
+     */
+    public void setResumptionCache(ResumptionCache resumptionCache) {
+        this.resumptionCache = resumptionCache;
+    }
+
+    /**
+     * Sets the cipher suites this server accepts, most preferred first. The first one the
+     * connecting peer also offers is used.
+     */
+    public void setCipherSuites(List<CipherSuite> cipherSuites) {
+        if (cipherSuites.isEmpty()) throw new IllegalArgumentException("At least one cipher suite is required");
+        this.cipherSuites = List.copyOf(cipherSuites);
+    }
+
+    /**
+     * Binds 127.0.0.1 on the configured port and starts the accept loop.
+     */
+    public synchronized void start() throws IOException {
+        if (running) throw new IllegalStateException("Server already started");
+        sessionSlots = new Semaphore(maxSessions);
+        handshakeSlots = new Semaphore(maxConcurrentHandshakes);
+        keyPool = new EphemeralKeyPool(maxConcurrentHandshakes);
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        executor = Threads.newThreadPerTaskExecutor("peer-server-session");
+        running = true;
+        acceptThread = Threads.daemonFactory("peer-server-accept").newThread(this::acceptLoop);
+        acceptThread.start();
+    }
+
+    /**
+     * Returns the bound local port.
+     */
+    public int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : port;
+    }
+
+    /**
+     * Returns the number of connections currently holding a session slot.
+     */
+    public int getActiveSessions() {
+        return sessionSlots == null ? 0 : maxSessions - sessionSlots.availablePermits();
+    }
+
+    /**
+     * Returns the number of connections rejected because a limit was reached.
+     */
+    public long getRejectedConnections() {
+        return rejected.get();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!running) return;
+                continue;
+            }
+            if (!sessionSlots.tryAcquire()) {
+                rejected.incrementAndGet();
+                closeQuietly(socket);
+                continue;
+            }
+            sockets.add(socket);
+            try {
+                executor.execute(() -> serve(socket));
+            } catch (RuntimeException e) {
+                sockets.remove(socket);
+                sessionSlots.release();
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        PeerChannel channel = null;
+        Exception failure = null;
+        try {
+            HandshakeResult result = handshake(socket);
+            if (result == null) return;
+            channel = new PeerChannel(socket, result);
+            handler.onConnect(channel);
+            ProtocolMessage msg;
+            while ((msg = channel.receive()) != null) {
+                handler.onMessage(channel, msg);
+            }
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            if (channel != null) {
+                // Flushes what the handler queued and drops the channel's gauges
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            closeQuietly(socket);
+            sockets.remove(socket);
+            sessionSlots.release();
+            if (channel != null) {
+                handler.onClose(channel, running ? failure : null);
+            }
+        }
+    }
+
+    private HandshakeResult handshake(Socket socket) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(handshakeTimeoutMillis);
+        // Reading the peer's message needs no slot, only the key agreement does
+        Handshake.Hello hello = Handshake.readHello(new DeadlineInputStream(socket, deadline));
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0 || !handshakeSlots.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+            rejected.incrementAndGet();
+            return null;
+        }
+        try {
+            return Handshake.respond(hello, socket.getOutputStream(), keyPool, resumptionCache, cipherSuites);
+        } finally {
+            handshakeSlots.release();
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes all sessions.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!running) return;
+        running = false;
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+        executor.shutdown();
+        keyPool.close();
+        try {
+            acceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Holds every read to an absolute deadline: SO_TIMEOUT alone only bounds each read, which a
+     * peer sending a byte at a time could stretch indefinitely. Leaves SO_TIMEOUT at 0 when done.
+     */
+    private static final class DeadlineInputStream extends FilterInputStream {
+        private final Socket socket;
+        private final long deadline;
+
+        DeadlineInputStream(Socket socket, long deadline) throws IOException {
+            super(socket.getInputStream());
+            this.socket = socket;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int read() throws IOException {
+            arm();
+            try {
+                return super.read();
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            arm();
+            try {
+                return super.read(b, off, len);
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        }
+
+        private void arm() throws IOException {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) throw new SocketTimeoutException("Handshake timed out");
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remaining));
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
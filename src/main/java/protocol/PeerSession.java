@@ -0,0 +1,261 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * PeerSession is one encrypted peer connection hosted by a {@link PeerEngine}.
+ *
+ * {@link #send} may be called from any thread; the frame is encrypted on the calling thread
+ * and written by the session's event loop. Everything else runs on the event loop.
+ *
+ * The read buffer and outgoing frames are direct buffers from the engine's {@link BufferPool},
+ * so the socket reads and gathering writes need no intermediate copies. Received frames are
+ * decrypted in place and handed to {@link PeerListener#onFrame}.
+ */
+public class PeerSession {
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final SessionFramer framer;
+    private final PeerListener listener;
+    private final PeerEngine.EventLoop loop;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Runnable flushTask = this::flush;
+    private final BufferPool pool;
+    // Event-loop state
+    private SelectionKey key;
+    private ByteBuffer readBuffer;
+    private final Frame frame = new Frame();
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+    PeerSession(SocketChannel channel, SessionFramer framer, PeerListener listener, PeerEngine.EventLoop loop,
+                BufferPool pool) {
+        this.channel = channel;
+        this.framer = framer;
+        this.listener = listener;
+        this.loop = loop;
+        this.pool = pool;
+        this.readBuffer = pool.acquire(8192);
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+        if (closed.get()) {
+            key.cancel();
+        } else if (!outbound.isEmpty()) {
+            flush();
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public CipherSuite getCipherSuite() {
+        return framer.suite();
+    }
+
+    /**
+     * Sets how far received counters may be reordered (see {@link ReplayWindow}).
+     * The default of 0 requires strictly in-order counters.
+     */
+    public void setReplayWindowSize(int size) {
+        framer.setReplayWindow(new ReplayWindow(size));
+    }
+
+    /**
+     * Sets when the session moves its sending side to a fresh key (see {@link RekeyPolicy}).
+     */
+    public void setRekeyPolicy(RekeyPolicy policy) {
+        synchronized (framer) {
+            framer.setRekeyPolicy(policy);
+        }
+    }
+
+    /**
+     * Moves the sending side to a fresh key now, whatever the policy, unless nothing has been
+     * sent under the current key yet.
+     */
+    public void rekey() {
+        synchronized (framer) {
+            framer.rekey();
+        }
+    }
+
+    /**
+     * Returns the key epoch of the next message sent: 0 while the session key is in use.
+     */
+    public long getSendEpoch() {
+        synchronized (framer) {
+            return framer.sendEpoch();
+        }
+    }
+
+    /**
+     * Returns the number of sealed messages waiting to be written.
+     */
+    int queuedWrites() {
+        return outbound.size();
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * Encrypts a message and queues it for writing.
+     */
+    public void send(String type, String plaintext) throws GeneralSecurityException, IOException {
+        send(0, type, plaintext);
+    }
+
+    /**
+     * Encrypts a message for a logical stream (see {@link StreamMultiplexer}) and queues it.
+     */
+    void send(long streamId, String type, String plaintext) throws GeneralSecurityException, IOException {
+        send(streamId, type, ByteBuffer.wrap(plaintext.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Encrypts the remaining bytes of plaintext and queues them as a message. The buffer is
+     * consumed and may be reused once this returns.
+     */
+    public void send(String type, ByteBuffer plaintext) throws GeneralSecurityException, IOException {
+        send(0, type, plaintext);
+    }
+
+    private void send(long streamId, String type, ByteBuffer data) throws GeneralSecurityException, IOException {
+        ByteBuffer buf;
+        synchronized (framer) {
+            // Sealing and queueing under one lock keeps the queue in counter order, and close()
+            // sets the flag under it too, so nothing is queued after the buffers are released
+            if (closed.get()) throw new IOException("Session is closed");
+            buf = pool.acquire(framer.sealedLength(type, streamId, data.remaining()));
+            try {
+                framer.seal(type, streamId, data, buf);
+            } catch (GeneralSecurityException | RuntimeException e) {
+                pool.release(buf);
+                throw e;
+            }
+            outbound.add(buf.flip());
+        }
+        Metrics.count(Metrics.Counter.MESSAGES_SENT, 1);
+        Metrics.count(Metrics.Counter.BYTES_SENT, buf.limit());
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+
+    /**
+     * Closes the session. Queued messages that have not been written are dropped.
+     */
+    public void close() {
+        close(null);
+    }
+
+    void close(Throwable cause) {
+        synchronized (framer) {
+            if (!closed.compareAndSet(false, true)) return;
+        }
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        loop.sessions.decrementAndGet();
+        // The event loop may still be using the buffers until it gets to this task
+        loop.execute(this::releaseBuffers);
+        listener.onClose(this, cause);
+    }
+
+    private void releaseBuffers() {
+        ByteBuffer buf;
+        while ((buf = outbound.poll()) != null) {
+            pool.release(buf);
+        }
+        while ((buf = pending.poll()) != null) {
+            pool.release(buf);
+        }
+        if (readBuffer != null) {
+            pool.release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    void onReadable() throws IOException, GeneralSecurityException {
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            close(null);
+            return;
+        }
+        Metrics.count(Metrics.Counter.BYTES_RECEIVED, n);
+        readBuffer.flip();
+        while (!closed.get() && FrameCodec.decode(readBuffer, frame)) {
+            Metrics.count(Metrics.Counter.MESSAGES_RECEIVED, 1);
+            framer.openInPlace(frame);
+            listener.onFrame(this, frame);
+        }
+        int length = FrameCodec.peekLength(readBuffer);
+        if (length >= 0 && FrameCodec.LENGTH_FIELD_SIZE + length > readBuffer.capacity()) {
+            // The next frame does not fit: grow the buffer so it can be reassembled
+            ByteBuffer bigger = pool.acquire(FrameCodec.LENGTH_FIELD_SIZE + length);
+            bigger.put(readBuffer);
+            pool.release(readBuffer);
+            readBuffer = bigger;
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        if (closed.get() || key == null) return;
+        try {
+            ByteBuffer buf;
+            while ((buf = outbound.poll()) != null) {
+                pending.add(buf);
+            }
+            while (!pending.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer b : pending) {
+                    gather[count++] = b;
+                    if (count == MAX_GATHER) break;
+                }
+                channel.write(gather, 0, count);
+                while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                    pool.release(pending.poll());
+                }
+                if (!gather[count - 1].hasRemaining() && count == MAX_GATHER) {
+                    continue;
+                }
+                break;
+            }
+            Arrays.fill(gather, null);
+            int ops = pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            // A close() from another thread may cancel the key while we are writing
+            close(e);
+        }
+    }
+}
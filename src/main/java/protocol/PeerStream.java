@@ -0,0 +1,99 @@
+package protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PeerStream is one ordered message stream of a {@link StreamMultiplexer}.
+ *
+ * {@link #send} blocks while the peer has a full window of this stream's messages it has not
+ * received yet; {@link #receive()} returns credit to the peer as the application catches up.
+ * Closing a stream ends this side only: messages from the peer are still received until it
+ * closes its side too.
+ *
+ * Any thread may send and one thread at a time may receive.
+ */
+public class PeerStream implements Closeable {
+    private final StreamMultiplexer mux;
+    private final long id;
+    private final int window;
+    // Outbound state, guarded by the multiplexer's lock
+    final ArrayDeque<StreamMultiplexer.Outbound> outbound = new ArrayDeque<>();
+    boolean scheduled;
+    long credit;
+    boolean localClosed;
+    boolean remoteClosed;
+    // The peer refused the stream
+    boolean reset;
+    // Inbound
+    private final BlockingQueue<Object> inbox = new LinkedBlockingQueue<>();
+    // Payload bytes received and not yet credited back to the peer
+    private final AtomicLong buffered = new AtomicLong();
+    // Payload bytes the application received since the last credit, guarded by this
+    private long consumed;
+
+    PeerStream(StreamMultiplexer mux, long id, int window) {
+        this.mux = mux;
+        this.id = id;
+        this.window = window;
+        this.credit = window;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Queues a message on this stream, waiting for flow control credit if the peer is behind.
+     * The message may be at most half the multiplexer's window.
+     */
+    public void send(String type, String plaintext) throws IOException, InterruptedException {
+        mux.send(this, type, plaintext);
+    }
+
+    /**
+     * Waits for the next message on this stream. Returns null once the peer has closed its
+     * side of the stream or the channel has closed; throws if the peer refused the stream.
+     */
+    public ProtocolMessage receive() throws IOException, InterruptedException {
+        ProtocolMessage msg = (ProtocolMessage) StreamMultiplexer.take(inbox);
+        if (msg == null) return null;
+        long grant = 0;
+        synchronized (this) {
+            consumed += StreamMultiplexer.payloadBytes(msg.getPayload());
+            // Returning credit in halves of the window keeps CREDIT messages rare
+            if (consumed >= window / 2) {
+                grant = consumed;
+                consumed = 0;
+            }
+        }
+        if (grant > 0) {
+            buffered.addAndGet(-grant);
+            mux.sendCredit(this, grant);
+        }
+        return msg;
+    }
+
+    /**
+     * Closes this side of the stream once the messages already queued are sent.
+     */
+    @Override
+    public void close() {
+        mux.closeStream(this);
+    }
+
+    void deliverMessage(ProtocolMessage msg) throws IOException {
+        if (buffered.addAndGet(StreamMultiplexer.payloadBytes(msg.getPayload())) > window) {
+            throw new IOException("Peer exceeded the flow control window of stream " + id);
+        }
+        inbox.add(msg);
+    }
+
+    void deliver(Object endOrFailure) {
+        inbox.add(endOrFailure);
+    }
+}
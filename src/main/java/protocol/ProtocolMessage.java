@@ -11,11 +11,37 @@ public class ProtocolMessage {
     private final String payload;
     // Optional: message counter for replay protection
     private final long counter;
+    // Raw bytes of a sealed message (see PeerChannel#sendSealed), otherwise null
+    private final byte[] body;
+    // Logical stream (see StreamMultiplexer); 0 for the channel's own sequence
+    private final long streamId;
 
     public ProtocolMessage(String type, String payload, long counter) {
+        this(type, payload, counter, 0);
+    }
+
+    public ProtocolMessage(String type, String payload, long counter, long streamId) {
         this.type = type;
         this.payload = payload;
         this.counter = counter;
+        this.body = null;
+        this.streamId = streamId;
+    }
+
+    /**
+     * Creates a sealed message: the body is still encrypted under the application's own key,
+     * and the message has no text payload.
+     */
+    public ProtocolMessage(String type, byte[] body, long counter) {
+        this(type, body, counter, 0);
+    }
+
+    public ProtocolMessage(String type, byte[] body, long counter, long streamId) {
+        this.type = type;
+        this.payload = null;
+        this.counter = counter;
+        this.body = body;
+        this.streamId = streamId;
     }
 
     public String getType() {
@@ -30,6 +56,21 @@ public class ProtocolMessage {
         return counter;
     }
 
+    public long getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * Returns the raw body of a sealed message, or null for an ordinary message.
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public boolean isSealed() {
+        return body != null;
+    }
+
     /**
      * Serializes the message to a compact string (for transmission).
      */
@@ -0,0 +1,225 @@
+package protocol;
+
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ReceivePipeline decrypts the inbound frames of one PeerChannel on several cores while still
+ * delivering plaintext in counter order.
+ *
+ * Stages:
+ * <ol>
+ *   <li>a reader thread reads and decodes frames from the socket, and follows the sender's
+ *       key epochs;</li>
+ *   <li>a worker executor decrypts them in parallel, each task borrowing a SessionCrypto
+ *       from a small pool for its frame's key epoch (Cipher state is not thread-safe);</li>
+ *   <li>a reorder buffer of {@code depth} slots hands results to {@link #take()} in order.</li>
+ * </ol>
+ * The reader takes a permit per frame and {@link #take()} returns it, so at most depth frames
+ * are in flight. When the consumer falls behind the reader stops reading and TCP pushes back
+ * on the sender.
+ *
+ * The usual replay checks still apply: the reader requires consecutive counters, and every
+ * message passes the session's ReplayWindow when it is delivered.
+ */
+class ReceivePipeline {
+    private final DataInputStream in;
+    private final SessionFramer framer;
+    private final Executor workers;
+    private final int depth;
+    private final Semaphore permits;
+    // Crypto engines for the current and previous key epochs; used by the reader only
+    private KeyPool currentKeys;
+    private KeyPool previousKeys;
+    private final Thread reader;
+    private final long firstCounter;
+    private volatile boolean closed;
+
+    // Reorder buffer, guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final Object[] slots;
+    // Frames are numbered in arrival order; sealed frames have counters of their own
+    private long endAt = Long.MAX_VALUE;
+    private Exception readerFailure;
+    private long nextDeliver;
+
+    ReceivePipeline(DataInputStream in, SessionFramer framer, Executor workers, int depth) {
+        if (depth < 1) throw new IllegalArgumentException("depth must be at least 1");
+        this.in = in;
+        this.framer = framer;
+        this.workers = workers;
+        this.depth = depth;
+        this.permits = new Semaphore(depth);
+        this.slots = new Object[depth];
+        // Continue from whatever was already received without the pipeline
+        this.firstCounter = framer.replayWindow().getHighest() + 1;
+        this.reader = Threads.daemonFactory("peer-channel-reader").newThread(this::readLoop);
+    }
+
+    void start() {
+        reader.start();
+    }
+
+    /**
+     * Returns the number of frames read but not yet delivered.
+     */
+    int inFlight() {
+        return depth - permits.availablePermits();
+    }
+
+    /**
+     * Returns the next message in counter order, or null at the end of the stream.
+     */
+    ProtocolMessage take() throws Exception {
+        Object result;
+        lock.lock();
+        try {
+            int index = (int) (nextDeliver % depth);
+            while (slots[index] == null) {
+                if (nextDeliver >= endAt) {
+                    if (readerFailure != null) throw readerFailure;
+                    return null;
+                }
+                ready.await();
+            }
+            result = slots[index];
+            slots[index] = null;
+            nextDeliver++;
+        } finally {
+            lock.unlock();
+        }
+        permits.release();
+        if (result instanceof Exception) {
+            close();
+            throw (Exception) result;
+        }
+        ProtocolMessage msg = (ProtocolMessage) result;
+        if (!msg.isSealed()) {
+            framer.acceptReceiveCounter(msg.getCounter());
+        }
+        return msg;
+    }
+
+    void close() {
+        closed = true;
+        reader.interrupt();
+    }
+
+    private void readLoop() {
+        long expected = firstCounter;
+        long sequence = 0;
+        try {
+            while (!closed) {
+                permits.acquire();
+                byte[] data = readFrame();
+                if (data == null) break;
+                Frame frame = new Frame();
+                if (!FrameCodec.decode(ByteBuffer.wrap(data), frame)) {
+                    throw new IOException("Incomplete frame");
+                }
+                long slot = sequence;
+                if (frame.isSealed()) {
+                    complete(slot, PeerChannel.sealedMessage(frame));
+                } else {
+                    if (frame.getCounter() != expected) {
+                        Metrics.count(Metrics.Counter.REPLAYS_REJECTED, 1);
+                        throw new IOException("Message counter mismatch (possible replay attack)");
+                    }
+                    expected++;
+                    KeyPool keys = keysFor(framer.receiveKey(frame.getEpoch()));
+                    workers.execute(() -> complete(slot, decrypt(frame, keys)));
+                }
+                // Only frames that will complete count towards the end of the stream
+                sequence++;
+            }
+            finish(sequence, null);
+        } catch (Exception e) {
+            finish(sequence, closed ? null : e);
+        }
+    }
+
+    private byte[] readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > FrameCodec.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        // Each frame gets its own buffer because it is decrypted on another thread
+        byte[] data = new byte[FrameCodec.LENGTH_FIELD_SIZE + length];
+        Metrics.count(Metrics.Counter.BYTES_RECEIVED, data.length);
+        ByteBuffer.wrap(data).putInt(length);
+        in.readFully(data, FrameCodec.LENGTH_FIELD_SIZE, length);
+        return data;
+    }
+
+    private KeyPool keysFor(SecretKey key) {
+        if (currentKeys == null || currentKeys.key != key) {
+            if (previousKeys != null && previousKeys.key == key) return previousKeys;
+            previousKeys = currentKeys;
+            currentKeys = new KeyPool(key);
+        }
+        return currentKeys;
+    }
+
+    private Object decrypt(Frame frame, KeyPool keys) {
+        SessionCrypto crypto = keys.engines.poll();
+        if (crypto == null) {
+            crypto = framer.newCrypto(keys.key);
+        }
+        try {
+            return SessionFramer.decrypt(frame, crypto);
+        } catch (Exception e) {
+            return e;
+        } finally {
+            keys.engines.offer(crypto);
+        }
+    }
+
+    private void complete(long sequence, Object result) {
+        lock.lock();
+        try {
+            slots[(int) (sequence % depth)] = result;
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void finish(long at, Exception failure) {
+        lock.lock();
+        try {
+            endAt = at;
+            readerFailure = failure;
+            ready.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Crypto engines for one key epoch. Cipher state is not thread-safe, so each decryption
+     * task borrows an engine.
+     */
+    private static final class KeyPool {
+        final SecretKey key;
+        final Queue<SessionCrypto> engines = new ConcurrentLinkedQueue<>();
+
+        KeyPool(SecretKey key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RekeyPolicy decides when a session moves its sending side to a fresh key.
+ *
+ * A new key is due as soon as any limit is reached under the current one: maxMessages
+ * messages, maxBytes bytes of ciphertext, or maxAgeMillis since the key came into use. A
+ * limit of zero is disabled. Each new key is derived from the previous one with HKDF, so a
+ * rekey needs no round trip: the peer follows from the key epoch carried in the frames (see
+ * {@link FrameCodec#FLAG_EPOCH}) and keeps the previous key until the next switch, so
+ * messages sent around the switch are never rejected.
+ */
+public final class RekeyPolicy {
+    /**
+     * Rekeys after 2^24 messages, 16 GiB or one hour, whichever comes first: well inside the
+     * usage limits of AES-GCM, and rare enough that the extra key derivation is free.
+     */
+    public static final RekeyPolicy DEFAULT = new RekeyPolicy(1L << 24, 16L << 30, TimeUnit.HOURS.toMillis(1));
+    /** Keeps the session key for the whole connection. */
+    public static final RekeyPolicy NEVER = new RekeyPolicy(0, 0, 0);
+
+    private final long maxMessages;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final long maxAgeNanos;
+
+    public RekeyPolicy(long maxMessages, long maxBytes, long maxAgeMillis) {
+        if (maxMessages < 0 || maxBytes < 0 || maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Rekey limits must not be negative");
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    public long getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * Returns true if a key that has encrypted the given number of messages and bytes, and
+     * came into use at startNanos ({@link System#nanoTime()}), must be replaced.
+     */
+    boolean shouldRekey(long messages, long bytes, long startNanos) {
+        return (maxMessages > 0 && messages >= maxMessages)
+                || (maxBytes > 0 && bytes >= maxBytes)
+                || (maxAgeNanos > 0 && System.nanoTime() - startNanos >= maxAgeNanos);
+    }
+}
@@ -0,0 +1,77 @@
+package protocol;
+
+/**
+ * ReplayWindow accepts each message counter at most once, in the style of the IPsec/DTLS
+ * anti-replay window (RFC 6479).
+ *
+ * The window tracks the highest counter seen so far and a bitmap of the counters just below
+ * it. A counter is accepted if it is newer than the highest one, or falls inside the window
+ * and has not been seen before. Counters older than the window are rejected. This lets
+ * messages be decrypted in parallel and delivered out of order without opening a replay hole.
+ *
+ * A window of size 0 is strict: counters must arrive exactly in order, 0, 1, 2, ...
+ *
+ * Instances are thread-safe.
+ */
+public class ReplayWindow {
+    private final int size;
+    private final long[] bitmap;
+    private long highest = -1;
+
+    /**
+     * Creates a window that tolerates reordering by up to size counters (0 = strict order).
+     */
+    public ReplayWindow(int size) {
+        if (size < 0) throw new IllegalArgumentException("Window size must not be negative");
+        this.size = size;
+        // One extra word so the word holding the highest counter never evicts live bits
+        this.bitmap = size == 0 ? null : new long[(size + 63) / 64 + 1];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the highest counter accepted so far, or -1 if none.
+     */
+    public synchronized long getHighest() {
+        return highest;
+    }
+
+    /**
+     * Returns true if the counter would be accepted, without recording it. Use this before
+     * the message is authenticated, and {@link #accept(long)} after.
+     */
+    public synchronized boolean check(long counter) {
+        if (counter < 0) return false;
+        if (bitmap == null) return counter == highest + 1;
+        if (counter > highest) return true;
+        if (counter <= highest - size) return false;
+        return (bitmap[wordIndex(counter)] & (1L << (counter & 63))) == 0;
+    }
+
+    /**
+     * Records the counter. Returns false if it is a replay or too old.
+     */
+    public synchronized boolean accept(long counter) {
+        if (!check(counter)) return false;
+        if (bitmap != null) {
+            if (counter > highest) {
+                long current = highest >> 6;
+                long target = counter >> 6;
+                long words = Math.min(target - current, bitmap.length);
+                for (long i = 1; i <= words; i++) {
+                    bitmap[wordIndex((current + i) << 6)] = 0;
+                }
+            }
+            bitmap[wordIndex(counter)] |= 1L << (counter & 63);
+        }
+        if (counter > highest) highest = counter;
+        return true;
+    }
+
+    private int wordIndex(long counter) {
+        return (int) Math.floorMod(counter >> 6, (long) bitmap.length);
+    }
+}
@@ -0,0 +1,93 @@
+package protocol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ResumptionCache remembers resumption secrets from earlier handshakes so a reconnecting
+ * peer can skip the ECDH exchange (see {@link Handshake}).
+ *
+ * The initiator keys its entries by the peer it dialed (onion address or identity key); the
+ * responder keys them by ticket id. Entries expire after a time-to-live, and the least
+ * recently used entry is evicted when the cache is full.
+ *
+ * Tickets are single-use: {@link #take(String)} removes the entry, and a successful
+ * resumption stores a new ticket derived from the old one. A replayed resume request
+ * therefore never finds its ticket again and falls back to a full handshake.
+ *
+ * Instances are thread-safe.
+ */
+public class ResumptionCache {
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Ticket> entries;
+
+    /**
+     * Creates a cache of at most maxEntries tickets, each valid for ttlMillis.
+     */
+    public ResumptionCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+        if (ttlMillis < 1) throw new IllegalArgumentException("ttlMillis must be positive");
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Ticket> eldest) {
+                return size() > ResumptionCache.this.maxEntries;
+            }
+        };
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Returns the number of tickets currently held, including expired ones not yet evicted.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all tickets, e.g. when the local identity changes.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Removes the ticket for a peer.
+     */
+    public synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes and returns the ticket stored under key, or null if there is none or it expired.
+     */
+    synchronized Ticket take(String key) {
+        Ticket ticket = entries.remove(key);
+        if (ticket == null || ticket.expiresAt <= System.currentTimeMillis()) return null;
+        return ticket;
+    }
+
+    synchronized void put(String key, byte[] ticketId, byte[] secret) {
+        entries.put(key, new Ticket(ticketId, secret, System.currentTimeMillis() + ttlMillis));
+    }
+
+    /**
+     * A resumption secret and the id both peers know it by.
+     */
+    static final class Ticket {
+        final byte[] id;
+        final byte[] secret;
+        final long expiresAt;
+
+        Ticket(byte[] id, byte[] secret, long expiresAt) {
+            this.id = id;
+            this.secret = secret;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
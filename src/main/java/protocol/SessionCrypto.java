@@ -1,13 +1,20 @@
 package protocol;
 
+import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.modes.AEADCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
 import org.bouncycastle.crypto.params.HKDFParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
 import java.security.Security;
 import java.util.Base64;
@@ -15,6 +22,24 @@ import java.util.Base64;
 /**
  * SessionCrypto handles session key derivation (HKDF) and message encryption/decryption (AES-GCM)
  * for the Cwtch-style protocol.
+ *
+ * The static methods are one-shot AES-GCM helpers that use a random IV per call. For a
+ * session that carries many messages, create one SessionCrypto instance per session, with the
+ * {@link CipherSuite} negotiated by the {@link Handshake}: it keeps its cipher state (key
+ * schedule and GHASH tables for AES-GCM) between messages and derives each 96-bit nonce from
+ * the message counter instead of a SecureRandom:
+ * <pre>
+ *   nonce = prefix (4 random bytes chosen per instance) || counter (8 bytes, big-endian)
+ * </pre>
+ * The ciphertext layout is the same for both paths and both suites (nonce || ciphertext ||
+ * tag), so messages produced by an AES-GCM instance can be opened by
+ * {@link #decrypt(byte[], SecretKey)} and vice versa.
+ * The ByteBuffer methods can also authenticate associated data, e.g. a frame header, that
+ * travels in the clear next to the ciphertext.
+ * Callers must never encrypt two messages with the same counter on one instance, and a key
+ * should encrypt in one direction only: two instances sharing a key are kept apart only by
+ * their random prefixes, which is why the {@link Handshake} derives one key per direction.
+ * Instances are not thread-safe, but one thread may encrypt while another decrypts.
  */
 public class SessionCrypto {
     static {
@@ -24,6 +49,61 @@ public class SessionCrypto {
     private static final int AES_KEY_SIZE = 32; // 256 bits
     private static final int GCM_IV_SIZE = 12; // 96 bits
     private static final int GCM_TAG_SIZE = 128; // bits
+    private static final int NONCE_PREFIX_SIZE = GCM_IV_SIZE - 8;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** Bytes added to a plaintext by encryption (nonce and tag). */
+    public static final int OVERHEAD = GCM_IV_SIZE + GCM_TAG_SIZE / 8;
+
+    private final KeyParameter key;
+    private final CipherSuite suite;
+    private final AEADCipher encryptCipher;
+    private final AEADCipher decryptCipher;
+    private final byte[] encryptNonce = new byte[GCM_IV_SIZE];
+    private final byte[] decryptNonce = new byte[GCM_IV_SIZE];
+    private boolean encryptKeyed;
+    // Staging areas for buffers without an accessible backing array (e.g. direct buffers)
+    private byte[] encryptScratch = new byte[0];
+    private byte[] decryptScratch = new byte[0];
+
+    /**
+     * Creates a per-session AES-GCM engine for the given key.
+     */
+    public SessionCrypto(SecretKey key) {
+        this(key, CipherSuite.AES_256_GCM);
+    }
+
+    /**
+     * Creates a per-session crypto engine for the given 256-bit key and cipher suite.
+     */
+    public SessionCrypto(SecretKey key, CipherSuite suite) {
+        this.key = new KeyParameter(key.getEncoded());
+        this.suite = suite;
+        this.encryptCipher = suite.newCipher();
+        this.decryptCipher = suite.newCipher();
+        // Full key setup happens once; later inits pass a null key and only change the nonce.
+        // The encrypt side is keyed on first use so its first nonce is a real one.
+        this.decryptCipher.init(false, new AEADParameters(this.key, GCM_TAG_SIZE, new byte[GCM_IV_SIZE]));
+        RANDOM.nextBytes(encryptNonce);
+    }
+
+    public CipherSuite getCipherSuite() {
+        return suite;
+    }
+
+    /**
+     * Returns the encrypted size (nonce || ciphertext || tag) of a plaintext.
+     */
+    public static int ciphertextLength(int plaintextLength) {
+        return plaintextLength + OVERHEAD;
+    }
+
+    /**
+     * Returns the plaintext size of an encrypted message of the given length.
+     */
+    public static int plaintextLength(int ciphertextLength) {
+        return ciphertextLength - OVERHEAD;
+    }
 
     /**
      * Derives a 256-bit AES key from the shared secret using HKDF.
@@ -40,23 +120,36 @@ public class SessionCrypto {
      * Encrypts a message using AES-GCM.
      */
     public static String encrypt(String plaintext, SecretKey key) throws Exception {
+        return Base64.getEncoder().encodeToString(encrypt(plaintext.getBytes(), key));
+    }
+
+    /**
+     * Encrypts raw bytes using AES-GCM. Returns the IV followed by the ciphertext and tag.
+     */
+    public static byte[] encrypt(byte[] plaintext, SecretKey key) throws Exception {
         byte[] iv = new byte[GCM_IV_SIZE];
         new SecureRandom().nextBytes(iv);
         Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
         GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_SIZE, iv);
         cipher.init(Cipher.ENCRYPT_MODE, key, spec);
-        byte[] ciphertext = cipher.doFinal(plaintext.getBytes());
+        byte[] ciphertext = cipher.doFinal(plaintext);
         byte[] result = new byte[iv.length + ciphertext.length];
         System.arraycopy(iv, 0, result, 0, iv.length);
         System.arraycopy(ciphertext, 0, result, iv.length, ciphertext.length);
-        return Base64.getEncoder().encodeToString(result);
+        return result;
     }
 
     /**
      * Decrypts a message using AES-GCM.
      */
     public static String decrypt(String ciphertextBase64, SecretKey key) throws Exception {
-        byte[] data = Base64.getDecoder().decode(ciphertextBase64);
+        return new String(decrypt(Base64.getDecoder().decode(ciphertextBase64), key));
+    }
+
+    /**
+     * Decrypts raw bytes (IV followed by ciphertext and tag) using AES-GCM.
+     */
+    public static byte[] decrypt(byte[] data, SecretKey key) throws Exception {
         byte[] iv = new byte[GCM_IV_SIZE];
         System.arraycopy(data, 0, iv, 0, GCM_IV_SIZE);
         byte[] ciphertext = new byte[data.length - GCM_IV_SIZE];
@@ -64,7 +157,196 @@ public class SessionCrypto {
         Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", "BC");
         GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_SIZE, iv);
         cipher.init(Cipher.DECRYPT_MODE, key, spec);
-        byte[] plaintext = cipher.doFinal(ciphertext);
-        return new String(plaintext);
+        return cipher.doFinal(ciphertext);
+    }
+
+    /**
+     * Encrypts plaintext into a new array (nonce || ciphertext || tag).
+     */
+    public byte[] encrypt(long counter, byte[] plaintext) throws GeneralSecurityException {
+        byte[] out = new byte[ciphertextLength(plaintext.length)];
+        encrypt(counter, plaintext, 0, plaintext.length, out, 0);
+        return out;
+    }
+
+    /**
+     * Encrypts in[inOff..inOff+len) into out at outOff as nonce || ciphertext || tag and returns
+     * the number of bytes written. Encryption may be done in place: pass the same array with
+     * the plaintext stored at outOff + 12.
+     */
+    public int encrypt(long counter, byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws GeneralSecurityException {
+        return encrypt(counter, null, 0, 0, in, inOff, len, out, outOff);
+    }
+
+    private int encrypt(long counter, ByteBuffer aad, int aadOff, int aadLen, byte[] in, int inOff, int len,
+                        byte[] out, int outOff) throws GeneralSecurityException {
+        if (counter < 0) throw new IllegalArgumentException("Negative counter: " + counter);
+        long start = Metrics.start();
+        for (int i = GCM_IV_SIZE - 1; i >= NONCE_PREFIX_SIZE; i--) {
+            encryptNonce[i] = (byte) counter;
+            counter >>>= 8;
+        }
+        encryptCipher.init(true, new AEADParameters(encryptKeyed ? null : key, GCM_TAG_SIZE, encryptNonce));
+        encryptKeyed = true;
+        processAad(encryptCipher, aad, aadOff, aadLen);
+        int n = encryptCipher.processBytes(in, inOff, len, out, outOff + GCM_IV_SIZE);
+        try {
+            n += encryptCipher.doFinal(out, outOff + GCM_IV_SIZE + n);
+        } catch (InvalidCipherTextException e) {
+            throw new GeneralSecurityException(e);
+        }
+        System.arraycopy(encryptNonce, 0, out, outOff, GCM_IV_SIZE);
+        Metrics.stop(Metrics.Timer.ENCRYPT, start);
+        return GCM_IV_SIZE + n;
+    }
+
+    /**
+     * Encrypts the remaining bytes of plaintext into dst as nonce || ciphertext || tag.
+     * Both buffers are advanced. Returns the number of bytes written.
+     */
+    public int encrypt(long counter, ByteBuffer plaintext, ByteBuffer dst) throws GeneralSecurityException {
+        return encrypt(counter, null, 0, 0, plaintext, dst);
+    }
+
+    /**
+     * Like {@link #encrypt(long, ByteBuffer, ByteBuffer)}, and also authenticates aad[aadOff,
+     * aadOff + aadLen) (absolute indices, the buffer is not moved). The same bytes must be
+     * passed to decrypt. The range may lie in dst ahead of the ciphertext, e.g. a frame header.
+     */
+    public int encrypt(long counter, ByteBuffer aad, int aadOff, int aadLen, ByteBuffer plaintext, ByteBuffer dst)
+            throws GeneralSecurityException {
+        int len = plaintext.remaining();
+        int outLen = ciphertextLength(len);
+        if (dst.remaining() < outLen) throw new IllegalArgumentException("Output buffer too small");
+        if (plaintext.hasArray() && dst.hasArray()) {
+            encrypt(counter, aad, aadOff, aadLen, plaintext.array(), plaintext.arrayOffset() + plaintext.position(), len,
+                    dst.array(), dst.arrayOffset() + dst.position());
+        } else {
+            byte[] buf = encryptScratch = grow(encryptScratch, outLen);
+            plaintext.get(plaintext.position(), buf, GCM_IV_SIZE, len);
+            encrypt(counter, aad, aadOff, aadLen, buf, GCM_IV_SIZE, len, buf, 0);
+            dst.put(dst.position(), buf, 0, outLen);
+        }
+        plaintext.position(plaintext.limit());
+        dst.position(dst.position() + outLen);
+        return outLen;
+    }
+
+    /**
+     * Decrypts a message produced by {@link #encrypt(long, byte[])}, checking that its
+     * nonce carries the expected counter.
+     */
+    public byte[] decrypt(long counter, byte[] data) throws GeneralSecurityException {
+        byte[] out = new byte[Math.max(0, plaintextLength(data.length))];
+        decrypt(counter, data, 0, data.length, out, 0);
+        return out;
+    }
+
+    /**
+     * Decrypts in[inOff..inOff+len) (nonce || ciphertext || tag) into out at outOff and returns
+     * the plaintext length. If counter is non-negative the nonce must carry that counter,
+     * which binds the frame counter to the authenticated ciphertext. Decryption may be done
+     * in place as long as outOff is not past inOff + 12.
+     */
+    public int decrypt(long counter, byte[] in, int inOff, int len, byte[] out, int outOff)
+            throws GeneralSecurityException {
+        return decrypt(counter, null, 0, 0, in, inOff, len, out, outOff);
+    }
+
+    private int decrypt(long counter, ByteBuffer aad, int aadOff, int aadLen, byte[] in, int inOff, int len,
+                        byte[] out, int outOff) throws GeneralSecurityException {
+        if (len < OVERHEAD) throw new AEADBadTagException("Ciphertext too short");
+        System.arraycopy(in, inOff, decryptNonce, 0, GCM_IV_SIZE);
+        if (counter >= 0) {
+            long c = counter;
+            for (int i = GCM_IV_SIZE - 1; i >= NONCE_PREFIX_SIZE; i--) {
+                if (decryptNonce[i] != (byte) c) {
+                    throw new AEADBadTagException("Nonce does not match message counter " + counter);
+                }
+                c >>>= 8;
+            }
+        }
+        long start = Metrics.start();
+        decryptCipher.init(false, new AEADParameters(null, GCM_TAG_SIZE, decryptNonce));
+        processAad(decryptCipher, aad, aadOff, aadLen);
+        int n = decryptCipher.processBytes(in, inOff + GCM_IV_SIZE, len - GCM_IV_SIZE, out, outOff);
+        try {
+            n += decryptCipher.doFinal(out, outOff + n);
+        } catch (InvalidCipherTextException e) {
+            throw new AEADBadTagException(e.getMessage());
+        }
+        Metrics.stop(Metrics.Timer.DECRYPT, start);
+        return n;
+    }
+
+    /**
+     * Decrypts the remaining bytes of src (nonce || ciphertext || tag) into dst.
+     * Both buffers are advanced. Pass a negative counter to skip the nonce check.
+     * Returns the plaintext length.
+     */
+    public int decrypt(long counter, ByteBuffer src, ByteBuffer dst) throws GeneralSecurityException {
+        int len = src.remaining();
+        int outLen = Math.max(0, plaintextLength(len));
+        if (dst.remaining() < outLen) throw new IllegalArgumentException("Output buffer too small");
+        if (src.hasArray() && dst.hasArray()) {
+            decrypt(counter, src.array(), src.arrayOffset() + src.position(), len,
+                    dst.array(), dst.arrayOffset() + dst.position());
+        } else {
+            byte[] buf = decryptScratch = grow(decryptScratch, len);
+            src.get(src.position(), buf, 0, len);
+            decrypt(counter, buf, 0, len, buf, 0);
+            dst.put(dst.position(), buf, 0, outLen);
+        }
+        src.position(src.limit());
+        dst.position(dst.position() + outLen);
+        return outLen;
+    }
+
+    /**
+     * Decrypts the remaining bytes of buf (nonce || ciphertext || tag) in place. The position
+     * is left where it was and the limit is moved to the end of the plaintext. Pass a negative
+     * counter to skip the nonce check. Returns the plaintext length.
+     */
+    public int decryptInPlace(long counter, ByteBuffer buf) throws GeneralSecurityException {
+        return decryptInPlace(counter, null, 0, 0, buf);
+    }
+
+    /**
+     * Like {@link #decryptInPlace(long, ByteBuffer)}, checking that aad[aadOff, aadOff + aadLen)
+     * (absolute indices) holds the associated data the message was encrypted with.
+     */
+    public int decryptInPlace(long counter, ByteBuffer aad, int aadOff, int aadLen, ByteBuffer buf)
+            throws GeneralSecurityException {
+        int pos = buf.position();
+        int len = buf.remaining();
+        int n;
+        if (buf.hasArray()) {
+            int off = buf.arrayOffset() + pos;
+            n = decrypt(counter, aad, aadOff, aadLen, buf.array(), off, len, buf.array(), off);
+        } else {
+            byte[] scratch = decryptScratch = grow(decryptScratch, len);
+            buf.get(pos, scratch, 0, len);
+            n = decrypt(counter, aad, aadOff, aadLen, scratch, 0, len, scratch, 0);
+            buf.put(pos, scratch, 0, n);
+        }
+        buf.limit(pos + n);
+        return n;
+    }
+
+    private static void processAad(AEADCipher cipher, ByteBuffer aad, int off, int len) {
+        if (aad == null || len == 0) return;
+        if (aad.hasArray()) {
+            cipher.processAADBytes(aad.array(), aad.arrayOffset() + off, len);
+        } else {
+            // Frame headers are a few bytes; not worth a staging copy
+            for (int i = 0; i < len; i++) {
+                cipher.processAADByte(aad.get(off + i));
+            }
+        }
+    }
+
+    private static byte[] grow(byte[] buf, int size) {
+        return buf.length >= size ? buf : new byte[Math.max(size, buf.length * 2)];
     }
 }
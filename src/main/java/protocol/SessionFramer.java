@@ -0,0 +1,297 @@
+package protocol;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * SessionFramer holds the per-session state shared by every transport: the SessionCrypto
+ * engine and the send/receive counters. It turns plaintext into encrypted binary frames
+ * and decoded frames back into ProtocolMessages.
+ *
+ * Each direction has its own key, from {@link HandshakeResult#getSendKey()} and
+ * {@link HandshakeResult#getReceiveKey()}, so the two peers never encrypt under the same key
+ * even though both start their counters at 0. A framer built from a single session key uses
+ * it in both directions, where only the random nonce prefixes keep the two apart; that is
+ * meant for tests and benchmarks.
+ *
+ * Binary frames are rekeyed as the {@link RekeyPolicy} requires. Each direction walks its
+ * own key chain: the key of epoch n + 1 is derived from the key of epoch n, starting from
+ * the direction's key at epoch 0. The sending side moves on once its key is used
+ * up, and the receiving side follows when the first frame of the next epoch arrives, keeping
+ * the previous key for frames still in flight. Counters continue across epochs, so the
+ * replay window is unaffected.
+ *
+ * Not thread-safe; callers serialize access to each direction.
+ */
+class SessionFramer {
+    private static final byte[] REKEY_INFO = "cwtch-rekey".getBytes(StandardCharsets.US_ASCII);
+
+    private final SecretKey sessionKey;
+    private final CipherSuite suite;
+    // Epoch 0 engines, as used by the text wire format, which never rekeys
+    private final SessionCrypto textSendCrypto;
+    private final SessionCrypto textReceiveCrypto;
+    private long sendCounter = 0;
+    private volatile ReplayWindow replayWindow = new ReplayWindow(0);
+    // Send side of the key chain
+    private RekeyPolicy rekeyPolicy = RekeyPolicy.DEFAULT;
+    private SecretKey sendKey;
+    private SessionCrypto sendCrypto;
+    private long sendEpoch;
+    private long epochMessages;
+    private long epochBytes;
+    private long epochStartNanos = System.nanoTime();
+    // Receive side of the key chain; the previous epoch stays valid until the next switch
+    private SecretKey receiveKey;
+    private SessionCrypto receiveCrypto;
+    private long receiveEpoch;
+    private SecretKey previousReceiveKey;
+    private SessionCrypto previousReceiveCrypto;
+
+    /**
+     * Uses the session key in both directions.
+     */
+    SessionFramer(SecretKey sessionKey, CipherSuite suite) {
+        this(sessionKey, sessionKey, sessionKey, suite);
+    }
+
+    /**
+     * Uses the per-direction keys of a completed handshake.
+     */
+    SessionFramer(HandshakeResult handshake) {
+        this(handshake.getSessionKey(), handshake.getSendKey(), handshake.getReceiveKey(), handshake.getCipherSuite());
+    }
+
+    SessionFramer(SecretKey sessionKey, SecretKey sendKey, SecretKey receiveKey, CipherSuite suite) {
+        this.sessionKey = sessionKey;
+        this.suite = suite;
+        this.textSendCrypto = new SessionCrypto(sendKey, suite);
+        this.textReceiveCrypto = new SessionCrypto(receiveKey, suite);
+        this.sendKey = sendKey;
+        this.sendCrypto = textSendCrypto;
+        this.receiveKey = receiveKey;
+        this.receiveCrypto = textReceiveCrypto;
+    }
+
+    /**
+     * Returns an additional crypto engine for the given key, e.g. one from {@link #receiveKey(long)}.
+     */
+    SessionCrypto newCrypto(SecretKey key) {
+        return new SessionCrypto(key, suite);
+    }
+
+    CipherSuite suite() {
+        return suite;
+    }
+
+    /**
+     * Derives an independent key from the session key with HKDF. Both peers derive the same
+     * key, so use it for data that only one side encrypts.
+     */
+    SecretKey deriveKey(byte[] salt, byte[] info) {
+        return SessionCrypto.deriveSessionKey(sessionKey.getEncoded(), salt, info);
+    }
+
+    /**
+     * Returns the engine for the sending key at epoch 0, as used by the text wire format,
+     * which never rekeys.
+     */
+    SessionCrypto textSendCrypto() {
+        return textSendCrypto;
+    }
+
+    /**
+     * Returns the engine for the receiving key at epoch 0, for the text wire format.
+     */
+    SessionCrypto textReceiveCrypto() {
+        return textReceiveCrypto;
+    }
+
+    void setRekeyPolicy(RekeyPolicy rekeyPolicy) {
+        this.rekeyPolicy = rekeyPolicy;
+    }
+
+    /**
+     * Returns the key epoch of the next frame sealed.
+     */
+    long sendEpoch() {
+        return sendEpoch;
+    }
+
+    /**
+     * Moves the sending side to the next key now. Does nothing while no frame has been sealed
+     * under the current key: the peer learns of an epoch from its first frame, and only follows
+     * one epoch at a time (see {@link #receiveKey(long)}).
+     */
+    void rekey() {
+        if (epochMessages == 0) return;
+        sendEpoch++;
+        sendKey = nextKey(sendKey, sendEpoch);
+        sendCrypto = new SessionCrypto(sendKey, suite);
+        epochMessages = 0;
+        epochBytes = 0;
+        epochStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the key of the given epoch of the chain, given the key of the epoch before it.
+     * The two directions' chains start from different keys, so they never meet.
+     */
+    static SecretKey nextKey(SecretKey key, long epoch) {
+        byte[] info = Arrays.copyOf(REKEY_INFO, REKEY_INFO.length + Long.BYTES);
+        ByteBuffer.wrap(info, REKEY_INFO.length, Long.BYTES).putLong(epoch);
+        return SessionCrypto.deriveSessionKey(key.getEncoded(), null, info);
+    }
+
+    /**
+     * Returns the key for a received frame's epoch: the current or previous epoch, or the next
+     * one, in which case the receiving side moves on to it. Other epochs are rejected.
+     * A frame that then fails to decrypt ends the session, so following an unauthenticated
+     * epoch does no harm.
+     */
+    SecretKey receiveKey(long epoch) throws IOException {
+        if (epoch == receiveEpoch + 1) {
+            receiveEpoch++;
+            previousReceiveKey = receiveKey;
+            previousReceiveCrypto = receiveCrypto;
+            receiveKey = nextKey(receiveKey, receiveEpoch);
+            receiveCrypto = new SessionCrypto(receiveKey, suite);
+        }
+        if (epoch == receiveEpoch) return receiveKey;
+        if (epoch == receiveEpoch - 1 && previousReceiveKey != null) return previousReceiveKey;
+        throw new IOException("Frame from unexpected key epoch " + epoch + " (current " + receiveEpoch + ")");
+    }
+
+    private SessionCrypto receiveCrypto(long epoch) throws IOException {
+        return receiveKey(epoch) == receiveKey ? receiveCrypto : previousReceiveCrypto;
+    }
+
+    long nextSendCounter() {
+        return sendCounter++;
+    }
+
+    ReplayWindow replayWindow() {
+        return replayWindow;
+    }
+
+    void setReplayWindow(ReplayWindow replayWindow) {
+        this.replayWindow = replayWindow;
+    }
+
+    /**
+     * Rejects a counter the replay window would not accept. Call before decrypting.
+     */
+    void checkReceiveCounter(long counter) throws IOException {
+        if (!replayWindow.check(counter)) {
+            throw replayFailure(counter);
+        }
+    }
+
+    /**
+     * Records a counter once its message has been authenticated.
+     */
+    void acceptReceiveCounter(long counter) throws IOException {
+        if (!replayWindow.accept(counter)) {
+            throw replayFailure(counter);
+        }
+    }
+
+    private IOException replayFailure(long counter) {
+        Metrics.count(Metrics.Counter.REPLAYS_REJECTED, 1);
+        if (replayWindow.getSize() == 0) {
+            return new IOException("Message counter mismatch (possible replay attack)");
+        }
+        return new IOException("Replayed or too old message counter " + counter + " (possible replay attack)");
+    }
+
+    /**
+     * Returns the size of the frame the next call to seal will produce.
+     */
+    int sealedLength(String type, int plaintextLength) {
+        return sealedLength(type, 0, plaintextLength);
+    }
+
+    int sealedLength(String type, long streamId, int plaintextLength) {
+        return FrameCodec.headerLength(type, streamId, sendEpoch, sendCounter)
+                + SessionCrypto.ciphertextLength(plaintextLength);
+    }
+
+    /**
+     * Encrypts the remaining bytes of plaintext and writes the complete frame into dst.
+     * Returns the counter assigned to the message.
+     */
+    long seal(String type, ByteBuffer plaintext, ByteBuffer dst) throws GeneralSecurityException {
+        return seal(type, 0, plaintext, dst);
+    }
+
+    /**
+     * Like {@link #seal(String, ByteBuffer, ByteBuffer)}, for a frame on the given stream.
+     */
+    long seal(String type, long streamId, ByteBuffer plaintext, ByteBuffer dst) throws GeneralSecurityException {
+        long counter = sendCounter++;
+        int length = SessionCrypto.ciphertextLength(plaintext.remaining());
+        int start = dst.position();
+        FrameCodec.writeHeader(dst, 0, type, streamId, sendEpoch, counter, length);
+        // Encrypt straight into the frame after the header, which is authenticated with it
+        sendCrypto.encrypt(counter, dst, start, dst.position() - start, plaintext, dst);
+        // Switch after the frame, so sealedLength already accounts for the next epoch
+        epochMessages++;
+        epochBytes += length;
+        if (rekeyPolicy.shouldRekey(epochMessages, epochBytes, epochStartNanos)) {
+            rekey();
+        }
+        return counter;
+    }
+
+    /**
+     * Verifies and decrypts a decoded frame. The frame payload is decrypted in place,
+     * so the buffer it was decoded from is modified.
+     */
+    ProtocolMessage open(Frame frame) throws GeneralSecurityException, IOException {
+        openInPlace(frame);
+        return message(frame);
+    }
+
+    /**
+     * Verifies and decrypts a decoded frame in place; afterwards the frame payload holds the
+     * plaintext.
+     */
+    void openInPlace(Frame frame) throws GeneralSecurityException, IOException {
+        long counter = frame.getCounter();
+        checkReceiveCounter(counter);
+        ByteBuffer payload = frame.getPayload();
+        receiveCrypto(frame.getEpoch()).decryptInPlace(counter, payload, frame.getHeaderStart(), frame.getHeaderLength(),
+                payload);
+        acceptReceiveCounter(counter);
+    }
+
+    /**
+     * Decrypts a frame in place with the given engine, without touching the replay window.
+     */
+    static ProtocolMessage decrypt(Frame frame, SessionCrypto crypto) throws GeneralSecurityException {
+        ByteBuffer payload = frame.getPayload();
+        crypto.decryptInPlace(frame.getCounter(), payload, frame.getHeaderStart(), frame.getHeaderLength(), payload);
+        return message(frame);
+    }
+
+    /**
+     * Copies an opened frame into a message, decoding its plaintext as UTF-8.
+     */
+    static ProtocolMessage message(Frame frame) {
+        ByteBuffer plaintext = frame.getPayload();
+        int n = plaintext.remaining();
+        String text;
+        if (plaintext.hasArray()) {
+            text = new String(plaintext.array(), plaintext.arrayOffset() + plaintext.position(), n, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[n];
+            plaintext.get(plaintext.position(), bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new ProtocolMessage(frame.getType(), text, frame.getCounter(), frame.getStreamId());
+    }
+}
@@ -0,0 +1,149 @@
+package protocol;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * SimpleMetrics keeps counters, latency histograms and gauges in memory, for tests, logs
+ * or a periodic report.
+ *
+ * Counters are LongAdders and histograms are lock-free arrays of log-linear buckets (four
+ * per power of two, so percentiles are within 25% of the true value), so recording does
+ * not contend between threads.
+ */
+public class SimpleMetrics extends Metrics {
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final Histogram[] histograms = new Histogram[Timer.values().length];
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public SimpleMetrics() {
+        for (int i = 0; i < counters.length; i++) counters[i] = new LongAdder();
+        for (int i = 0; i < histograms.length; i++) histograms[i] = new Histogram();
+    }
+
+    @Override
+    public void increment(Counter counter, long delta) {
+        counters[counter.ordinal()].add(delta);
+    }
+
+    @Override
+    public void record(Timer timer, long nanos) {
+        histograms[timer.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    @Override
+    public void unregisterGauge(String name) {
+        gauges.remove(name);
+    }
+
+    public long getCount(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    public Histogram getHistogram(Timer timer) {
+        return histograms[timer.ordinal()];
+    }
+
+    /**
+     * Reads every registered gauge, sorted by name.
+     */
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Counter counter : Counter.values()) {
+            sb.append(counter).append('=').append(getCount(counter)).append('\n');
+        }
+        for (Timer timer : Timer.values()) {
+            sb.append(timer).append(' ').append(getHistogram(timer)).append('\n');
+        }
+        getGauges().forEach((name, value) -> sb.append(name).append('=').append(value).append('\n'));
+        return sb.toString();
+    }
+
+    /**
+     * A latency histogram in nanoseconds.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            total.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getMeanNanos() {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum() / n;
+        }
+
+        public long getMaxNanos() {
+            return max.get();
+        }
+
+        /**
+         * Returns an upper bound of the given percentile (0-100), or 0 if nothing was recorded.
+         */
+        public long getPercentileNanos(double percentile) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(1, rank)) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + " mean=" + getMeanNanos() + "ns p50=" + getPercentileNanos(50)
+                    + "ns p99=" + getPercentileNanos(99) + "ns max=" + getMaxNanos() + "ns";
+        }
+
+        /**
+         * Values below 4 get their own bucket; above, each power of two is split in four.
+         */
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return (exponent - 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int exponent = bucket / SUB_BUCKETS + 1;
+            long sub = bucket % SUB_BUCKETS;
+            long lower = (1L << exponent) + (sub << (exponent - 2));
+            return lower + (1L << (exponent - 2)) - 1;
+        }
+    }
+}
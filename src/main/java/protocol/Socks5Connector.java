@@ -0,0 +1,572 @@
+package protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Socks5Connector dials peers through Tor's SOCKS port, e.g. {@link TorManager#getSocksAddress()},
+ * and is the production {@link Dialer} for a {@link PeerConnectionPool}.
+ *
+ * <ul>
+ *   <li>Every dial runs the SOCKS5 negotiation without blocking, on one selector thread, so
+ *       many circuits can be built at once without a thread each.</li>
+ *   <li>At most the dial limit are in progress at a time; further dials wait their turn in
+ *       order. Each dial fails with a {@link SocketTimeoutException} once the dial timeout has
+ *       passed since it was requested, including the time spent waiting.</li>
+ *   <li>Favourite contacts can be pre-warmed: a background task keeps a connected socket to
+ *       each, which the next dial to that address takes instead of waiting for Tor to fetch
+ *       the descriptor and build the rendezvous circuit.</li>
+ * </ul>
+ * Addresses are "host:port", or a bare onion address for the {@link TorManager#VIRTUAL_PORT}.
+ * Host names are passed to the proxy unresolved, as Tor requires for onion addresses.
+ */
+public class Socks5Connector implements Dialer, Closeable {
+    private static final int VERSION = 5;
+    private static final int NO_AUTH = 0;
+    private static final int CMD_CONNECT = 1;
+    private static final int ATYP_IPV4 = 1;
+    private static final int ATYP_DOMAIN = 3;
+    private static final int ATYP_IPV6 = 4;
+
+    private final InetSocketAddress proxy;
+    private long dialTimeoutMillis = 120_000;
+    private volatile int maxConcurrentDials = 16;
+    private long prewarmIntervalMillis = 15_000;
+    private long warmTtlMillis = 20_000;
+
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final ConcurrentLinkedQueue<Attempt> submitted = new ConcurrentLinkedQueue<>();
+    private final Set<String> favourites = ConcurrentHashMap.newKeySet();
+    private final Map<String, Warm> warm = new ConcurrentHashMap<>();
+    private final Set<String> warming = ConcurrentHashMap.newKeySet();
+    private final AtomicLong dials = new AtomicLong();
+    private final AtomicLong warmHits = new AtomicLong();
+    private ScheduledExecutorService prewarmer;
+    private volatile boolean closed;
+
+    // Selector thread only
+    private final ArrayDeque<Attempt> waiting = new ArrayDeque<>();
+    private final List<Attempt> active = new ArrayList<>();
+    private final List<Attempt> negotiated = new ArrayList<>();
+
+    /**
+     * @param socksAddress the proxy as "host:port"
+     */
+    public Socks5Connector(String socksAddress) throws IOException {
+        this(parseProxy(socksAddress));
+    }
+
+    public Socks5Connector(InetSocketAddress proxy) throws IOException {
+        this.proxy = proxy;
+        this.selector = Selector.open();
+        this.selectorThread = Threads.daemonFactory("socks5-connector").newThread(this::run);
+        selectorThread.start();
+    }
+
+    /**
+     * Sets how long a dial may take, from the request to the proxy's success reply.
+     */
+    public void setDialTimeoutMillis(long dialTimeoutMillis) {
+        if (dialTimeoutMillis < 1) throw new IllegalArgumentException("dialTimeoutMillis must be positive");
+        this.dialTimeoutMillis = dialTimeoutMillis;
+    }
+
+    /**
+     * Sets how many dials may be in progress at once.
+     */
+    public void setMaxConcurrentDials(int maxConcurrentDials) {
+        if (maxConcurrentDials < 1) throw new IllegalArgumentException("maxConcurrentDials must be at least 1");
+        this.maxConcurrentDials = maxConcurrentDials;
+        selector.wakeup();
+    }
+
+    /**
+     * Sets how often favourites without a warm socket are dialed. Takes effect before the
+     * first favourite is added.
+     */
+    public void setPrewarmIntervalMillis(long prewarmIntervalMillis) {
+        if (prewarmIntervalMillis < 1) throw new IllegalArgumentException("prewarmIntervalMillis must be positive");
+        this.prewarmIntervalMillis = prewarmIntervalMillis;
+    }
+
+    /**
+     * Sets how long an unused warm socket is kept. Keep it below the peer's handshake timeout
+     * (see {@link PeerServer#setHandshakeTimeoutMillis(int)}), which closes connections that
+     * stay silent for longer.
+     */
+    public void setWarmTtlMillis(long warmTtlMillis) {
+        if (warmTtlMillis < 1) throw new IllegalArgumentException("warmTtlMillis must be positive");
+        this.warmTtlMillis = warmTtlMillis;
+    }
+
+    /**
+     * Starts dialing the address. The future completes with a connected channel in blocking
+     * mode ({@link PeerEngine#register} switches it back), or fails with an IOException.
+     * Cancelling the future abandons the dial.
+     */
+    public CompletableFuture<SocketChannel> connect(String address) {
+        CompletableFuture<SocketChannel> future = new CompletableFuture<>();
+        Attempt attempt;
+        try {
+            attempt = new Attempt(address, future, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(dialTimeoutMillis));
+        } catch (IllegalArgumentException e) {
+            future.completeExceptionally(new IOException(e.getMessage(), e));
+            return future;
+        }
+        if (closed) {
+            future.completeExceptionally(new IOException("Connector is closed"));
+            return future;
+        }
+        dials.incrementAndGet();
+        submitted.add(attempt);
+        // The selector thread may have drained the queue for the last time already
+        if (closed && submitted.remove(attempt)) {
+            future.completeExceptionally(new IOException("Connector is closed"));
+            return future;
+        }
+        // Wake the selector so a cancelled dial gives up its slot at once
+        future.whenComplete((channel, failure) -> {
+            if (future.isCancelled()) selector.wakeup();
+        });
+        selector.wakeup();
+        return future;
+    }
+
+    /**
+     * Starts dialing every address, subject to the dial limit. Returns each address's dial
+     * in the order given.
+     */
+    public Map<String, CompletableFuture<SocketChannel>> connectAll(Collection<String> addresses) {
+        Map<String, CompletableFuture<SocketChannel>> result = new LinkedHashMap<>();
+        for (String address : addresses) {
+            result.computeIfAbsent(address, this::connect);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a socket to the address: a warm one if the address is a favourite that has one,
+     * otherwise a new one dialed through the proxy.
+     */
+    @Override
+    public Socket dial(String address) throws IOException {
+        Warm w = warm.remove(address);
+        if (w != null) {
+            if (w.isUsable(warmTtlMillis)) {
+                warmHits.incrementAndGet();
+                return w.channel.socket();
+            }
+            closeQuietly(w.channel);
+        }
+        CompletableFuture<SocketChannel> dial = connect(address);
+        try {
+            return dial.get().socket();
+        } catch (InterruptedException e) {
+            dial.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while dialing " + address, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Failed to dial " + address, cause);
+        }
+    }
+
+    /**
+     * Keeps a warm socket to the address from now on.
+     */
+    public void addFavourite(String address) {
+        parseTarget(address);
+        favourites.add(address);
+        startPrewarming();
+    }
+
+    public void removeFavourite(String address) {
+        favourites.remove(address);
+        Warm w = warm.remove(address);
+        if (w != null) closeQuietly(w.channel);
+    }
+
+    /**
+     * Returns the number of warm sockets currently held.
+     */
+    public int getWarmCount() {
+        return warm.size();
+    }
+
+    /**
+     * Returns the number of dials served by a warm socket.
+     */
+    public long getWarmHits() {
+        return warmHits.get();
+    }
+
+    /**
+     * Returns the number of dials made through the proxy, including pre-warming.
+     */
+    public long getDialCount() {
+        return dials.get();
+    }
+
+    /**
+     * Fails every dial in progress, closes warm sockets and stops the selector thread.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (prewarmer != null) prewarmer.shutdownNow();
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Warm w : warm.values()) {
+            closeQuietly(w.channel);
+        }
+        warm.clear();
+    }
+
+    private synchronized void startPrewarming() {
+        if (closed) throw new IllegalStateException("Connector is closed");
+        if (prewarmer == null) {
+            prewarmer = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory("socks5-prewarm"));
+            prewarmer.scheduleWithFixedDelay(this::prewarm, prewarmIntervalMillis, prewarmIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        // Warm the new favourite now rather than at the next interval
+        prewarmer.execute(this::prewarm);
+    }
+
+    private void prewarm() {
+        for (Map.Entry<String, Warm> e : warm.entrySet()) {
+            if (!e.getValue().isUsable(warmTtlMillis) && warm.remove(e.getKey(), e.getValue())) {
+                closeQuietly(e.getValue().channel);
+            }
+        }
+        for (String address : favourites) {
+            if (warm.containsKey(address) || !warming.add(address)) continue;
+            connect(address).whenComplete((channel, failure) -> {
+                warming.remove(address);
+                if (failure != null) return;
+                // Dropped from the favourites or closed meanwhile
+                if (!favourites.contains(address) || closed || warm.putIfAbsent(address, new Warm(channel)) != null) {
+                    closeQuietly(channel);
+                }
+            });
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                long now = System.nanoTime();
+                long wait = 0;
+                for (Attempt a : active) {
+                    wait = nearer(wait, a.deadline - now);
+                }
+                Attempt first = waiting.peek();
+                if (first != null) wait = nearer(wait, first.deadline - now);
+                // Blocks until a wakeup when no dial is pending
+                selector.select(wait == 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) handle(key, (Attempt) key.attachment());
+                }
+                if (!negotiated.isEmpty()) release();
+                Attempt a;
+                while ((a = submitted.poll()) != null) {
+                    waiting.add(a);
+                }
+                expire(System.nanoTime());
+                while (active.size() < maxConcurrentDials && (a = waiting.poll()) != null) {
+                    if (!a.future.isDone()) start(a);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            closed = true;
+        } finally {
+            IOException failure = new IOException("Connector is closed");
+            for (Attempt a : active) {
+                fail(a, failure);
+            }
+            active.clear();
+            for (Attempt a : negotiated) {
+                fail(a, failure);
+            }
+            negotiated.clear();
+            for (Attempt a : waiting) {
+                a.future.completeExceptionally(failure);
+            }
+            waiting.clear();
+            Attempt a;
+            while ((a = submitted.poll()) != null) {
+                a.future.completeExceptionally(failure);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static long nearer(long current, long remaining) {
+        long r = Math.max(1, remaining);
+        return current == 0 ? r : Math.min(current, r);
+    }
+
+    /**
+     * Fails dials past their deadline, and drops those cancelled by the caller.
+     */
+    private void expire(long now) {
+        for (Iterator<Attempt> it = active.iterator(); it.hasNext(); ) {
+            Attempt a = it.next();
+            if (a.future.isDone() || now - a.deadline >= 0) {
+                it.remove();
+                fail(a, timeout(a));
+            }
+        }
+        for (Iterator<Attempt> it = waiting.iterator(); it.hasNext(); ) {
+            Attempt a = it.next();
+            if (a.future.isDone() || now - a.deadline >= 0) {
+                it.remove();
+                a.future.completeExceptionally(timeout(a));
+            }
+        }
+    }
+
+    private SocketTimeoutException timeout(Attempt a) {
+        return new SocketTimeoutException("SOCKS dial to " + a.address + " timed out after " + dialTimeoutMillis + " ms");
+    }
+
+    private void start(Attempt a) {
+        active.add(a);
+        try {
+            SocketChannel channel = SocketChannel.open();
+            a.channel = channel;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(proxy);
+            a.key = channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, a);
+        } catch (IOException e) {
+            active.remove(a);
+            fail(a, new IOException("Cannot connect to SOCKS proxy " + proxy, e));
+        }
+    }
+
+    private void handle(SelectionKey key, Attempt a) {
+        try {
+            if (key.isConnectable()) {
+                if (!a.channel.finishConnect()) return;
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if (key.isWritable()) {
+                a.channel.write(a.out);
+                if (!a.out.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (key.isReadable()) {
+                if (a.channel.read(a.in) < 0) throw new IOException("SOCKS proxy closed the connection");
+                if (!a.in.hasRemaining() && a.advance()) {
+                    active.remove(a);
+                    key.cancel();
+                    negotiated.add(a);
+                }
+            }
+        } catch (IOException e) {
+            active.remove(a);
+            fail(a, e);
+        }
+    }
+
+    /**
+     * Hands negotiated channels to their callers. Runs after the selected keys are drained,
+     * since the selectNow that deregisters the cancelled keys also refills the selected set.
+     */
+    private void release() throws IOException {
+        selector.selectNow();
+        for (Attempt a : negotiated) {
+            try {
+                a.channel.configureBlocking(true);
+                if (!a.future.complete(a.channel)) closeQuietly(a.channel);
+            } catch (IOException e) {
+                fail(a, e);
+            }
+        }
+        negotiated.clear();
+    }
+
+    private static void fail(Attempt a, IOException cause) {
+        if (a.channel != null) closeQuietly(a.channel);
+        a.future.completeExceptionally(cause);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    static InetSocketAddress parseProxy(String socksAddress) {
+        int colon = socksAddress.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Expected host:port, got " + socksAddress);
+        return new InetSocketAddress(socksAddress.substring(0, colon), Integer.parseInt(socksAddress.substring(colon + 1)));
+    }
+
+    /**
+     * Splits an address into host and port; a bare host gets the hidden service port.
+     */
+    static InetSocketAddress parseTarget(String address) {
+        int colon = address.lastIndexOf(':');
+        String host = colon < 0 ? address : address.substring(0, colon);
+        int port = TorManager.VIRTUAL_PORT;
+        if (colon >= 0) {
+            try {
+                port = Integer.parseInt(address.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in address: " + address);
+            }
+        }
+        if (host.isEmpty() || host.length() > 255) throw new IllegalArgumentException("Invalid host in address: " + address);
+        if (port < 1 || port > 65535) throw new IllegalArgumentException("Invalid port in address: " + address);
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * Describes a SOCKS5 reply code, including Tor's extended codes for onion services.
+     */
+    static String replyMessage(int code) {
+        switch (code) {
+            case 0x01: return "general SOCKS server failure";
+            case 0x02: return "connection not allowed by ruleset";
+            case 0x03: return "network unreachable";
+            case 0x04: return "host unreachable";
+            case 0x05: return "connection refused";
+            case 0x06: return "TTL expired";
+            case 0x07: return "command not supported";
+            case 0x08: return "address type not supported";
+            case 0xF0: return "onion service descriptor not found";
+            case 0xF1: return "onion service descriptor is invalid";
+            case 0xF2: return "onion service introduction failed";
+            case 0xF3: return "onion service rendezvous failed";
+            case 0xF4: return "onion service client authorization missing";
+            case 0xF5: return "onion service client authorization wrong";
+            case 0xF6: return "onion address is invalid";
+            case 0xF7: return "onion service introduction timed out";
+            default: return "reply code " + code;
+        }
+    }
+
+    /**
+     * One dial, from the TCP connect to the proxy through the SOCKS5 negotiation.
+     */
+    private static final class Attempt {
+        private static final int METHOD = 0;
+        private static final int REPLY = 1;
+        private static final int REPLY_ADDRESS = 2;
+
+        final String address;
+        final CompletableFuture<SocketChannel> future;
+        final long deadline;
+        final byte[] request;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer out = ByteBuffer.wrap(new byte[] {VERSION, 1, NO_AUTH});
+        ByteBuffer in = ByteBuffer.allocate(2);
+        int state = METHOD;
+
+        Attempt(String address, CompletableFuture<SocketChannel> future, long deadline) {
+            this.address = address;
+            this.future = future;
+            this.deadline = deadline;
+            InetSocketAddress target = parseTarget(address);
+            byte[] host = target.getHostString().getBytes(StandardCharsets.US_ASCII);
+            ByteBuffer req = ByteBuffer.allocate(7 + host.length);
+            req.put((byte) VERSION).put((byte) CMD_CONNECT).put((byte) 0).put((byte) ATYP_DOMAIN)
+                    .put((byte) host.length).put(host).putShort((short) target.getPort());
+            this.request = req.array();
+        }
+
+        /**
+         * Handles a complete response. Returns true once the proxy has connected the target.
+         */
+        boolean advance() throws IOException {
+            byte[] b = in.array();
+            switch (state) {
+                case METHOD:
+                    if (b[0] != VERSION) throw new IOException("Not a SOCKS5 proxy");
+                    if (b[1] != NO_AUTH) throw new IOException("SOCKS proxy requires authentication");
+                    out = ByteBuffer.wrap(request);
+                    // Version, reply, reserved, address type and the first address byte
+                    in = ByteBuffer.allocate(5);
+                    state = REPLY;
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return false;
+                case REPLY:
+                    if (b[0] != VERSION) throw new IOException("Not a SOCKS5 proxy");
+                    int code = b[1] & 0xFF;
+                    if (code != 0) throw new IOException("SOCKS dial to " + address + " failed: " + replyMessage(code));
+                    int rest;
+                    switch (b[3]) {
+                        case ATYP_IPV4: rest = 4 - 1 + 2; break;
+                        case ATYP_DOMAIN: rest = (b[4] & 0xFF) + 2; break;
+                        case ATYP_IPV6: rest = 16 - 1 + 2; break;
+                        default: throw new IOException("Unknown SOCKS address type: " + b[3]);
+                    }
+                    in = ByteBuffer.allocate(rest);
+                    state = REPLY_ADDRESS;
+                    return false;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * A connected socket held for a favourite until it is taken or expires.
+     */
+    private static final class Warm {
+        final SocketChannel channel;
+        final long createdNanos = System.nanoTime();
+
+        Warm(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isUsable(long ttlMillis) {
+            return channel.isOpen() && System.nanoTime() - createdNanos < TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        }
+    }
+}
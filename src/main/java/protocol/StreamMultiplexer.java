@@ -0,0 +1,473 @@
+package protocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * StreamMultiplexer carries many independent, ordered message streams over one
+ * {@link PeerChannel}, so a bulk transfer no longer holds chat messages up behind it and one
+ * Tor circuit serves every conversation with a contact.
+ *
+ * Each frame names its stream in the header (see {@link FrameCodec#FLAG_STREAM}). The side
+ * that initiated the connection opens odd stream ids and the other side even ones; a stream
+ * is opened by sending on it, and the peer picks it up with {@link #accept()}.
+ *
+ * Flow control is credit-based, per stream: a sender may have at most the stream window
+ * (counted in UTF-8 payload bytes) delivered to the peer but not yet received by its
+ * application. As the application receives messages, the peer returns credit with a
+ * {@link #CREDIT} message. A stream whose reader falls behind stalls on its own without
+ * holding up the others. Both sides must use the same window.
+ *
+ * The peer may have at most {@link #setMaxInboundStreams max inbound streams} open at once;
+ * a stream it opens beyond that is refused with a {@link #RESET}, which fails the stream on
+ * the peer's side. The peer answers a reset with a {@link #CLOSE} behind the data it had
+ * already queued on the stream, which is dropped.
+ *
+ * Outbound frames are scheduled round-robin: each stream with queued messages sends one frame
+ * per turn, after any pending credit and close messages. Messages may be at most half the
+ * window; split bulk data into messages of a few KiB so that streams interleave finely.
+ *
+ * The multiplexer owns the channel's receive loop from construction. Messages on stream 0,
+ * sent by the peer with a plain {@link PeerChannel#send}, are returned by {@link #receive()}.
+ */
+public class StreamMultiplexer implements Closeable {
+    /** Returns flow control credit for a stream; the payload is the number of bytes. */
+    public static final String CREDIT = "stream-credit";
+    /** Ends the sender's side of a stream. */
+    public static final String CLOSE = "stream-close";
+    /** Refuses a stream the peer opened; the peer's stream fails. */
+    public static final String RESET = "stream-reset";
+    /** Default limit on streams opened by the peer and not yet closed on both sides. */
+    public static final int DEFAULT_MAX_INBOUND_STREAMS = 256;
+    // Refused streams whose CLOSE has not arrived yet; a peer with more is not answering resets
+    private static final int MAX_REFUSED_STREAMS = 1024;
+    /** Default per-stream window, in payload bytes. */
+    public static final int DEFAULT_WINDOW = 256 * 1024;
+    static final Object END = new Object();
+
+    private final PeerChannel channel;
+    private final int window;
+    private final boolean initiator;
+    private final AtomicLong nextId;
+    private final Map<Long, PeerStream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger inboundStreams = new AtomicInteger();
+    private volatile int maxInboundStreams = DEFAULT_MAX_INBOUND_STREAMS;
+    // Reader thread only
+    private final Set<Long> refused = new HashSet<>();
+    private final BlockingQueue<Object> accepted = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Object> inbox = new LinkedBlockingQueue<>();
+    private final Thread reader;
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // Scheduler state, guarded by lock
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition writable = lock.newCondition();
+    private final Condition work = lock.newCondition();
+    private final ArrayDeque<Outbound> control = new ArrayDeque<>();
+    private final ArrayDeque<PeerStream> ready = new ArrayDeque<>();
+    private boolean closing;
+    private IOException failure;
+
+    /**
+     * Starts multiplexing the channel with the default window.
+     *
+     * @param initiator true on the side that opened the connection
+     */
+    public StreamMultiplexer(PeerChannel channel, boolean initiator) {
+        this(channel, initiator, DEFAULT_WINDOW);
+    }
+
+    public StreamMultiplexer(PeerChannel channel, boolean initiator, int window) {
+        if (window < 2) throw new IllegalArgumentException("window must be at least 2");
+        if (channel.getWireFormat() != WireFormat.BINARY) {
+            throw new IllegalArgumentException("Streams need the binary wire format");
+        }
+        this.channel = channel;
+        this.window = window;
+        this.initiator = initiator;
+        this.nextId = new AtomicLong(initiator ? 1 : 2);
+        this.reader = Threads.daemonFactory("stream-mux-reader").newThread(this::readLoop);
+        this.writer = Threads.daemonFactory("stream-mux-writer").newThread(this::writeLoop);
+        reader.start();
+        writer.start();
+    }
+
+    public PeerChannel getChannel() {
+        return channel;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Returns the number of open streams.
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * Sets how many streams the peer may have open at once. Streams opened beyond that are
+     * refused.
+     */
+    public void setMaxInboundStreams(int maxInboundStreams) {
+        if (maxInboundStreams < 0) throw new IllegalArgumentException("maxInboundStreams must not be negative");
+        this.maxInboundStreams = maxInboundStreams;
+    }
+
+    public int getMaxInboundStreams() {
+        return maxInboundStreams;
+    }
+
+    /**
+     * Opens a new stream. The peer learns of it with the first message sent on it.
+     */
+    public PeerStream openStream() throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+        } finally {
+            lock.unlock();
+        }
+        PeerStream stream = new PeerStream(this, nextId.getAndAdd(2), window);
+        streams.put(stream.getId(), stream);
+        return stream;
+    }
+
+    /**
+     * Waits for the next stream opened by the peer. Returns null once the channel is closed.
+     */
+    public PeerStream accept() throws IOException, InterruptedException {
+        return (PeerStream) take(accepted);
+    }
+
+    /**
+     * Waits for the next message on stream 0. Returns null once the channel is closed.
+     */
+    public ProtocolMessage receive() throws IOException, InterruptedException {
+        return (ProtocolMessage) take(inbox);
+    }
+
+    static Object take(BlockingQueue<Object> queue) throws IOException, InterruptedException {
+        Object item = queue.take();
+        if (item == END) {
+            queue.add(END);
+            return null;
+        }
+        if (item instanceof IOException) {
+            queue.add(item);
+            throw new IOException("Stream multiplexer failed", (IOException) item);
+        }
+        return item;
+    }
+
+    /**
+     * Sends what is already queued on every stream, then closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closing = true;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        channel.close();
+    }
+
+    // Called by PeerStream
+
+    void send(PeerStream stream, String type, String plaintext) throws IOException, InterruptedException {
+        int n = payloadBytes(plaintext);
+        if (n > window / 2) {
+            throw new IllegalArgumentException("Message of " + n + " bytes exceeds half the stream window");
+        }
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                checkOpen();
+                if (stream.reset) throw new IOException("Stream " + stream.getId() + " was refused by the peer");
+                if (stream.localClosed) throw new IOException("Stream " + stream.getId() + " is closed");
+                if (stream.credit >= n) break;
+                writable.await();
+            }
+            stream.credit -= n;
+            enqueue(stream, new Outbound(stream.getId(), type, plaintext));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void sendCredit(PeerStream stream, long credit) {
+        lock.lock();
+        try {
+            if (closing || failure != null) return;
+            control.add(new Outbound(stream.getId(), CREDIT, Long.toString(credit)));
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void closeStream(PeerStream stream) {
+        lock.lock();
+        try {
+            if (stream.localClosed) return;
+            stream.localClosed = true;
+            // Queued behind the stream's data, and exempt from flow control
+            if (failure == null) enqueue(stream, new Outbound(stream.getId(), CLOSE, ""));
+            if (stream.remoteClosed) remove(stream);
+            writable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) throw new IOException("Stream multiplexer failed", failure);
+        if (closing) throw new IOException("Stream multiplexer is closed");
+    }
+
+    private void remove(PeerStream stream) {
+        if (streams.remove(stream.getId(), stream) && !isLocal(stream.getId())) inboundStreams.decrementAndGet();
+    }
+
+    private boolean isLocal(long id) {
+        return (id % 2 == 1) == initiator;
+    }
+
+    private void enqueue(PeerStream stream, Outbound message) {
+        stream.outbound.add(message);
+        if (!stream.scheduled) {
+            stream.scheduled = true;
+            ready.add(stream);
+            work.signal();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Outbound next;
+                boolean more;
+                lock.lock();
+                try {
+                    while (failure == null && control.isEmpty() && ready.isEmpty()) {
+                        if (closing) return;
+                        work.await();
+                    }
+                    if (failure != null) return;
+                    next = control.poll();
+                    if (next == null) {
+                        // One frame per stream per turn
+                        PeerStream stream = ready.poll();
+                        next = stream.outbound.poll();
+                        if (stream.outbound.isEmpty()) {
+                            stream.scheduled = false;
+                        } else {
+                            ready.add(stream);
+                        }
+                    }
+                    more = !control.isEmpty() || !ready.isEmpty();
+                } finally {
+                    lock.unlock();
+                }
+                // Flush once nothing else is waiting, so a burst leaves in few socket writes
+                channel.sendOnStream(next.streamId, next.type, next.plaintext, !more);
+            }
+        } catch (InterruptedException e) {
+            fail(new IOException("Writer interrupted", e));
+        } catch (Exception e) {
+            fail(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    private void readLoop() {
+        try {
+            ProtocolMessage msg;
+            while ((msg = channel.receive()) != null) {
+                dispatch(msg);
+            }
+            finish();
+        } catch (Exception e) {
+            if (closed) {
+                finish();
+            } else {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e));
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already failed
+                }
+            }
+        }
+    }
+
+    private void dispatch(ProtocolMessage msg) throws IOException {
+        long id = msg.getStreamId();
+        if (id == 0) {
+            inbox.add(msg);
+            return;
+        }
+        PeerStream stream = streams.get(id);
+        if (stream == null) {
+            // Late credit for a finished stream of ours
+            if (isLocal(id) || CREDIT.equals(msg.getType())) return;
+            if (refused.contains(id)) {
+                if (CLOSE.equals(msg.getType())) refused.remove(id);
+                return;
+            }
+            if (inboundStreams.get() >= maxInboundStreams) {
+                if (refused.size() >= MAX_REFUSED_STREAMS) {
+                    throw new IOException("Peer keeps sending on " + refused.size() + " refused streams");
+                }
+                // A stream closed in its first frame has nothing more to drop
+                if (!CLOSE.equals(msg.getType())) refused.add(id);
+                refuse(id);
+                return;
+            }
+            inboundStreams.incrementAndGet();
+            stream = new PeerStream(this, id, window);
+            streams.put(id, stream);
+            accepted.add(stream);
+        }
+        if (RESET.equals(msg.getType())) {
+            lock.lock();
+            try {
+                stream.reset = true;
+                stream.remoteClosed = true;
+                if (!stream.localClosed) {
+                    // Tells the peer the last of the stream's data has been sent
+                    stream.localClosed = true;
+                    if (failure == null) enqueue(stream, new Outbound(id, CLOSE, ""));
+                }
+                remove(stream);
+                writable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            stream.deliver(new IOException("Stream " + id + " was refused by the peer"));
+        } else if (CREDIT.equals(msg.getType())) {
+            long credit = Long.parseLong(msg.getPayload());
+            lock.lock();
+            try {
+                stream.credit += credit;
+                writable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        } else if (CLOSE.equals(msg.getType())) {
+            lock.lock();
+            try {
+                stream.remoteClosed = true;
+                if (stream.localClosed) remove(stream);
+            } finally {
+                lock.unlock();
+            }
+            stream.deliver(END);
+        } else {
+            stream.deliverMessage(msg);
+        }
+    }
+
+    private void refuse(long id) {
+        lock.lock();
+        try {
+            if (closing || failure != null) return;
+            control.add(new Outbound(id, RESET, ""));
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The channel reached its end: every stream ends as if the peer had closed it.
+     */
+    private void finish() {
+        lock.lock();
+        try {
+            if (failure == null) failure = new IOException("Channel closed");
+            writable.signalAll();
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        accepted.add(END);
+        inbox.add(END);
+        for (PeerStream stream : streams.values()) {
+            stream.deliver(END);
+        }
+    }
+
+    private void fail(IOException cause) {
+        lock.lock();
+        try {
+            if (failure == null) failure = cause;
+            writable.signalAll();
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        accepted.add(cause);
+        inbox.add(cause);
+        for (PeerStream stream : streams.values()) {
+            stream.deliver(cause);
+        }
+    }
+
+    /**
+     * Returns the length of the payload once encoded as UTF-8, as the channel sends it, without
+     * encoding it. Unpaired surrogates count as the one-byte replacement the encoder writes.
+     */
+    static int payloadBytes(String s) {
+        int n = s.length();
+        int bytes = n;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                bytes++;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // Four bytes for the pair
+                bytes += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    static final class Outbound {
+        final long streamId;
+        final String type;
+        final String plaintext;
+
+        Outbound(long streamId, String type, String plaintext) {
+            this.streamId = streamId;
+            this.type = type;
+            this.plaintext = plaintext;
+        }
+    }
+}
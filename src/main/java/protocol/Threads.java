@@ -0,0 +1,81 @@
+package protocol;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread helpers shared by the server and connection components.
+ *
+ * The library compiles for Java 17, so virtual threads (JDK 21+) are looked up reflectively.
+ * On older runtimes the helpers fall back to daemon platform threads.
+ */
+final class Threads {
+    private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+
+    private Threads() {
+    }
+
+    /**
+     * Returns true if the running JDK supports virtual threads.
+     */
+    static boolean virtualThreadsAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Returns a factory for virtual threads named prefix-N, or for daemon platform threads
+     * if virtual threads are not available.
+     */
+    static ThreadFactory factory(String prefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix + "-", 0L);
+                return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                // fall through to platform threads
+            }
+        }
+        return daemonFactory(prefix);
+    }
+
+    /**
+     * Returns a factory for daemon platform threads named prefix-N.
+     */
+    static ThreadFactory daemonFactory(String prefix) {
+        AtomicLong count = new AtomicLong();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Returns an executor that starts a new (virtual, when available) thread per task.
+     */
+    static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        Method perTask = findMethod(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+        if (perTask != null) {
+            try {
+                return (ExecutorService) perTask.invoke(null, factory);
+            } catch (ReflectiveOperationException e) {
+                // fall through
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    private static Method findMethod(Class<?> type, String name, Class<?>... params) {
+        try {
+            return type.getMethod(name, params);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -2,28 +2,49 @@ package protocol;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 
 /**
  * TorControlClient manages a connection to the Tor ControlPort using plain sockets.
  * It can authenticate, create ephemeral hidden services, and send commands.
  *
  * This is the recommended way to control Tor from Java (best practice).
+ *
+ * Commands are pipelined: {@link #command(String)} writes the command and returns a future
+ * at once, so several commands can be outstanding. A dedicated reader thread parses replies
+ * ("250-" and "250+" multi-line replies included) and completes the futures in order, and
+ * dispatches asynchronous "650" events to listeners registered with
+ * {@link #addEventListener(String, TorEventListener)}.
  */
 public class TorControlClient implements Closeable {
     private final Socket socket;
     private final BufferedReader in;
-    private final PrintWriter out;
-
+    private final Writer out;
+    private final Queue<CompletableFuture<ControlReply>> pending = new ConcurrentLinkedQueue<>();
+    private final Map<String, List<TorEventListener>> listeners = new ConcurrentHashMap<>();
+    private final Thread reader;
+    private volatile IOException failure;
 
     /**
      * Create a TorControlClient connecting to the given host/port.
      */
     public TorControlClient(String host, int port) throws IOException {
         this.socket = new Socket(host, port);
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII));
+        this.reader = Threads.daemonFactory("tor-control-reader").newThread(this::readLoop);
+        reader.start();
     }
 
     /**
@@ -57,9 +78,8 @@ public class TorControlClient implements Closeable {
             for (byte b : cookie) {
                 hex.append(String.format("%02X", b));
             }
-            send("AUTHENTICATE " + hex + "\r\n");
-            String resp = in.readLine();
-            if (!resp.startsWith("250")) {
+            ControlReply resp = await(command("AUTHENTICATE " + hex));
+            if (!resp.isOk()) {
                 throw new IOException("Tor cookie authentication failed: " + resp);
             }
         } else {
@@ -85,9 +105,8 @@ public class TorControlClient implements Closeable {
      * If CookieAuthentication is enabled, use authenticateWithCookie instead.
      */
     public void authenticate() throws IOException {
-        send("AUTHENTICATE\r\n");
-        String resp = in.readLine();
-        if (!resp.startsWith("250")) {
+        ControlReply resp = await(command("AUTHENTICATE"));
+        if (!resp.isOk()) {
             throw new IOException("Tor authentication failed: " + resp);
         }
     }
@@ -97,26 +116,202 @@ public class TorControlClient implements Closeable {
      * Returns the onion address.
      */
     public String addOnion(int virtPort, int targetPort) throws IOException {
-        send("ADD_ONION NEW:ED25519-V3 Port=" + virtPort + ",127.0.0.1:" + targetPort + "\r\n");
-        List<String> lines = new ArrayList<>();
-        String line;
-        while ((line = in.readLine()) != null && !line.equals("250 OK")) {
-            lines.add(line);
+        ControlReply resp = await(addOnionAsync("NEW:ED25519-V3", virtPort, targetPort));
+        String serviceId = resp.get("ServiceID");
+        if (!resp.isOk() || serviceId == null) {
+            throw new IOException("Failed to create onion service: " + resp);
+        }
+        return serviceId + ".onion";
+    }
+
+    /**
+     * Publishes the onion service of an identity, so it keeps the same address on every
+     * start. Returns the onion address.
+     */
+    public String addOnion(Identity identity, int virtPort, int targetPort) throws IOException {
+        return addOnions(List.of(identity), virtPort, List.of(targetPort)).get(0);
+    }
+
+    /**
+     * Publishes the onion services of many identities (e.g. one per profile) in one pipelined
+     * batch: every ADD_ONION is written before any reply is awaited, so the batch costs about
+     * one round trip instead of one per service. Returns the onion addresses in order.
+     */
+    public List<String> addOnions(List<Identity> identities, int virtPort, List<Integer> targetPorts) throws IOException {
+        if (identities.size() != targetPorts.size()) {
+            throw new IllegalArgumentException("One target port is needed per identity");
         }
-        for (String l : lines) {
-            if (l.startsWith("250-ServiceID=")) {
-                return l.substring("250-ServiceID=".length()) + ".onion";
+        List<CompletableFuture<ControlReply>> replies = new ArrayList<>(identities.size());
+        for (int i = 0; i < identities.size(); i++) {
+            // Tor already knows the key, so it does not need to send it back
+            replies.add(addOnionAsync(identities.get(i).getOnionServiceKey() + " Flags=DiscardPK", virtPort, targetPorts.get(i)));
+        }
+        List<String> addresses = new ArrayList<>(identities.size());
+        List<String> failures = new ArrayList<>();
+        for (int i = 0; i < identities.size(); i++) {
+            ControlReply resp = await(replies.get(i));
+            String expected = identities.get(i).getOnionServiceId();
+            if (!resp.isOk()) {
+                failures.add(expected + ": " + resp);
+            } else if (!expected.equals(resp.get("ServiceID"))) {
+                failures.add(expected + ": Tor reported ServiceID " + resp.get("ServiceID"));
             }
+            addresses.add(expected + ".onion");
+        }
+        if (!failures.isEmpty()) {
+            throw new IOException("Failed to publish " + failures.size() + " onion service(s): " + failures);
         }
-        throw new IOException("Failed to create onion service: " + lines);
+        return addresses;
     }
 
     /**
-     * Send a raw command to the Tor ControlPort.
+     * Sends ADD_ONION with the given key spec (e.g. "NEW:ED25519-V3") without waiting.
+     */
+    public CompletableFuture<ControlReply> addOnionAsync(String keySpec, int virtPort, int targetPort) {
+        return command("ADD_ONION " + keySpec + " Port=" + virtPort + ",127.0.0.1:" + targetPort);
+    }
+
+    /**
+     * Sends a command and returns a future for its reply. Commands may be pipelined; replies
+     * complete in the order the commands were sent. A trailing CRLF is optional.
+     */
+    public CompletableFuture<ControlReply> command(String cmd) {
+        String line = cmd.endsWith("\r\n") ? cmd : cmd + "\r\n";
+        CompletableFuture<ControlReply> reply = new CompletableFuture<>();
+        long start = Metrics.start();
+        if (start != 0) {
+            reply.whenComplete((r, e) -> Metrics.stop(Metrics.Timer.TOR_COMMAND, start));
+        }
+        synchronized (out) {
+            if (failure != null) {
+                reply.completeExceptionally(failure);
+                return reply;
+            }
+            // Queue before writing so the reader always finds the future for a reply
+            pending.add(reply);
+            try {
+                out.write(line);
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * Send a raw command to the Tor ControlPort without waiting for the reply.
      */
     public void send(String cmd) {
-        out.print(cmd);
-        out.flush();
+        command(cmd);
+    }
+
+    /**
+     * Registers a listener for an event type (e.g. "STATUS_CLIENT", "HS_DESC") and updates
+     * the subscription with SETEVENTS. The returned future completes when Tor confirms it.
+     */
+    public CompletableFuture<ControlReply> addEventListener(String event, TorEventListener listener) {
+        listeners.computeIfAbsent(event, e -> new CopyOnWriteArrayList<>()).add(listener);
+        return updateEvents();
+    }
+
+    /**
+     * Removes a listener; the event is unsubscribed when its last listener is gone.
+     */
+    public CompletableFuture<ControlReply> removeEventListener(String event, TorEventListener listener) {
+        listeners.computeIfPresent(event, (e, list) -> {
+            list.remove(listener);
+            return list.isEmpty() ? null : list;
+        });
+        return updateEvents();
+    }
+
+    private synchronized CompletableFuture<ControlReply> updateEvents() {
+        Set<String> events = new TreeSet<>(listeners.keySet());
+        return command(events.isEmpty() ? "SETEVENTS" : "SETEVENTS " + String.join(" ", events));
+    }
+
+    private void readLoop() {
+        try {
+            int status = -1;
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() < 4) throw new IOException("Malformed control reply: " + line);
+                int code = Integer.parseInt(line.substring(0, 3));
+                char kind = line.charAt(3);
+                String text = line.substring(4);
+                if (status != -1 && code != status) throw new IOException("Interleaved control reply: " + line);
+                status = code;
+                if (kind == '+') {
+                    text = text + "\n" + readDataBlock();
+                } else if (kind != '-' && kind != ' ') {
+                    throw new IOException("Malformed control reply: " + line);
+                }
+                lines.add(text);
+                if (kind == ' ') {
+                    dispatch(new ControlReply(status, lines));
+                    status = -1;
+                    lines = new ArrayList<>();
+                }
+            }
+            fail(new EOFException("Tor closed the control connection"));
+        } catch (IOException | RuntimeException e) {
+            fail(e instanceof IOException ? (IOException) e : new IOException("Malformed control reply", e));
+        }
+    }
+
+    /**
+     * Reads the data lines following a "NNN+" line, up to the terminating ".".
+     */
+    private String readDataBlock() throws IOException {
+        StringBuilder data = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(".")) return data.toString();
+            if (data.length() > 0) data.append('\n');
+            data.append(line.startsWith(".") ? line.substring(1) : line);
+        }
+        throw new EOFException("Tor closed the control connection inside a data block");
+    }
+
+    private void dispatch(ControlReply reply) {
+        if (reply.getStatus() == 650) {
+            for (TorEventListener listener : listeners.getOrDefault(reply.getEventType(), List.of())) {
+                try {
+                    listener.onEvent(reply);
+                } catch (RuntimeException ignored) {
+                    // A faulty listener must not stop the reader
+                }
+            }
+            return;
+        }
+        CompletableFuture<ControlReply> future = pending.poll();
+        if (future != null) {
+            future.complete(reply);
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (out) {
+            if (failure == null) failure = e;
+        }
+        CompletableFuture<ControlReply> future;
+        while ((future = pending.poll()) != null) {
+            future.completeExceptionally(failure);
+        }
+    }
+
+    private static ControlReply await(CompletableFuture<ControlReply> reply) throws IOException {
+        try {
+            return reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for Tor");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
     }
 
     @Override
@@ -0,0 +1,12 @@
+package protocol;
+
+/**
+ * TorEventListener receives asynchronous ControlPort events subscribed with
+ * {@link TorControlClient#addEventListener(String, TorEventListener)}.
+ *
+ * Called on the client's reader thread, so implementations must not block or wait for
+ * replies to other control commands.
+ */
+public interface TorEventListener {
+    void onEvent(ControlReply event);
+}
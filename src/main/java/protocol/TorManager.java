@@ -1,7 +1,21 @@
 package protocol;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * TorManager handles launching a Tor process, creating a hidden service,
@@ -9,53 +23,238 @@ import java.util.concurrent.TimeUnit;
  *
  * This class assumes Tor is installed and available on the system PATH.
  * For production, bundle Tor or use a Java Tor library.
+ *
+ * Tor keeps its state in a persistent DataDirectory, so later starts reuse the cached
+ * consensus and descriptors instead of bootstrapping from scratch. Readiness is tracked over
+ * the ControlPort: the generated torrc asks Tor to write its control port to a file, the
+ * manager subscribes to STATUS_CLIENT bootstrap events, and the hidden service is created
+ * with ADD_ONION while Tor is still bootstrapping. The time each phase took is available
+ * from {@link #getStartupTimings()}.
  */
 public class TorManager {
+    /** Port the hidden service is published on; peers dial the onion address on this port. */
+    public static final int VIRTUAL_PORT = 9001;
+    private static final Pattern BOOTSTRAP_PROGRESS = Pattern.compile("BOOTSTRAP PROGRESS=(\\d+)");
+
+    private final Path dataDir;
+    private List<String> torCommand = List.of("tor");
+    private long startupTimeoutMillis = 120_000;
+
     private Process torProcess;
+    private TorControlClient control;
     private String onionAddress;
     private int hiddenServicePort;
+    private String socksAddress;
+    private final Map<String, Long> startupTimings = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * Uses ./tor_data as the DataDirectory.
+     */
+    public TorManager() {
+        this(Paths.get("tor_data"));
+    }
+
+    /**
+     * Uses the given directory as Tor's persistent DataDirectory. It is created if missing.
+     */
+    public TorManager(Path dataDir) {
+        this.dataDir = dataDir.toAbsolutePath();
+    }
+
+    /**
+     * Sets the command that launches Tor (default "tor"); "-f torrc" is appended.
+     */
+    public void setTorCommand(List<String> torCommand) {
+        this.torCommand = List.copyOf(torCommand);
+    }
+
+    /**
+     * Sets how long {@link #startHiddenService(int)} waits for Tor to be ready.
+     */
+    public void setStartupTimeoutMillis(long startupTimeoutMillis) {
+        this.startupTimeoutMillis = startupTimeoutMillis;
+    }
 
     /**
      * Starts Tor and creates a hidden service on the given port.
      * Returns the onion address (hostname) for this client.
      */
     public String startHiddenService(int localPort) throws IOException, InterruptedException {
-        // For demo: use a temporary torrc file and DataDirectory
-        String dataDir = "tor_data_" + System.currentTimeMillis();
-        String torrc = dataDir + "/torrc";
-        java.nio.file.Files.createDirectories(java.nio.file.Paths.get(dataDir));
-        java.nio.file.Files.write(java.nio.file.Paths.get(torrc), (
-                "HiddenServiceDir " + dataDir + "/hs\n" +
-                "HiddenServicePort 9001 127.0.0.1:" + localPort + "\n"
-        ).getBytes());
-
-        ProcessBuilder pb = new ProcessBuilder(
-                "tor",
-                "-f", torrc,
-                "--DataDirectory", dataDir
-        );
+        return startHiddenService(localPort, null);
+    }
+
+    /**
+     * Starts Tor and publishes the onion service of the given identity on the given port, so
+     * the onion address stays the same across restarts. A null identity creates a new,
+     * throwaway service key as {@link #startHiddenService(int)} does.
+     */
+    public String startHiddenService(int localPort, Identity identity) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(startupTimeoutMillis);
+        startupTimings.clear();
+        try {
+            Path portFile = launch();
+            mark("process", start);
+
+            control = new TorControlClient("127.0.0.1", awaitControlPort(portFile, deadline));
+            control.authenticateWithCookie(dataDir.resolve("control_auth_cookie").toString());
+            // Tor exits when this control connection closes, even if the JVM dies
+            control.command("TAKEOWNERSHIP");
+            control.command("RESETCONF __OwningControllerProcess");
+            mark("control", start);
+
+            CompletableFuture<Void> bootstrapped = new CompletableFuture<>();
+            control.addEventListener("STATUS_CLIENT", event -> {
+                if (bootstrapProgress(event.getLines().get(0)) >= 100) bootstrapped.complete(null);
+            });
+            // Covers a warm start that finished bootstrapping before the subscription
+            control.command("GETINFO status/bootstrap-phase").thenAccept(reply -> {
+                String phase = reply.get("status/bootstrap-phase");
+                if (phase != null && bootstrapProgress(phase) >= 100) bootstrapped.complete(null);
+            });
+            // Pipelined with the bootstrap wait; Tor publishes the descriptor once it is ready
+            String keySpec = identity == null ? "NEW:ED25519-V3" : identity.getOnionServiceKey() + " Flags=DiscardPK";
+            CompletableFuture<ControlReply> onion = control.addOnionAsync(keySpec, VIRTUAL_PORT, localPort);
+            CompletableFuture<ControlReply> socks = control.command("GETINFO net/listeners/socks");
+
+            await(bootstrapped, deadline, "bootstrap");
+            mark("bootstrap", start);
+            ControlReply reply = await(onion, deadline, "ADD_ONION");
+            String serviceId = reply.get("ServiceID");
+            if (!reply.isOk() || serviceId == null) {
+                throw new IOException("Failed to create onion service: " + reply);
+            }
+            if (identity != null && !serviceId.equals(identity.getOnionServiceId())) {
+                throw new IOException("Tor published " + serviceId + " instead of " + identity.getOnionServiceId());
+            }
+            mark("onion", start);
+
+            String listeners = await(socks, deadline, "SOCKS listener").get("net/listeners/socks");
+            socksAddress = listeners == null ? null : listeners.replace("\"", "").split(" ")[0];
+            onionAddress = serviceId + ".onion";
+            hiddenServicePort = localPort;
+            return onionAddress;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the torrc and starts the process. Returns the file Tor writes its control port to.
+     */
+    private Path launch() throws IOException {
+        Files.createDirectories(dataDir);
+        Path portFile = dataDir.resolve("control-port");
+        Files.deleteIfExists(portFile);
+        Path torrc = dataDir.resolve("torrc");
+        Files.write(torrc, (
+                "DataDirectory " + dataDir + "\n" +
+                "ControlPort auto\n" +
+                "ControlPortWriteToFile " + portFile + "\n" +
+                "CookieAuthentication 1\n" +
+                "CookieAuthFile " + dataDir.resolve("control_auth_cookie") + "\n" +
+                "SocksPort auto\n" +
+                "__OwningControllerProcess " + ProcessHandle.current().pid() + "\n"
+        ).getBytes(StandardCharsets.UTF_8));
+
+        List<String> command = new ArrayList<>(torCommand);
+        command.add("-f");
+        command.add(torrc.toString());
+        ProcessBuilder pb = new ProcessBuilder(command);
         pb.redirectErrorStream(true);
+        // Tor's output must go somewhere that never fills up
+        pb.redirectOutput(ProcessBuilder.Redirect.appendTo(dataDir.resolve("tor.log").toFile()));
         torProcess = pb.start();
+        return portFile;
+    }
 
-        // Wait for the hidden service hostname file to appear
-        java.nio.file.Path hsHostname = java.nio.file.Paths.get(dataDir, "hs", "hostname");
-        for (int i = 0; i < 60; i++) { // Wait up to 60 seconds
-            if (java.nio.file.Files.exists(hsHostname)) {
-                onionAddress = new String(java.nio.file.Files.readAllBytes(hsHostname)).trim();
-                hiddenServicePort = localPort;
-                return onionAddress;
+    /**
+     * Waits for Tor to write "PORT=host:port" to the control port file. Tor writes it as soon
+     * as the listener is open, well before bootstrapping, so short polls are enough.
+     */
+    private int awaitControlPort(Path portFile, long deadline) throws IOException, InterruptedException {
+        while (System.nanoTime() < deadline) {
+            if (Files.exists(portFile)) {
+                String content = Files.readString(portFile, StandardCharsets.US_ASCII).trim();
+                int colon = content.lastIndexOf(':');
+                if (content.startsWith("PORT=") && colon > 0) {
+                    return Integer.parseInt(content.substring(colon + 1));
+                }
             }
-            TimeUnit.SECONDS.sleep(1);
+            if (!torProcess.isAlive()) {
+                throw new IOException("Tor exited with status " + torProcess.exitValue() + ", see " + dataDir.resolve("tor.log"));
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        throw new IOException("Tor did not open its ControlPort in time");
+    }
+
+    private static int bootstrapProgress(String status) {
+        Matcher m = BOOTSTRAP_PROGRESS.matcher(status);
+        return m.find() ? Integer.parseInt(m.group(1)) : -1;
+    }
+
+    private static <T> T await(CompletableFuture<T> future, long deadline, String phase)
+            throws IOException, InterruptedException {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("Tor " + phase + " did not complete in time");
+        } catch (ExecutionException e) {
+            throw new IOException("Tor " + phase + " failed", e.getCause());
+        }
+    }
+
+    private void mark(String phase, long start) {
+        startupTimings.put(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Returns, for each completed startup phase in order ("process", "control", "bootstrap",
+     * "onion"), the milliseconds from the start of {@link #startHiddenService(int)}.
+     */
+    public Map<String, Long> getStartupTimings() {
+        synchronized (startupTimings) {
+            return new LinkedHashMap<>(startupTimings);
         }
-        throw new IOException("Tor hidden service did not start in time");
+    }
+
+    /**
+     * Returns the control connection of the running Tor, or null.
+     */
+    public TorControlClient getControlClient() {
+        return control;
+    }
+
+    /**
+     * Returns Tor's SOCKS listener as "host:port", or null before startup.
+     */
+    public String getSocksAddress() {
+        return socksAddress;
     }
 
     /**
      * Stops the Tor process.
      */
     public void stop() {
+        if (control != null) {
+            try {
+                control.close();
+            } catch (IOException ignored) {
+            }
+            control = null;
+        }
         if (torProcess != null) {
             torProcess.destroy();
+            try {
+                if (!torProcess.waitFor(5, TimeUnit.SECONDS)) {
+                    torProcess.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            torProcess = null;
         }
     }
 
@@ -66,4 +265,8 @@ public class TorManager {
     public int getHiddenServicePort() {
         return hiddenServicePort;
     }
+
+    public Path getDataDirectory() {
+        return dataDir;
+    }
 }
@@ -0,0 +1,17 @@
+package protocol;
+
+/**
+ * WireFormat selects how a PeerChannel puts ProtocolMessages on the wire.
+ */
+public enum WireFormat {
+    /**
+     * Legacy line-based format: {@code type,counter,base64(payload)} terminated by a newline.
+     * Kept for interoperability with older peers.
+     */
+    TEXT,
+
+    /**
+     * Length-prefixed binary frames produced by {@link FrameCodec} carrying raw ciphertext.
+     */
+    BINARY
+}
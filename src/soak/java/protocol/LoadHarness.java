@@ -0,0 +1,651 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LoadHarness simulates a population of peers in one process and drives traffic between them
+ * over loopback, with the real {@link Handshake} and {@link PeerChannel} and without Tor. It
+ * finds what only shows at scale and over time: latency tails, handshake throughput during
+ * reconnect storms, heap growth and thread count.
+ *
+ * Peers come in pairs. One side of every pair is served by a single {@link PeerServer}; the
+ * other dials it and runs the initiator handshake, keyed for resumption by its contact's
+ * onion address. Driver threads each own a share of the pairs and repeatedly pick one and an
+ * action by weight: a burst of chat messages or one large payload. The server acknowledges
+ * every message, and the time from send to acknowledgement is the latency reported. Every
+ * storm interval a fraction of all connections is dropped and re-established at once.
+ *
+ * Identities and every choice derive from the seed, so runs with the same options repeat the
+ * same traffic; only the timing differs. Run it through the soak profile:
+ * {@code mvn -Psoak verify -DskipTests -Dsoak.args="--peers=2000 --duration=600"}, or with
+ * {@code --help} for the options. The summary is also written as JSON to
+ * {@code target/soak-result.json} for comparison between releases.
+ */
+public final class LoadHarness {
+    static final String CHAT = "chat";
+    static final String LARGE = "soak-large";
+    static final String ACK = "soak-ack";
+    static final String HELLO = "soak-hello";
+
+    private final Options options;
+    private final Random random;
+    private final Stats stats = new Stats();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final AtomicLong peakHeap = new AtomicLong();
+    private final ResumptionCache resumptionCache;
+    private final EphemeralKeyPool keyPool;
+    private final ExecutorService readers = Threads.newThreadPerTaskExecutor("soak-reader");
+    private final ExecutorService connectors;
+    private final List<Pair> pairs = new ArrayList<>();
+    private PeerServer server;
+    private volatile boolean running;
+
+    LoadHarness(Options options) {
+        this.options = options;
+        this.random = new Random(options.seed);
+        this.resumptionCache = new ResumptionCache(Math.max(1, options.peers), 60 * 60 * 1000L);
+        this.keyPool = new EphemeralKeyPool(options.parallelism);
+        this.connectors = Executors.newFixedThreadPool(options.parallelism, Threads.daemonFactory("soak-connect"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options == null) {
+            System.out.println(Options.USAGE);
+            return;
+        }
+        LoadHarness harness = new LoadHarness(options);
+        try {
+            Summary summary = harness.run(System.out);
+            if (options.out != null) summary.writeJson(Path.of(options.out));
+        } finally {
+            harness.close();
+        }
+    }
+
+    /**
+     * Starts the server, connects every pair, drives traffic for the configured duration and
+     * returns the totals.
+     */
+    Summary run(PrintStream log) throws Exception {
+        Metrics.install(new SimpleMetrics());
+        server = new PeerServer(0, new Acknowledger());
+        server.setMaxSessions(options.peers / 2 + options.parallelism);
+        server.setMaxConcurrentHandshakes(options.parallelism);
+        server.start();
+
+        log.printf("Creating %d identities%n", options.peers);
+        for (int i = 0; i < options.peers / 2; i++) {
+            pairs.add(new Pair(newIdentity(), newIdentity()));
+        }
+        long start = System.nanoTime();
+        reconnect(pairs);
+        log.printf("Connected %d pairs in %d ms%n", pairs.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        stats.reset();
+
+        running = true;
+        List<Thread> drivers = new ArrayList<>();
+        for (int d = 0; d < options.drivers; d++) {
+            List<Pair> own = new ArrayList<>();
+            for (int i = d; i < pairs.size(); i += options.drivers) {
+                own.add(pairs.get(i));
+            }
+            if (own.isEmpty()) continue;
+            Random driverRandom = new Random(options.seed * 31 + d);
+            Thread driver = Threads.daemonFactory("soak-driver").newThread(() -> drive(own, driverRandom));
+            drivers.add(driver);
+            driver.start();
+        }
+
+        long begin = System.nanoTime();
+        long end = begin + TimeUnit.SECONDS.toNanos(options.duration);
+        long nextReport = begin + TimeUnit.SECONDS.toNanos(options.report);
+        long nextStorm = options.stormInterval > 0 ? begin + TimeUnit.SECONDS.toNanos(options.stormInterval) : Long.MAX_VALUE;
+        Snapshot last = stats.snapshot(begin);
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            long wake = Math.min(end, Math.min(nextReport, nextStorm));
+            if (wake > now) {
+                sampleHeap();
+                TimeUnit.NANOSECONDS.sleep(Math.min(wake - now, TimeUnit.MILLISECONDS.toNanos(250)));
+                continue;
+            }
+            if (now >= nextStorm) {
+                storm(log);
+                nextStorm += TimeUnit.SECONDS.toNanos(options.stormInterval);
+            }
+            if (now >= nextReport) {
+                Snapshot current = stats.snapshot(System.nanoTime());
+                log.println(report(last, current, begin));
+                last = current;
+                nextReport += TimeUnit.SECONDS.toNanos(options.report);
+            }
+        }
+        running = false;
+        for (Thread driver : drivers) {
+            driver.join(TimeUnit.SECONDS.toMillis(30));
+        }
+        sampleHeap();
+        Summary summary = new Summary(options, stats, System.nanoTime() - begin, peakHeap.get(),
+                threads.getPeakThreadCount(), server.getRejectedConnections());
+        log.println(summary);
+        return summary;
+    }
+
+    void close() throws IOException {
+        running = false;
+        for (Pair pair : pairs) {
+            Connection connection = pair.connection;
+            if (connection != null) connection.close();
+        }
+        if (server != null) server.close();
+        connectors.shutdownNow();
+        readers.shutdownNow();
+        keyPool.close();
+        Metrics.install(null);
+    }
+
+    private Identity newIdentity() throws Exception {
+        byte[] seed = new byte[32];
+        random.nextBytes(seed);
+        return Identity.fromSeed(seed);
+    }
+
+    /**
+     * Drops the given pairs' connections and reconnects them all at once, up to the connect
+     * parallelism.
+     */
+    private void reconnect(List<Pair> targets) throws Exception {
+        List<Future<?>> pending = new ArrayList<>();
+        for (Pair pair : targets) {
+            pending.add(connectors.submit(() -> {
+                pair.lock.lock();
+                try {
+                    if (pair.connection != null) pair.connection.close();
+                    pair.connection = connect(pair);
+                } catch (Exception e) {
+                    pair.connection = null;
+                    stats.connectFailures.increment();
+                } finally {
+                    pair.lock.unlock();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : pending) {
+            future.get();
+        }
+    }
+
+    private void storm(PrintStream log) throws Exception {
+        int count = (int) Math.ceil(pairs.size() * options.stormFraction);
+        List<Pair> targets = new ArrayList<>(pairs);
+        Collections.shuffle(targets, random);
+        targets = targets.subList(0, Math.min(count, targets.size()));
+        long start = System.nanoTime();
+        reconnect(targets);
+        stats.storms.increment();
+        log.printf("Reconnect storm: %d connections in %d ms%n", targets.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private Connection connect(Pair pair) throws Exception {
+        long start = System.nanoTime();
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), 10_000);
+            HandshakeResult result = Handshake.initiate(socket.getInputStream(), socket.getOutputStream(), keyPool,
+                    resumptionCache, pair.contact.getOnionAddress(), options.suites);
+            Connection connection = new Connection(new PeerChannel(socket, result), options.window);
+            stats.handshake(System.nanoTime() - start, result.isResumed());
+            connection.channel.send(HELLO, pair.initiator.getOnionAddress());
+            readers.execute(() -> readAcks(connection));
+            return connection;
+        } catch (Exception e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void readAcks(Connection connection) {
+        try {
+            ProtocolMessage msg;
+            while ((msg = connection.channel.receive()) != null) {
+                if (!ACK.equals(msg.getType())) continue;
+                String payload = msg.getPayload();
+                int sep = payload.indexOf('|');
+                long sent = Long.parseLong(payload.substring(sep + 1));
+                stats.latency(payload.startsWith(LARGE), System.nanoTime() - sent);
+                connection.window.release();
+            }
+        } catch (Exception e) {
+            // Closed by a storm or at shutdown; anything else shows up as a send failure
+        }
+    }
+
+    private void drive(List<Pair> own, Random random) {
+        String chat = filler(options.chatSize, random);
+        String large = filler(options.largeSize, random);
+        int total = options.chatWeight + options.largeWeight;
+        while (running) {
+            Pair pair = own.get(random.nextInt(own.size()));
+            boolean bulk = random.nextInt(total) >= options.chatWeight;
+            if (!pair.lock.tryLock()) continue;
+            try {
+                Connection connection = pair.connection;
+                if (connection == null) continue;
+                int count = bulk ? 1 : options.burst;
+                for (int i = 0; i < count && running; i++) {
+                    // A window held by acks lost in a storm frees up with the next connection
+                    if (!connection.window.tryAcquire(1, TimeUnit.SECONDS)) break;
+                    String type = bulk ? LARGE : CHAT;
+                    connection.channel.send(type, (bulk ? LARGE : CHAT) + "|" + System.nanoTime() + "|"
+                            + (bulk ? large : chat));
+                    stats.sent(bulk ? options.largeSize : options.chatSize);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                stats.sendFailures.increment();
+            } finally {
+                pair.lock.unlock();
+            }
+        }
+    }
+
+    private static String filler(int size, Random random) {
+        char[] chars = new char[size];
+        for (int i = 0; i < size; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private void sampleHeap() {
+        peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+    }
+
+    private String report(Snapshot last, Snapshot current, long begin) {
+        double seconds = (current.nanos - last.nanos) / 1e9;
+        return String.format(Locale.ROOT,
+                "[%4ds] %,10.0f msg/s %8.2f MB/s %7.1f handshakes/s | chat p50 %s p99 %s p999 %s"
+                        + " | large p99 %s | heap %d MiB, %d threads, %d failures",
+                TimeUnit.NANOSECONDS.toSeconds(current.nanos - begin),
+                (current.messages - last.messages) / seconds,
+                (current.bytes - last.bytes) / seconds / (1024 * 1024),
+                (current.handshakes - last.handshakes) / seconds,
+                millis(current.chat.getPercentileNanos(50)), millis(current.chat.getPercentileNanos(99)),
+                millis(current.chat.getPercentileNanos(99.9)), millis(current.large.getPercentileNanos(99)),
+                memory.getHeapMemoryUsage().getUsed() >> 20, threads.getThreadCount(),
+                current.failures);
+    }
+
+    static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+    }
+
+    /**
+     * Acknowledges every message with its send timestamp, on the server side of each pair.
+     */
+    static final class Acknowledger implements PeerHandler {
+        @Override
+        public void onMessage(PeerChannel channel, ProtocolMessage message) throws Exception {
+            if (HELLO.equals(message.getType())) return;
+            String payload = message.getPayload();
+            int end = payload.indexOf('|', payload.indexOf('|') + 1);
+            if (end > 0) channel.send(ACK, payload.substring(0, end));
+        }
+    }
+
+    /**
+     * One simulated contact relationship: the initiator dials its contact and introduces
+     * itself with its onion address.
+     */
+    static final class Pair {
+        final Identity initiator;
+        final Identity contact;
+        final ReentrantLock lock = new ReentrantLock();
+        volatile Connection connection;
+
+        Pair(Identity initiator, Identity contact) {
+            this.initiator = initiator;
+            this.contact = contact;
+        }
+    }
+
+    static final class Connection {
+        final PeerChannel channel;
+        /** Messages in flight without an acknowledgement. */
+        final Semaphore window;
+
+        Connection(PeerChannel channel, int window) {
+            this.channel = channel;
+            this.window = new Semaphore(window);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Counters and latency histograms, with the histograms swapped out at each report so
+     * intervals are reported on their own.
+     */
+    static final class Stats {
+        final LongAdder messages = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder handshakes = new LongAdder();
+        final LongAdder resumed = new LongAdder();
+        final LongAdder sendFailures = new LongAdder();
+        final LongAdder connectFailures = new LongAdder();
+        final LongAdder storms = new LongAdder();
+        final AtomicReference<SimpleMetrics.Histogram> chat = new AtomicReference<>(new SimpleMetrics.Histogram());
+        final AtomicReference<SimpleMetrics.Histogram> large = new AtomicReference<>(new SimpleMetrics.Histogram());
+        SimpleMetrics.Histogram totalChat = new SimpleMetrics.Histogram();
+        SimpleMetrics.Histogram totalLarge = new SimpleMetrics.Histogram();
+        SimpleMetrics.Histogram handshakeLatency = new SimpleMetrics.Histogram();
+
+        void sent(int size) {
+            messages.increment();
+            bytes.add(size);
+        }
+
+        void latency(boolean bulk, long nanos) {
+            (bulk ? large : chat).get().record(nanos);
+            (bulk ? totalLarge : totalChat).record(nanos);
+        }
+
+        void handshake(long nanos, boolean wasResumed) {
+            handshakes.increment();
+            if (wasResumed) resumed.increment();
+            handshakeLatency.record(nanos);
+        }
+
+        /**
+         * Starts the measured run; the initial connects are reported separately.
+         */
+        void reset() {
+            messages.reset();
+            bytes.reset();
+            handshakes.reset();
+            resumed.reset();
+            chat.set(new SimpleMetrics.Histogram());
+            large.set(new SimpleMetrics.Histogram());
+            totalChat = new SimpleMetrics.Histogram();
+            totalLarge = new SimpleMetrics.Histogram();
+            handshakeLatency = new SimpleMetrics.Histogram();
+        }
+
+        Snapshot snapshot(long nanos) {
+            return new Snapshot(nanos, messages.sum(), bytes.sum(), handshakes.sum(),
+                    sendFailures.sum() + connectFailures.sum(),
+                    chat.getAndSet(new SimpleMetrics.Histogram()), large.getAndSet(new SimpleMetrics.Histogram()));
+        }
+    }
+
+    static final class Snapshot {
+        final long nanos;
+        final long messages;
+        final long bytes;
+        final long handshakes;
+        final long failures;
+        final SimpleMetrics.Histogram chat;
+        final SimpleMetrics.Histogram large;
+
+        Snapshot(long nanos, long messages, long bytes, long handshakes, long failures,
+                 SimpleMetrics.Histogram chat, SimpleMetrics.Histogram large) {
+            this.nanos = nanos;
+            this.messages = messages;
+            this.bytes = bytes;
+            this.handshakes = handshakes;
+            this.failures = failures;
+            this.chat = chat;
+            this.large = large;
+        }
+    }
+
+    /**
+     * Totals for the measured part of a run.
+     */
+    static final class Summary {
+        final Options options;
+        final double seconds;
+        final long messages;
+        final long bytes;
+        final long handshakes;
+        final long resumed;
+        final long storms;
+        final long sendFailures;
+        final long connectFailures;
+        final long rejected;
+        final SimpleMetrics.Histogram chat;
+        final SimpleMetrics.Histogram large;
+        final SimpleMetrics.Histogram handshake;
+        final long peakHeap;
+        final int peakThreads;
+
+        Summary(Options options, Stats stats, long nanos, long peakHeap, int peakThreads, long rejected) {
+            this.options = options;
+            this.seconds = nanos / 1e9;
+            this.messages = stats.messages.sum();
+            this.bytes = stats.bytes.sum();
+            this.handshakes = stats.handshakes.sum();
+            this.resumed = stats.resumed.sum();
+            this.storms = stats.storms.sum();
+            this.sendFailures = stats.sendFailures.sum();
+            this.connectFailures = stats.connectFailures.sum();
+            this.rejected = rejected;
+            this.chat = stats.totalChat;
+            this.large = stats.totalLarge;
+            this.handshake = stats.handshakeLatency;
+            this.peakHeap = peakHeap;
+            this.peakThreads = peakThreads;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "Soak summary: %d peers, %.0f s, seed %d%n"
+                            + "  throughput  %,.0f msg/s, %.2f MB/s (%,d messages)%n"
+                            + "  chat        p50 %s p99 %s p999 %s max %s%n"
+                            + "  large       p50 %s p99 %s p999 %s max %s%n"
+                            + "  handshakes  %.1f/s (%d, %d resumed, %d storms), p99 %s%n"
+                            + "  resources   peak heap %d MiB, peak threads %d%n"
+                            + "  failures    %d sends, %d connects, %d rejected",
+                    options.peers, seconds, options.seed,
+                    messages / seconds, bytes / seconds / (1024 * 1024), messages,
+                    millis(chat.getPercentileNanos(50)), millis(chat.getPercentileNanos(99)),
+                    millis(chat.getPercentileNanos(99.9)), millis(chat.getMaxNanos()),
+                    millis(large.getPercentileNanos(50)), millis(large.getPercentileNanos(99)),
+                    millis(large.getPercentileNanos(99.9)), millis(large.getMaxNanos()),
+                    handshakes / seconds, handshakes, resumed, storms, millis(handshake.getPercentileNanos(99)),
+                    peakHeap >> 20, peakThreads,
+                    sendFailures, connectFailures, rejected);
+        }
+
+        void writeJson(Path file) throws IOException {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                out.write(String.format(Locale.ROOT, "{%n"
+                                + "  \"options\": \"%s\",%n"
+                                + "  \"seconds\": %.3f,%n"
+                                + "  \"messages\": %d,%n"
+                                + "  \"messagesPerSecond\": %.1f,%n"
+                                + "  \"bytesPerSecond\": %.1f,%n"
+                                + "  \"chatLatencyNanos\": %s,%n"
+                                + "  \"largeLatencyNanos\": %s,%n"
+                                + "  \"handshakes\": %d,%n"
+                                + "  \"handshakesResumed\": %d,%n"
+                                + "  \"handshakesPerSecond\": %.2f,%n"
+                                + "  \"handshakeLatencyNanos\": %s,%n"
+                                + "  \"peakHeapBytes\": %d,%n"
+                                + "  \"peakThreads\": %d,%n"
+                                + "  \"sendFailures\": %d,%n"
+                                + "  \"connectFailures\": %d,%n"
+                                + "  \"rejectedConnections\": %d%n"
+                                + "}%n",
+                        options, seconds, messages, messages / seconds, bytes / seconds, json(chat), json(large),
+                        handshakes, resumed, handshakes / seconds, json(handshake), peakHeap, peakThreads,
+                        sendFailures, connectFailures, rejected));
+            }
+        }
+
+        private static String json(SimpleMetrics.Histogram h) {
+            return String.format(Locale.ROOT, "{\"count\": %d, \"p50\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}",
+                    h.getCount(), h.getPercentileNanos(50), h.getPercentileNanos(99), h.getPercentileNanos(99.9),
+                    h.getMaxNanos());
+        }
+    }
+
+    /**
+     * Command line options, given as --name=value.
+     */
+    static final class Options {
+        static final String USAGE = String.join(System.lineSeparator(),
+                "Usage: LoadHarness [--name=value ...]",
+                "  --peers=2000           simulated peers (identities); every two form one connection",
+                "  --duration=60          measured run time in seconds",
+                "  --report=10            seconds between interval reports",
+                "  --drivers=N            threads generating traffic (default: processors, at least 2)",
+                "  --mix=chat:80,large:20 relative weights of chat bursts and large payloads",
+                "  --burst=20             chat messages per burst",
+                "  --chat-size=120        characters per chat message",
+                "  --large-size=262144    characters per large payload",
+                "  --window=32            unacknowledged messages allowed per connection",
+                "  --storm-interval=15    seconds between reconnect storms (0 disables them)",
+                "  --storm-fraction=0.1   share of connections dropped and reconnected per storm",
+                "  --parallelism=64       concurrent handshakes while connecting",
+                "  --suite=AES_256_GCM    cipher suite offered (AES_256_GCM or CHACHA20_POLY1305)",
+                "  --seed=1               seed for identities and traffic choices",
+                "  --out=FILE             also write the summary as JSON");
+
+        int peers = 2000;
+        int duration = 60;
+        int report = 10;
+        int drivers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int chatWeight = 80;
+        int largeWeight = 20;
+        int burst = 20;
+        int chatSize = 120;
+        int largeSize = 256 * 1024;
+        int window = 32;
+        int stormInterval = 15;
+        double stormFraction = 0.1;
+        int parallelism = 64;
+        List<CipherSuite> suites = CipherSuite.defaults();
+        long seed = 1;
+        String out;
+        private final List<String> given = new ArrayList<>();
+
+        /**
+         * Parses the arguments, or returns null if help was asked for.
+         */
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (String arg : args) {
+                if (arg.equals("--help") || arg.equals("-h")) return null;
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) throw new IllegalArgumentException("Expected --name=value: " + arg);
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                try {
+                    switch (name) {
+                        case "peers": o.peers = positive(name, value); break;
+                        case "duration": o.duration = positive(name, value); break;
+                        case "report": o.report = positive(name, value); break;
+                        case "drivers": o.drivers = positive(name, value); break;
+                        case "mix": o.mix(value); break;
+                        case "burst": o.burst = positive(name, value); break;
+                        case "chat-size": o.chatSize = positive(name, value); break;
+                        case "large-size": o.largeSize = positive(name, value); break;
+                        case "window": o.window = positive(name, value); break;
+                        case "storm-interval": o.stormInterval = Integer.parseInt(value); break;
+                        case "storm-fraction": o.stormFraction = Double.parseDouble(value); break;
+                        case "parallelism": o.parallelism = positive(name, value); break;
+                        case "suite": o.suites = List.of(CipherSuite.valueOf(value.toUpperCase(Locale.ROOT))); break;
+                        case "seed": o.seed = Long.parseLong(value); break;
+                        case "out": o.out = value; break;
+                        default: throw new IllegalArgumentException("Unknown option: --" + name);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+                }
+                if (!name.equals("out")) o.given.add(arg);
+            }
+            if (o.peers < 2) throw new IllegalArgumentException("--peers must be at least 2");
+            if (o.stormInterval < 0) throw new IllegalArgumentException("--storm-interval must not be negative");
+            if (o.stormFraction < 0 || o.stormFraction > 1) {
+                throw new IllegalArgumentException("--storm-fraction must be between 0 and 1");
+            }
+            return o;
+        }
+
+        private void mix(String value) {
+            chatWeight = 0;
+            largeWeight = 0;
+            for (String part : value.split(",")) {
+                String[] kv = part.split(":");
+                if (kv.length != 2) throw new IllegalArgumentException("Expected kind:weight in --mix: " + part);
+                int weight = Integer.parseInt(kv[1].trim());
+                if (weight < 0) throw new IllegalArgumentException("Negative weight in --mix: " + part);
+                switch (kv[0].trim()) {
+                    case "chat": chatWeight = weight; break;
+                    case "large": largeWeight = weight; break;
+                    default: throw new IllegalArgumentException("Unknown traffic kind in --mix: " + kv[0]);
+                }
+            }
+            if (chatWeight + largeWeight == 0) throw new IllegalArgumentException("--mix needs a positive weight");
+        }
+
+        private static int positive(String name, String value) {
+            int n = Integer.parseInt(value);
+            if (n < 1) throw new IllegalArgumentException("--" + name + " must be positive");
+            return n;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(" ", given);
+        }
+    }
+}
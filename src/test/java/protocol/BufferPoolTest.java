@@ -0,0 +1,66 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+    @Test
+    void testSizeClasses() {
+        BufferPool pool = new BufferPool();
+        ByteBuffer small = pool.acquire(100);
+        assertTrue(small.isDirect());
+        assertEquals(BufferPool.MIN_CLASS_SIZE, small.capacity());
+        assertEquals(0, small.position());
+        assertEquals(100, small.limit());
+        assertEquals(1024, pool.acquire(513).capacity());
+        assertEquals(4096, pool.acquire(4096).capacity());
+        // Too large for a class: sized exactly and not kept on release
+        ByteBuffer large = pool.acquire(BufferPool.MAX_CLASS_SIZE + 1);
+        assertEquals(BufferPool.MAX_CLASS_SIZE + 1, large.capacity());
+        pool.release(large);
+        assertEquals(0, pool.getFreeCount());
+    }
+
+    @Test
+    void testReleasedBuffersAreReused() {
+        BufferPool pool = new BufferPool(2, false);
+        ByteBuffer first = pool.acquire(2000);
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer second = pool.acquire(1500);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(1500, second.limit());
+        pool.release(second);
+        for (int i = 0; i < 1000; i++) {
+            pool.release(pool.acquire(1025 + i));
+        }
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    @Test
+    void testDoubleReleaseIsDetected() {
+        BufferPool pool = new BufferPool(4, true);
+        ByteBuffer buf = pool.acquire(64);
+        pool.release(buf);
+        assertThrows(IllegalStateException.class, () -> pool.release(buf));
+        assertThrows(IllegalStateException.class, () -> pool.release(ByteBuffer.allocateDirect(512)));
+    }
+
+    @Test
+    void testLeakIsDetected() throws Exception {
+        BufferPool pool = new BufferPool(4, true);
+        pool.release(pool.acquire(64));
+        pool.acquire(64); // never released
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.getLeakCount() == 0 && System.nanoTime() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, pool.getLeakCount());
+        assertNotNull(pool.getLastLeak());
+    }
+}
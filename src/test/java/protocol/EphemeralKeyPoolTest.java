@@ -0,0 +1,41 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import java.security.KeyPair;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.*;
+
+class EphemeralKeyPoolTest {
+    @Test
+    void testFillsInBackground() throws Exception {
+        try (EphemeralKeyPool pool = new EphemeralKeyPool(8)) {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (pool.getAvailable() < 8 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(8, pool.getAvailable());
+            pool.take();
+            assertEquals(0, pool.getMisses());
+        }
+    }
+
+    @Test
+    void testHandsOutEachPairOnce() throws Exception {
+        Set<String> seen = new HashSet<>();
+        try (EphemeralKeyPool pool = new EphemeralKeyPool(2)) {
+            // More than the capacity, so some pairs are generated inline
+            for (int i = 0; i < 20; i++) {
+                KeyPair pair = pool.take();
+                assertTrue(seen.add(Handshake.encodePublicKey(pair.getPublic())));
+            }
+        }
+    }
+
+    @Test
+    void testTakeAfterClose() throws Exception {
+        EphemeralKeyPool pool = new EphemeralKeyPool(1);
+        pool.close();
+        assertNotNull(pool.take());
+    }
+}
@@ -0,0 +1,108 @@
+package protocol;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A scripted stand-in for Tor's ControlPort. Each received command is answered with the reply
+ * of the first scripted prefix it starts with, or "250 OK". Replies can be held back until
+ * several commands have arrived, to prove the client pipelines them.
+ */
+class FakeControlPort implements Closeable {
+    private final ServerSocket server;
+    private final Map<String, String[]> script = new LinkedHashMap<>();
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+    private volatile Socket client;
+    private volatile Writer out;
+    private volatile int batchSize = 1;
+
+    FakeControlPort() throws IOException {
+        server = new ServerSocket(0);
+        thread = new Thread(this::serve, "fake-control-port");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Answers commands starting with prefix with the given raw reply lines.
+     */
+    synchronized FakeControlPort on(String prefix, String... reply) {
+        script.put(prefix, reply);
+        return this;
+    }
+
+    /**
+     * Holds replies until n commands are outstanding, then sends them all.
+     */
+    void setBatchSize(int n) {
+        batchSize = n;
+    }
+
+    List<String> getReceived() {
+        return received;
+    }
+
+    /**
+     * Sends raw lines to the client, e.g. an asynchronous 650 event.
+     */
+    void push(String... lines) throws IOException {
+        synchronized (this) {
+            for (String line : lines) {
+                out.write(line + "\r\n");
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Closes the accepted connection, as Tor does when it exits. The client sees end of stream.
+     */
+    void dropClients() throws IOException {
+        Socket socket = client;
+        if (socket != null) socket.close();
+    }
+
+    private void serve() {
+        try (Socket socket = server.accept()) {
+            client = socket;
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII));
+            List<String> held = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                received.add(line);
+                held.add(line);
+                if (held.size() < batchSize) continue;
+                for (String command : held) {
+                    push(replyTo(command));
+                }
+                held.clear();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private synchronized String[] replyTo(String command) {
+        for (Map.Entry<String, String[]> e : script.entrySet()) {
+            if (command.startsWith(e.getKey())) return e.getValue();
+        }
+        return new String[] {"250 OK"};
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+}
@@ -0,0 +1,148 @@
+package protocol;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for Tor's SOCKS port. Every CONNECT is relayed to one loopback target port,
+ * after an optional delay that plays the part of building a circuit. Hosts can be scripted
+ * to fail with a SOCKS reply code instead, and the highest number of negotiations in
+ * progress at once is recorded.
+ */
+class FakeSocksProxy implements Closeable {
+    private final ServerSocket server;
+    private final int targetPort;
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final AtomicInteger negotiating = new AtomicInteger();
+    private final AtomicInteger maxNegotiating = new AtomicInteger();
+    private volatile long delayMillis;
+
+    FakeSocksProxy(int targetPort) throws IOException {
+        this.server = new ServerSocket(0);
+        this.targetPort = targetPort;
+        Thread thread = new Thread(this::serve, "fake-socks-proxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    String getAddress() {
+        return "127.0.0.1:" + getPort();
+    }
+
+    void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Answers CONNECTs to host with the given SOCKS5 reply code.
+     */
+    FakeSocksProxy fail(String host, int code) {
+        failures.put(host, code);
+        return this;
+    }
+
+    /**
+     * Returns the requested targets as "host:port", in arrival order.
+     */
+    List<String> getRequests() {
+        return requests;
+    }
+
+    int getMaxNegotiating() {
+        return maxNegotiating.get();
+    }
+
+    private void serve() {
+        while (!server.isClosed()) {
+            try {
+                Socket client = server.accept();
+                sockets.add(client);
+                Thread t = new Thread(() -> negotiate(client), "fake-socks-session");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void negotiate(Socket client) {
+        try {
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+            if (in.readUnsignedByte() != 5) throw new IOException("Not SOCKS5");
+            in.readFully(new byte[in.readUnsignedByte()]);
+            out.write(new byte[] {5, 0});
+            out.flush();
+            byte[] head = new byte[4];
+            in.readFully(head);
+            if (head[1] != 1 || head[3] != 3) throw new IOException("Expected CONNECT to a host name");
+            byte[] host = new byte[in.readUnsignedByte()];
+            in.readFully(host);
+            int port = in.readUnsignedShort();
+            String name = new String(host, StandardCharsets.US_ASCII);
+            requests.add(name + ":" + port);
+
+            maxNegotiating.accumulateAndGet(negotiating.incrementAndGet(), Math::max);
+            Socket target = null;
+            try {
+                Thread.sleep(delayMillis);
+                Integer code = failures.get(name);
+                if (code == null) target = new Socket("127.0.0.1", targetPort);
+            } finally {
+                negotiating.decrementAndGet();
+            }
+            out.write(new byte[] {5, (byte) (target == null ? failures.get(name) : 0), 0, 1, 0, 0, 0, 0, 0, 0});
+            out.flush();
+            if (target == null) {
+                client.close();
+                return;
+            }
+            sockets.add(target);
+            Socket t = target;
+            Thread back = new Thread(() -> relay(t, client), "fake-socks-relay");
+            back.setDaemon(true);
+            back.start();
+            relay(client, target);
+        } catch (Exception e) {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void relay(Socket from, Socket to) {
+        try {
+            from.getInputStream().transferTo(to.getOutputStream());
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                from.close();
+                to.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket s : sockets) {
+            s.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package protocol;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A stand-in for the tor executable, started as a separate JVM by TorManagerTest.
+ *
+ * Reads the torrc given with -f, writes the control port and auth cookie files it names,
+ * and speaks just enough of the control protocol: bootstrap events after SETEVENTS,
+ * GETINFO status/bootstrap-phase and net/listeners/socks, and ADD_ONION. Bootstrap is
+ * instant if the DataDirectory holds a "cached-consensus" from an earlier run, which it
+ * creates on completion, like real Tor.
+ */
+public class FakeTor {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> torrc = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(args[1]))) {
+            int space = line.indexOf(' ');
+            if (space > 0) torrc.put(line.substring(0, space), line.substring(space + 1));
+        }
+        Path dataDir = Paths.get(torrc.get("DataDirectory"));
+        Path consensus = dataDir.resolve("cached-consensus");
+        boolean warm = Files.exists(consensus);
+        Files.write(Paths.get(torrc.get("CookieAuthFile")), new byte[32]);
+
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Files.writeString(Paths.get(torrc.get("ControlPortWriteToFile")),
+                    "PORT=127.0.0.1:" + server.getLocalPort() + "\n");
+            try (Socket socket = server.accept()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("SETEVENTS STATUS_CLIENT")) {
+                        write(out, "250 OK");
+                        if (!warm) {
+                            for (int progress : new int[] {5, 50, 100}) {
+                                Thread.sleep(100);
+                                write(out, "650 STATUS_CLIENT NOTICE BOOTSTRAP PROGRESS=" + progress + " TAG=x SUMMARY=\"x\"");
+                            }
+                            Files.createFile(consensus);
+                        }
+                    } else if (line.startsWith("GETINFO status/bootstrap-phase")) {
+                        write(out, "250-status/bootstrap-phase=NOTICE BOOTSTRAP PROGRESS=" + (warm ? 100 : 0)
+                                + " TAG=x SUMMARY=\"x\"", "250 OK");
+                    } else if (line.startsWith("GETINFO net/listeners/socks")) {
+                        write(out, "250-net/listeners/socks=\"127.0.0.1:19050\"", "250 OK");
+                    } else if (line.startsWith("ADD_ONION")) {
+                        write(out, "250-ServiceID=fakeonionaddressfakeonionaddressfakeonionaddressfake",
+                                "250-PrivateKey=ED25519-V3:AAAA", "250 OK");
+                    } else {
+                        write(out, "250 OK");
+                    }
+                }
+            }
+        }
+    }
+
+    private static void write(Writer out, String... lines) throws IOException {
+        for (String line : lines) {
+            out.write(line + "\r\n");
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,84 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import javax.crypto.SecretKey;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTransferTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void testTransfersFile() throws Exception {
+        byte[] data = randomBytes(3 * 1024 * 1024 + 123);
+        Path source = Files.write(dir.resolve("source.bin"), data);
+        FileTransfer transfer = new FileTransfer(source);
+        transfer.setChunkSize(64 * 1024);
+        assertEquals(0, run(transfer, dir.resolve("received.bin")));
+        assertArrayEquals(data, Files.readAllBytes(dir.resolve("received.bin")));
+        assertEquals(FileTransfer.chunkCount(data.length, 64 * 1024), transfer.getAcknowledgedChunks());
+        assertFalse(Files.exists(dir.resolve("received.bin.part")));
+    }
+
+    @Test
+    void testTransfersEmptyFile() throws Exception {
+        Path source = Files.write(dir.resolve("empty.bin"), new byte[0]);
+        run(new FileTransfer(source), dir.resolve("received.bin"));
+        assertEquals(0, Files.size(dir.resolve("received.bin")));
+    }
+
+    @Test
+    void testResumesFromAcknowledgedChunk() throws Exception {
+        int chunkSize = 1024;
+        byte[] data = randomBytes(10 * chunkSize + 7);
+        Path source = Files.write(dir.resolve("source.bin"), data);
+        Path target = dir.resolve("received.bin");
+        // An earlier attempt acknowledged 4 chunks and left half-written data after them
+        byte[] partial = Arrays.copyOf(data, 5 * chunkSize + 100);
+        Arrays.fill(partial, 4 * chunkSize, partial.length, (byte) 0);
+        Files.write(dir.resolve("received.bin.part"), partial);
+        Files.writeString(dir.resolve("received.bin.part.ack"), "t1," + data.length + "," + chunkSize + ",4",
+                StandardCharsets.US_ASCII);
+
+        FileTransfer transfer = new FileTransfer(source, "t1");
+        transfer.setChunkSize(chunkSize);
+        assertEquals(4, run(transfer, target));
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertFalse(Files.exists(dir.resolve("received.bin.part.ack")));
+    }
+
+    private long run(FileTransfer transfer, Path target) throws Exception {
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+        try (ServerSocket server = new ServerSocket(0)) {
+            PeerChannel sender = new PeerChannel(new Socket("127.0.0.1", server.getLocalPort()), key);
+            PeerChannel receiver = new PeerChannel(server.accept(), key);
+            CompletableFuture<Long> received = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return FileTransfer.receive(receiver, receiver.receive(), target);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            long first = transfer.send(sender);
+            assertEquals(Files.size(target), received.get());
+            sender.close();
+            receiver.close();
+            return first;
+        }
+    }
+
+    private static byte[] randomBytes(int n) {
+        byte[] data = new byte[n];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}
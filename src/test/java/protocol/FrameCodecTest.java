@@ -0,0 +1,128 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import java.nio.ByteBuffer;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameCodecTest {
+    @Test
+    void testRoundTripKnownType() {
+        byte[] payload = {1, 2, 3, 4, 5};
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        FrameCodec.encode(buf, "chat", 300, ByteBuffer.wrap(payload));
+        assertEquals(FrameCodec.encodedLength("chat", 300, payload.length), buf.position());
+        buf.flip();
+        Frame frame = new Frame();
+        assertTrue(FrameCodec.decode(buf, frame));
+        assertEquals("chat", frame.getType());
+        assertEquals(300, frame.getCounter());
+        byte[] decoded = new byte[frame.getPayload().remaining()];
+        frame.getPayload().get(decoded);
+        assertArrayEquals(payload, decoded);
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    void testRoundTripExtendedTypeAndLargeCounter() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        FrameCodec.encode(buf, "receipt", Long.MAX_VALUE, new byte[0], 0, 0);
+        buf.flip();
+        Frame frame = new Frame();
+        assertTrue(FrameCodec.decode(buf, frame));
+        assertEquals("receipt", frame.getType());
+        assertEquals(Long.MAX_VALUE, frame.getCounter());
+        assertEquals(0, frame.getPayload().remaining());
+    }
+
+    @Test
+    void testIncrementalDecode() {
+        ByteBuffer encoded = ByteBuffer.allocate(128);
+        FrameCodec.encode(encoded, "chat", 1, new byte[40], 0, 40);
+        FrameCodec.encode(encoded, "group", 2, new byte[10], 0, 10);
+        encoded.flip();
+
+        ByteBuffer in = ByteBuffer.allocate(128);
+        Frame frame = new Frame();
+        int decoded = 0;
+        while (encoded.hasRemaining()) {
+            in.put(encoded.get());
+            in.flip();
+            while (FrameCodec.decode(in, frame)) {
+                decoded++;
+                assertEquals(decoded, frame.getCounter());
+            }
+            in.compact();
+        }
+        assertEquals(2, decoded);
+    }
+
+    @Test
+    void testRejectsMalformedFrames() {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        buf.putInt(FrameCodec.MAX_FRAME_LENGTH + 1).flip();
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.decode(buf, new Frame()));
+
+        ByteBuffer badVersion = ByteBuffer.allocate(16);
+        badVersion.putInt(4).put((byte) 9).put((byte) 0).put((byte) 2).put((byte) 0).flip();
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.decode(badVersion, new Frame()));
+
+        ByteBuffer badFlags = ByteBuffer.allocate(16);
+        badFlags.putInt(4).put((byte) 1).put((byte) 0x80).put((byte) 2).put((byte) 0).flip();
+        assertThrows(IllegalArgumentException.class, () -> FrameCodec.decode(badFlags, new Frame()));
+    }
+
+    @Test
+    void testSealedFlagRoundTrip() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        FrameCodec.writeHeader(buf, FrameCodec.FLAG_SEALED, "file-chunk", 7, 3);
+        buf.put(new byte[] {1, 2, 3}).flip();
+        Frame frame = new Frame();
+        assertTrue(FrameCodec.decode(buf, frame));
+        assertTrue(frame.isSealed());
+        assertEquals("file-chunk", frame.getType());
+        assertEquals(7, frame.getCounter());
+        assertEquals(3, frame.getPayload().remaining());
+    }
+
+    @Test
+    void testStreamIdRoundTrip() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        FrameCodec.writeHeader(buf, FrameCodec.FLAG_SEALED, "chat", 300, 5, 2);
+        assertEquals(FrameCodec.encodedLength("chat", 300, 5, 2) - 2, buf.position());
+        buf.put(new byte[] {1, 2});
+        FrameCodec.encode(buf, "chat", 6, new byte[1], 0, 1);
+        buf.flip();
+        Frame frame = new Frame();
+        assertTrue(FrameCodec.decode(buf, frame));
+        assertEquals(300, frame.getStreamId());
+        assertEquals(5, frame.getCounter());
+        assertTrue(frame.isSealed());
+        assertEquals(FrameCodec.FLAG_SEALED | FrameCodec.FLAG_STREAM, frame.getFlags());
+        assertEquals(2, frame.getPayload().remaining());
+        // Stream 0 frames carry no stream id
+        assertTrue(FrameCodec.decode(buf, frame));
+        assertEquals(0, frame.getStreamId());
+        assertEquals(6, frame.getCounter());
+    }
+
+    @Test
+    void testEpochRoundTrip() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        FrameCodec.writeHeader(buf, 0, "chat", 7, 200, 5, 1);
+        assertEquals(FrameCodec.headerLength("chat", 7, 200, 5), buf.position());
+        buf.put((byte) 9);
+        FrameCodec.writeHeader(buf, 0, "chat", 0, 0, 6, 0);
+        buf.flip();
+        Frame frame = new Frame();
+        assertTrue(FrameCodec.decode(buf, frame));
+        assertEquals(FrameCodec.FLAG_STREAM | FrameCodec.FLAG_EPOCH, frame.getFlags());
+        assertEquals(7, frame.getStreamId());
+        assertEquals(200, frame.getEpoch());
+        assertEquals(5, frame.getCounter());
+        assertEquals(9, frame.getPayload().get(frame.getPayload().position()));
+        // Epoch 0 frames carry no epoch
+        assertTrue(FrameCodec.decode(buf, frame));
+        assertEquals(0, frame.getFlags());
+        assertEquals(0, frame.getEpoch());
+    }
+}
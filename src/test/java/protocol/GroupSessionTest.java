@@ -0,0 +1,117 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupSessionTest {
+    @Test
+    void testEncryptsOnceAndFansOut() throws Exception {
+        try (ServerSocket server = new ServerSocket(0); GroupSession group = new GroupSession()) {
+            List<PeerChannel> members = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                PeerChannel[] pair = connect(server, i);
+                group.addMember("member" + i, pair[0]);
+                members.add(pair[1]);
+            }
+            assertEquals(3, group.getEpoch());
+
+            List<GroupKeyring> keyrings = new ArrayList<>();
+            for (PeerChannel member : members) {
+                GroupKeyring keyring = new GroupKeyring();
+                // Members that joined earlier see every later rotation
+                while (keyring.getEpoch(group.getGroupId()) < 3) {
+                    keyring.acceptKey(member.receive());
+                }
+                keyrings.add(keyring);
+            }
+
+            assertEquals(0, group.send("chat", "hello group"));
+            byte[] first = null;
+            for (int i = 0; i < members.size(); i++) {
+                ProtocolMessage sealed = members.get(i).receive();
+                assertEquals(GroupSession.MESSAGE, sealed.getType());
+                // Every member receives the very same ciphertext
+                if (first == null) first = sealed.getBody();
+                assertArrayEquals(first, sealed.getBody());
+                ProtocolMessage msg = keyrings.get(i).open(sealed);
+                assertEquals("chat", msg.getType());
+                assertEquals("hello group", msg.getPayload());
+                assertNull(keyrings.get(i).open(sealed));
+            }
+            for (PeerChannel member : members) member.close();
+        }
+    }
+
+    @Test
+    void testRotatesKeyWhenMemberLeaves() throws Exception {
+        try (ServerSocket server = new ServerSocket(0); GroupSession group = new GroupSession("g1")) {
+            PeerChannel[] alice = connect(server, 0);
+            PeerChannel[] bob = connect(server, 1);
+            group.addMember("alice", alice[0]);
+            group.addMember("bob", bob[0]);
+            GroupKeyring aliceKeys = new GroupKeyring();
+            GroupKeyring bobKeys = new GroupKeyring();
+            aliceKeys.acceptKey(alice[1].receive());
+            aliceKeys.acceptKey(alice[1].receive());
+            bobKeys.acceptKey(bob[1].receive());
+
+            group.send("chat", "before");
+            ProtocolMessage before = bob[1].receive();
+            assertEquals("before", bobKeys.open(before).getPayload());
+            assertEquals("before", aliceKeys.open(alice[1].receive()).getPayload());
+
+            assertTrue(group.removeMember("bob"));
+            assertFalse(group.removeMember("bob"));
+            assertEquals(3, group.getEpoch());
+            assertTrue(aliceKeys.acceptKey(alice[1].receive()));
+            group.send("chat", "after");
+            ProtocolMessage after = alice[1].receive();
+            assertEquals("after", aliceKeys.open(after).getPayload());
+            // Bob still has only the old key
+            assertThrows(IOException.class, () -> bobKeys.open(after));
+            // A stale key message does not roll the epoch back
+            assertFalse(aliceKeys.acceptKey(new ProtocolMessage(GroupSession.KEY, "g1,2,"
+                    + Base64.getEncoder().encodeToString(new byte[32]), 0)));
+            assertEquals(3, aliceKeys.getEpoch("g1"));
+        }
+    }
+
+    @Test
+    void testRejectsTamperedMessage() throws Exception {
+        try (ServerSocket server = new ServerSocket(0); GroupSession group = new GroupSession()) {
+            PeerChannel[] pair = connect(server, 0);
+            group.addMember("m", pair[0]);
+            GroupKeyring keyring = new GroupKeyring();
+            keyring.acceptKey(pair[1].receive());
+            group.send("chat", "payload");
+            ProtocolMessage sealed = pair[1].receive();
+            byte[] body = sealed.getBody();
+            body[body.length - 1] ^= 1;
+            ProtocolMessage tampered = new ProtocolMessage(sealed.getType(), body, sealed.getCounter());
+            assertThrows(GeneralSecurityException.class, () -> keyring.open(tampered));
+        }
+    }
+
+    @Test
+    void testSendWithoutMembersFails() {
+        try (GroupSession group = new GroupSession()) {
+            assertThrows(IllegalStateException.class, () -> group.send("chat", "nobody"));
+        }
+        assertThrows(IllegalArgumentException.class, () -> new GroupSession("a,b"));
+    }
+
+    private static PeerChannel[] connect(ServerSocket server, int i) throws Exception {
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[] {(byte) i}, "group-test".getBytes());
+        PeerChannel owner = new PeerChannel(new Socket("127.0.0.1", server.getLocalPort()), key);
+        PeerChannel member = new PeerChannel(server.accept(), key);
+        return new PeerChannel[] {owner, member};
+    }
+}
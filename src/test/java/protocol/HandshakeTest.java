@@ -1,7 +1,14 @@
 package protocol;
 
 import org.junit.jupiter.api.Test;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import static org.junit.jupiter.api.Assertions.*;
 
 class HandshakeTest {
@@ -14,4 +21,154 @@ class HandshakeTest {
         assertArrayEquals(aliceSecret, bobSecret);
         assertEquals(32, aliceSecret.length);
     }
+
+    @Test
+    void testInitiatorAndResponderAgreeOnSessionKey() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            CompletableFuture<HandshakeResult> responder = CompletableFuture.supplyAsync(() -> {
+                try (Socket s = server.accept()) {
+                    return Handshake.respond(s.getInputStream(), s.getOutputStream());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            try (Socket s = new Socket("127.0.0.1", server.getLocalPort())) {
+                HandshakeResult initiator = Handshake.initiate(s.getInputStream(), s.getOutputStream());
+                assertArrayEquals(initiator.getSessionKey().getEncoded(), responder.get().getSessionKey().getEncoded());
+            }
+        }
+    }
+
+    @Test
+    void testRawPublicKeyRoundTrip() throws Exception {
+        KeyPair pair = Handshake.generateEphemeralKeyPair();
+        byte[] raw = Handshake.rawPublicKey(pair.getPublic());
+        assertEquals(Handshake.PUBLIC_KEY_LENGTH, raw.length);
+        PublicKey decoded = Handshake.publicKeyFromRaw(raw);
+        assertArrayEquals(pair.getPublic().getEncoded(), decoded.getEncoded());
+        PublicKey fromBase64 = Handshake.decodePublicKey(Handshake.encodePublicKey(pair.getPublic()));
+        assertArrayEquals(pair.getPublic().getEncoded(), fromBase64.getEncoded());
+        assertThrows(Exception.class, () -> Handshake.publicKeyFromRaw(new byte[31]));
+    }
+
+    @Test
+    void testHandshakeWithKeyPools() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             EphemeralKeyPool initiatorPool = new EphemeralKeyPool(4);
+             EphemeralKeyPool responderPool = new EphemeralKeyPool(4)) {
+            CompletableFuture<HandshakeResult> responder = CompletableFuture.supplyAsync(() -> {
+                try (Socket s = server.accept()) {
+                    return Handshake.respond(s.getInputStream(), s.getOutputStream(), responderPool);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            try (Socket s = new Socket("127.0.0.1", server.getLocalPort())) {
+                HandshakeResult initiator = Handshake.initiate(s.getInputStream(), s.getOutputStream(), initiatorPool);
+                assertArrayEquals(initiator.getSessionKey().getEncoded(), responder.get().getSessionKey().getEncoded());
+            }
+        }
+    }
+
+    @Test
+    void testResumesWithTicketAndFallsBackWhenItIsGone() throws Exception {
+        ResumptionCache initiatorCache = new ResumptionCache(16, 60_000);
+        ResumptionCache responderCache = new ResumptionCache(16, 60_000);
+        HandshakeResult[] first = handshake(initiatorCache, responderCache);
+        assertFalse(first[0].isResumed());
+        assertEquals(1, initiatorCache.size());
+        assertEquals(1, responderCache.size());
+
+        HandshakeResult[] second = handshake(initiatorCache, responderCache);
+        assertTrue(second[0].isResumed());
+        assertTrue(second[1].isResumed());
+        assertArrayEquals(second[0].getSessionKey().getEncoded(), second[1].getSessionKey().getEncoded());
+        assertFalse(Arrays.equals(first[0].getSessionKey().getEncoded(), second[0].getSessionKey().getEncoded()));
+
+        // The responder forgot the ticket (restart, eviction): full handshake in the same round trip
+        responderCache.clear();
+        HandshakeResult[] third = handshake(initiatorCache, responderCache);
+        assertFalse(third[0].isResumed());
+        assertFalse(third[1].isResumed());
+        assertArrayEquals(third[0].getSessionKey().getEncoded(), third[1].getSessionKey().getEncoded());
+    }
+
+    @Test
+    void testNegotiatesResponderPreferredCipherSuite() throws Exception {
+        ResumptionCache initiatorCache = new ResumptionCache(16, 60_000);
+        ResumptionCache responderCache = new ResumptionCache(16, 60_000);
+        List<CipherSuite> offered = List.of(CipherSuite.AES_256_GCM, CipherSuite.CHACHA20_POLY1305);
+        List<CipherSuite> accepted = List.of(CipherSuite.CHACHA20_POLY1305, CipherSuite.AES_256_GCM);
+        HandshakeResult[] full = handshake(initiatorCache, responderCache, offered, accepted);
+        assertEquals(CipherSuite.CHACHA20_POLY1305, full[0].getCipherSuite());
+        assertEquals(CipherSuite.CHACHA20_POLY1305, full[1].getCipherSuite());
+        assertArrayEquals(full[0].getSessionKey().getEncoded(), full[1].getSessionKey().getEncoded());
+
+        // Resumption negotiates again
+        HandshakeResult[] resumed = handshake(initiatorCache, responderCache, offered, List.of(CipherSuite.AES_256_GCM));
+        assertTrue(resumed[0].isResumed());
+        assertEquals(CipherSuite.AES_256_GCM, resumed[0].getCipherSuite());
+        assertEquals(CipherSuite.AES_256_GCM, resumed[1].getCipherSuite());
+        assertArrayEquals(resumed[0].getSessionKey().getEncoded(), resumed[1].getSessionKey().getEncoded());
+
+        HandshakeResult[] defaults = handshake(null, null, CipherSuite.defaults(), CipherSuite.defaults());
+        assertEquals(CipherSuite.defaults().get(0), defaults[0].getCipherSuite());
+    }
+
+    @Test
+    void testEachDirectionHasItsOwnKey() throws Exception {
+        ResumptionCache initiatorCache = new ResumptionCache(16, 60_000);
+        ResumptionCache responderCache = new ResumptionCache(16, 60_000);
+        HandshakeResult[] full = handshake(initiatorCache, responderCache);
+        HandshakeResult[] resumed = handshake(initiatorCache, responderCache);
+        assertTrue(resumed[0].isResumed());
+        for (HandshakeResult[] pair : List.of(full, resumed)) {
+            HandshakeResult initiator = pair[0];
+            HandshakeResult responder = pair[1];
+            assertArrayEquals(initiator.getSendKey().getEncoded(), responder.getReceiveKey().getEncoded());
+            assertArrayEquals(responder.getSendKey().getEncoded(), initiator.getReceiveKey().getEncoded());
+            assertFalse(Arrays.equals(initiator.getSendKey().getEncoded(), initiator.getReceiveKey().getEncoded()));
+
+            // Both sides' first message uses counter 0, but under different keys
+            byte[] plaintext = "hello".getBytes();
+            byte[] fromInitiator = new SessionCrypto(initiator.getSendKey()).encrypt(0, plaintext);
+            byte[] fromResponder = new SessionCrypto(responder.getSendKey()).encrypt(0, plaintext);
+            assertArrayEquals(plaintext, new SessionCrypto(responder.getReceiveKey()).decrypt(0, fromInitiator));
+            assertArrayEquals(plaintext, new SessionCrypto(initiator.getReceiveKey()).decrypt(0, fromResponder));
+            // Under the other direction's key the same message does not authenticate
+            assertThrows(GeneralSecurityException.class,
+                    () -> new SessionCrypto(initiator.getReceiveKey()).decrypt(0, fromInitiator));
+        }
+    }
+
+    @Test
+    void testFailsWithoutCommonCipherSuite() throws Exception {
+        Exception e = assertThrows(Exception.class, () -> handshake(null, null,
+                List.of(CipherSuite.AES_256_GCM), List.of(CipherSuite.CHACHA20_POLY1305)));
+        assertTrue(e.getMessage().contains("cipher suite"), e.getMessage());
+    }
+
+    private static HandshakeResult[] handshake(ResumptionCache initiatorCache, ResumptionCache responderCache)
+            throws Exception {
+        return handshake(initiatorCache, responderCache, CipherSuite.defaults(), CipherSuite.defaults());
+    }
+
+    private static HandshakeResult[] handshake(ResumptionCache initiatorCache, ResumptionCache responderCache,
+                                               List<CipherSuite> offered, List<CipherSuite> accepted)
+            throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            CompletableFuture<HandshakeResult> responder = CompletableFuture.supplyAsync(() -> {
+                try (Socket s = server.accept()) {
+                    return Handshake.respond(s.getInputStream(), s.getOutputStream(), null, responderCache, accepted);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            try (Socket s = new Socket("127.0.0.1", server.getLocalPort())) {
+                HandshakeResult initiator = Handshake.initiate(s.getInputStream(), s.getOutputStream(), null,
+                        initiatorCache, "peer.onion", offered);
+                return new HandshakeResult[] {initiator, responder.get()};
+            }
+        }
+    }
 }
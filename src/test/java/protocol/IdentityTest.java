@@ -1,11 +1,18 @@
 package protocol;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
-import java.security.KeyPair;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.util.Base64;
 
 class IdentityTest {
+    @TempDir
+    Path dir;
+
     @Test
     void testKeyGenerationAndSerialization() throws GeneralSecurityException {
         Identity id = Identity.generate();
@@ -16,4 +23,56 @@ class IdentityTest {
         assertTrue(id.getPublicKeyBase64().length() > 0);
         assertTrue(id.getPrivateKeyBase64().length() > 0);
     }
+
+    @Test
+    void testOnionAddressAndServiceKey() throws GeneralSecurityException {
+        Identity id = Identity.generate();
+        String serviceId = id.getOnionServiceId();
+        assertEquals(56, serviceId.length());
+        assertTrue(serviceId.matches("[a-z2-7]+"));
+        // The version byte 3 always encodes as a trailing 'd'
+        assertTrue(serviceId.endsWith("d"));
+        assertEquals(serviceId + ".onion", id.getOnionAddress());
+
+        String key = id.getOnionServiceKey();
+        assertTrue(key.startsWith("ED25519-V3:"));
+        assertEquals(64, Base64.getDecoder().decode(key.substring("ED25519-V3:".length())).length);
+        assertNotEquals(serviceId, Identity.generate().getOnionServiceId());
+    }
+
+    @Test
+    void testSaveAndLoadKeepsOnionAddress() throws Exception {
+        Identity id = Identity.generate();
+        Path file = dir.resolve("profile").resolve("identity");
+        id.save(file);
+        Identity loaded = Identity.load(file);
+        assertEquals(id.getOnionAddress(), loaded.getOnionAddress());
+        assertEquals(id.getOnionServiceKey(), loaded.getOnionServiceKey());
+        assertArrayEquals(id.getPublicKey().getEncoded(), loaded.getPublicKey().getEncoded());
+        // Saving again replaces the file atomically
+        Identity.generate().save(file);
+        assertNotEquals(id.getOnionAddress(), Identity.load(file).getOnionAddress());
+    }
+
+    @Test
+    void testPassphraseProtectedIdentity() throws Exception {
+        Identity id = Identity.generate();
+        Path file = dir.resolve("identity");
+        id.save(file, "correct horse".toCharArray());
+        assertFalse(Files.readString(file).contains("private="));
+        assertEquals(id.getOnionAddress(), Identity.load(file, "correct horse".toCharArray()).getOnionAddress());
+        assertThrows(GeneralSecurityException.class, () -> Identity.load(file, "wrong".toCharArray()));
+        assertThrows(IOException.class, () -> Identity.load(file));
+    }
+
+    @Test
+    void testRejectsTamperedFile() throws Exception {
+        Path file = dir.resolve("identity");
+        Identity.generate().save(file);
+        Path otherFile = dir.resolve("other");
+        Identity.generate().save(otherFile);
+        String otherPublic = Files.readAllLines(otherFile).get(1);
+        Files.writeString(file, Files.readString(file).replaceFirst("public=.*", otherPublic));
+        assertThrows(IOException.class, () -> Identity.load(file));
+    }
 }
@@ -0,0 +1,136 @@
+package protocol;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import javax.crypto.SecretKey;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void uninstall() {
+        Metrics.install(null);
+    }
+
+    @Test
+    void testCountsChannelTrafficAndLatencies() throws Exception {
+        SimpleMetrics metrics = new SimpleMetrics();
+        Metrics.install(metrics);
+        try (ServerSocket server = new ServerSocket(0)) {
+            Socket client = new Socket("127.0.0.1", server.getLocalPort());
+            Socket accepted = server.accept();
+            CompletableFuture<HandshakeResult> responder = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return Handshake.respond(accepted.getInputStream(), accepted.getOutputStream());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            HandshakeResult initiator = Handshake.initiate(client.getInputStream(), client.getOutputStream());
+            PeerChannel sender = new PeerChannel(client, initiator);
+            PeerChannel receiver = new PeerChannel(accepted, responder.get());
+            assertTrue(metrics.getGauges().keySet().stream().anyMatch(name -> name.endsWith(".send-queue")));
+
+            for (int i = 0; i < 10; i++) {
+                sender.send("chat", "message " + i);
+            }
+            for (int i = 0; i < 10; i++) {
+                assertEquals("message " + i, receiver.receive().getPayload());
+            }
+            sender.close();
+            receiver.close();
+            assertTrue(metrics.getGauges().keySet().stream().noneMatch(name -> name.startsWith("peer-channel-")));
+        }
+        assertEquals(10, metrics.getCount(Metrics.Counter.MESSAGES_SENT));
+        assertEquals(10, metrics.getCount(Metrics.Counter.MESSAGES_RECEIVED));
+        assertEquals(metrics.getCount(Metrics.Counter.BYTES_SENT), metrics.getCount(Metrics.Counter.BYTES_RECEIVED));
+        assertEquals(2, metrics.getCount(Metrics.Counter.HANDSHAKES));
+        assertEquals(2, metrics.getHistogram(Metrics.Timer.HANDSHAKE).getCount());
+        assertEquals(10, metrics.getHistogram(Metrics.Timer.ENCRYPT).getCount());
+        assertEquals(10, metrics.getHistogram(Metrics.Timer.DECRYPT).getCount());
+        assertTrue(metrics.getHistogram(Metrics.Timer.ENCRYPT).getPercentileNanos(50) > 0);
+    }
+
+    @Test
+    void testCountsReplaysAndQueueDepth() throws Exception {
+        SimpleMetrics metrics = new SimpleMetrics();
+        Metrics.install(metrics);
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "metrics".getBytes());
+        try (ServerSocket server = new ServerSocket(0); GroupSession group = new GroupSession("g")) {
+            PeerChannel owner = new PeerChannel(new Socket("127.0.0.1", server.getLocalPort()), key);
+            PeerChannel member = new PeerChannel(server.accept(), key);
+            group.addMember("m", owner);
+            GroupKeyring keyring = new GroupKeyring();
+            keyring.acceptKey(member.receive());
+            group.send("chat", "hello");
+            ProtocolMessage sealed = member.receive();
+            assertNotNull(keyring.open(sealed));
+            assertNull(keyring.open(sealed));
+            owner.close();
+            member.close();
+        }
+        assertEquals(1, metrics.getCount(Metrics.Counter.REPLAYS_REJECTED));
+
+        try (OutboundQueue queue = new OutboundQueue(dir)) {
+            queue.enqueue("chat", "one");
+            queue.enqueue("chat", "two");
+            assertEquals(2L, metrics.getGauges().get("outbound-queue-" + queue.getQueueId() + ".pending"));
+        }
+        assertTrue(metrics.getGauges().isEmpty());
+    }
+
+    @Test
+    void testHistogramBuckets() {
+        SimpleMetrics.Histogram histogram = new SimpleMetrics().getHistogram(Metrics.Timer.ENCRYPT);
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500, histogram.getMeanNanos());
+        assertEquals(1_000_000, histogram.getMaxNanos());
+        long p50 = histogram.getPercentileNanos(50);
+        assertTrue(p50 >= 500_000 && p50 <= 500_000 * 1.25, "p50: " + p50);
+        assertEquals(1_000_000, histogram.getPercentileNanos(100));
+        for (long v : new long[] {0, 1, 3, 4, 7, 8, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int bucket = SimpleMetrics.Histogram.bucket(v);
+            assertTrue(SimpleMetrics.Histogram.upperBound(bucket) >= v);
+            assertTrue(bucket == 0 || SimpleMetrics.Histogram.upperBound(bucket - 1) < v);
+        }
+    }
+
+    @Test
+    void testEmitsFlightRecorderEvents() throws Exception {
+        Path file = dir.resolve("metrics.jfr");
+        try (Recording recording = new Recording(); JfrMetrics metrics = new JfrMetrics()) {
+            recording.enable("protocol.Latency");
+            recording.enable("protocol.CryptoLatency");
+            recording.enable("protocol.Counters").with("period", "endChunk");
+            recording.start();
+            Metrics.install(metrics);
+            SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "jfr".getBytes());
+            new SessionCrypto(key).encrypt(0, new byte[16]);
+            metrics.record(Metrics.Timer.TOR_COMMAND, 1_000_000);
+            metrics.increment(Metrics.Counter.MESSAGES_SENT, 3);
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("protocol.Latency")
+                && "TOR_COMMAND".equals(e.getString("operation"))));
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("protocol.CryptoLatency")
+                && "ENCRYPT".equals(e.getString("operation"))));
+        assertTrue(events.stream().anyMatch(e -> e.getEventType().getName().equals("protocol.Counters")
+                && e.getLong("messagesSent") == 3));
+    }
+}
@@ -0,0 +1,189 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import javax.crypto.SecretKey;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void testDrainsAndAcknowledges() throws Exception {
+        try (OutboundQueue queue = new OutboundQueue(dir)) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, queue.enqueue("chat", "message " + i));
+            }
+            assertEquals(100, queue.size());
+            GroupKeyring keyring = new GroupKeyring();
+            List<ProtocolMessage> received = drain(queue, keyring, 100);
+            for (int i = 0; i < 100; i++) {
+                assertEquals("chat", received.get(i).getType());
+                assertEquals("message " + i, received.get(i).getPayload());
+            }
+            queue.acknowledge(59);
+            assertEquals(40, queue.size());
+            // Only the unacknowledged messages go out again
+            assertEquals(60, drain(queue, new GroupKeyring(), 40).get(0).getCounter());
+            queue.acknowledge(99);
+            assertEquals(0, queue.size());
+        }
+    }
+
+    @Test
+    void testSurvivesRestartWithoutReencrypting() throws Exception {
+        List<byte[]> before;
+        try (OutboundQueue queue = new OutboundQueue(dir)) {
+            queue.enqueue("chat", "one");
+            queue.enqueue("chat", "two");
+            queue.enqueue("chat", "three");
+            queue.acknowledge(0);
+            before = drainRaw(queue, 2);
+        }
+        try (OutboundQueue queue = new OutboundQueue(dir)) {
+            assertEquals(2, queue.size());
+            assertEquals(3, queue.getNextSequence());
+            List<byte[]> after = drainRaw(queue, 2);
+            for (int i = 0; i < 2; i++) {
+                assertArrayEquals(before.get(i), after.get(i));
+            }
+        }
+    }
+
+    @Test
+    void testDuplicatesAfterReconnectAreDropped() throws Exception {
+        try (OutboundQueue queue = new OutboundQueue(dir)) {
+            queue.enqueue("chat", "hello");
+            GroupKeyring keyring = new GroupKeyring();
+            assertEquals("hello", drain(queue, keyring, 1).get(0).getPayload());
+            // The acknowledgement was lost, so the message is sent again
+            assertNull(drain(queue, keyring, 1).get(0));
+        }
+    }
+
+    @Test
+    void testLongRedeliveryIsDropped() throws Exception {
+        int n = GroupSession.REPLAY_WINDOW_SIZE + 500;
+        try (OutboundQueue queue = new OutboundQueue(dir)) {
+            for (int i = 0; i < n; i++) {
+                queue.enqueue("chat", "message " + i);
+            }
+            GroupKeyring keyring = new GroupKeyring();
+            assertEquals("message " + (n - 1), drain(queue, keyring, n).get(n - 1).getPayload());
+            // Most of the redelivery is older than the replay window, and is dropped rather than refused
+            for (ProtocolMessage msg : drain(queue, keyring, n)) {
+                assertNull(msg);
+            }
+            queue.enqueue("chat", "fresh");
+            queue.acknowledge(n - 1);
+            assertEquals("fresh", drain(queue, keyring, 1).get(0).getPayload());
+        }
+    }
+
+    @Test
+    void testRollsAndCompactsSegments() throws Exception {
+        try (OutboundQueue queue = new OutboundQueue(dir, 4096)) {
+            String text = "x".repeat(200);
+            for (int i = 0; i < 200; i++) {
+                queue.enqueue("chat", text);
+            }
+            long segments = segmentCount();
+            assertTrue(segments > 5, "segments: " + segments);
+            assertEquals(200, drain(queue, new GroupKeyring(), 200).size());
+            queue.acknowledge(99);
+            assertTrue(segmentCount() < segments);
+            queue.acknowledge(199);
+            assertEquals(1, segmentCount());
+            // The reused segment takes new messages
+            assertEquals(200, queue.enqueue("chat", "after"));
+            assertEquals("after", drain(queue, new GroupKeyring(), 1).get(0).getPayload());
+        }
+        try (OutboundQueue queue = new OutboundQueue(dir, 4096)) {
+            assertEquals(1, queue.size());
+            assertEquals(201, queue.getNextSequence());
+        }
+    }
+
+    @Test
+    void testDiscardsTornAppend() throws Exception {
+        try (OutboundQueue queue = new OutboundQueue(dir, 4096)) {
+            queue.enqueue("chat", "one");
+            queue.enqueue("chat", "two");
+        }
+        // Simulate a crash after the header and part of the body of a third message
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.filter(p -> p.toString().endsWith(".seg")).findFirst().orElseThrow();
+        }
+        try (FileChannel fc = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = fc.map(FileChannel.MapMode.READ_WRITE, 0, fc.size());
+            int end = 0;
+            while (data.getInt(end) != 0) end += 4 + data.getInt(end);
+            data.put(end + 4, (byte) FrameCodec.VERSION).put(end + 5, (byte) 0x7f).put(end + 40, (byte) 0x55);
+        }
+        try (OutboundQueue queue = new OutboundQueue(dir, 4096)) {
+            assertEquals(2, queue.size());
+            assertEquals(2, queue.enqueue("chat", "three"));
+        }
+        try (OutboundQueue queue = new OutboundQueue(dir, 4096)) {
+            List<ProtocolMessage> received = drain(queue, new GroupKeyring(), 3);
+            assertEquals("three", received.get(2).getPayload());
+        }
+    }
+
+    private long segmentCount() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".seg")).count();
+        }
+    }
+
+    /**
+     * Drains the queue over a fresh connection and opens n messages with the keyring.
+     */
+    private static List<ProtocolMessage> drain(OutboundQueue queue, GroupKeyring keyring, int n) throws Exception {
+        List<ProtocolMessage> opened = new ArrayList<>();
+        for (ProtocolMessage sealed : drainMessages(queue, keyring, n)) {
+            opened.add(keyring.open(sealed));
+        }
+        return opened;
+    }
+
+    private static List<byte[]> drainRaw(OutboundQueue queue, int n) throws Exception {
+        List<byte[]> bodies = new ArrayList<>();
+        for (ProtocolMessage sealed : drainMessages(queue, new GroupKeyring(), n)) {
+            bodies.add(sealed.getBody());
+        }
+        return bodies;
+    }
+
+    private static List<ProtocolMessage> drainMessages(OutboundQueue queue, GroupKeyring keyring, int n) throws Exception {
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "queue-test".getBytes());
+        try (ServerSocket server = new ServerSocket(0)) {
+            PeerChannel sender = new PeerChannel(new Socket("127.0.0.1", server.getLocalPort()), key);
+            PeerChannel receiver = new PeerChannel(server.accept(), key);
+            assertEquals(n, queue.drainTo(sender));
+            keyring.acceptKey(receiver.receive());
+            List<ProtocolMessage> messages = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                ProtocolMessage msg = receiver.receive();
+                assertEquals(OutboundQueue.MESSAGE, msg.getType());
+                assertTrue(msg.isSealed());
+                messages.add(msg);
+            }
+            sender.close();
+            receiver.close();
+            return messages;
+        }
+    }
+}
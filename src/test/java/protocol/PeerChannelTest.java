@@ -5,11 +5,28 @@ import javax.crypto.SecretKey;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import static org.junit.jupiter.api.Assertions.*;
 
 class PeerChannelTest {
     @Test
     void testSendAndReceive() throws Exception {
+        assertSendAndReceive(WireFormat.BINARY);
+    }
+
+    @Test
+    void testSendAndReceiveTextFormat() throws Exception {
+        assertSendAndReceive(WireFormat.TEXT);
+    }
+
+    private void assertSendAndReceive(WireFormat format) throws Exception {
         // Use a loopback socket pair
         ServerSocket server = new ServerSocket(0);
         int port = server.getLocalPort();
@@ -17,19 +34,229 @@ class PeerChannelTest {
             try {
                 Socket clientSocket = new Socket("127.0.0.1", port);
                 SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
-                PeerChannel channel = new PeerChannel(clientSocket, key);
+                PeerChannel channel = new PeerChannel(clientSocket, key, format);
                 channel.send("chat", "Hello from client!");
+                channel.send("receipt", "Gr\u00fc\u00dfe, 42");
                 channel.close();
             } catch (Exception ignored) {}
         });
         clientThread.start();
         Socket serverSocket = server.accept();
         SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
-        PeerChannel channel = new PeerChannel(serverSocket, key);
+        PeerChannel channel = new PeerChannel(serverSocket, key, format);
         ProtocolMessage msg = channel.receive();
         assertEquals("chat", msg.getType());
         assertEquals("Hello from client!", msg.getPayload());
+        msg = channel.receive();
+        assertEquals("receipt", msg.getType());
+        assertEquals("Gr\u00fc\u00dfe, 42", msg.getPayload());
+        assertEquals(1, msg.getCounter());
+        assertNull(channel.receive());
         channel.close();
         server.close();
     }
+
+    @Test
+    void testSendAsyncFromManyThreads() throws Exception {
+        int threads = 8;
+        int perThread = 200;
+        try (ServerSocket server = new ServerSocket(0)) {
+            Socket clientSocket = new Socket("127.0.0.1", server.getLocalPort());
+            SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+            PeerChannel sender = new PeerChannel(clientSocket, key);
+            PeerChannel receiver = new PeerChannel(server.accept(), key);
+            // Small enough that senders have to wait for the writer
+            sender.setSendQueue(4, OverflowPolicy.BLOCK);
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            List<Thread> senders = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                Thread thread = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        CompletableFuture<Void> future = sender.sendAsync("chat", id + ":" + i);
+                        synchronized (sent) {
+                            sent.add(future);
+                        }
+                    }
+                });
+                senders.add(thread);
+                thread.start();
+            }
+            int[] next = new int[threads];
+            for (int n = 0; n < threads * perThread; n++) {
+                ProtocolMessage msg = receiver.receive();
+                assertEquals(n, msg.getCounter());
+                String[] parts = msg.getPayload().split(":");
+                // Each thread's messages arrive in the order it queued them
+                assertEquals(next[Integer.parseInt(parts[0])]++, Integer.parseInt(parts[1]));
+            }
+            for (Thread thread : senders) thread.join();
+            CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+            assertEquals(0, sender.getSendQueueDepth());
+            sender.close();
+            assertNull(receiver.receive());
+            receiver.close();
+            assertTrue(sender.sendAsync("chat", "late").isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    void testSendQueueOverflowPolicies() throws Exception {
+        assertOverflow(OverflowPolicy.FAIL_FAST);
+        assertOverflow(OverflowPolicy.DROP_OLDEST);
+    }
+
+    private void assertOverflow(OverflowPolicy policy) throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Socket clientSocket = new Socket("127.0.0.1", server.getLocalPort());
+            Socket peer = server.accept();
+            SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+            PeerChannel sender = new PeerChannel(clientSocket, key);
+            sender.setSendQueue(2, policy);
+            // Nobody reads, so the writer soon blocks on a full socket and the queue fills up
+            String large = "x".repeat(256 * 1024);
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                sent.add(sender.sendAsync("chat", large));
+                Thread.sleep(1);
+            }
+            assertEquals(2, sender.getSendQueueDepth());
+            CompletableFuture<Void> newest = sent.get(sent.size() - 1);
+            CompletableFuture<Void> rejected = sent.stream().filter(CompletableFuture::isCompletedExceptionally)
+                    .reduce((first, second) -> second).orElseThrow();
+            if (policy == OverflowPolicy.FAIL_FAST) {
+                // The newest message was refused
+                assertSame(newest, rejected);
+            } else {
+                // Older messages made room for the newest one
+                assertNotSame(newest, rejected);
+                assertFalse(newest.isDone());
+            }
+            ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+            assertInstanceOf(IOException.class, e.getCause());
+            peer.close();
+            sender.close();
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                assertThrows(ExecutionException.class, () -> newest.get(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    void testBufferSendAndFrameReceive() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Socket clientSocket = new Socket("127.0.0.1", server.getLocalPort());
+            SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+            PeerChannel sender = new PeerChannel(clientSocket, key);
+            PeerChannel receiver = new PeerChannel(server.accept(), key);
+            BufferPool pool = new BufferPool(4, true);
+            ByteBuffer buf = pool.acquire(64);
+            for (int i = 0; i < 3; i++) {
+                buf.clear();
+                buf.put(("message " + i).getBytes(StandardCharsets.UTF_8)).flip();
+                sender.send("receipt", buf);
+                assertFalse(buf.hasRemaining());
+            }
+            pool.release(buf);
+            sender.ping();
+            sender.close();
+
+            Frame frame = new Frame();
+            String type = null;
+            for (int i = 0; i < 3; i++) {
+                assertTrue(receiver.receive(frame));
+                if (type != null) assertSame(type, frame.getType());
+                type = frame.getType();
+                assertEquals("receipt", type);
+                assertEquals(i, frame.getCounter());
+                assertEquals("message " + i, StandardCharsets.UTF_8.decode(frame.getPayload()).toString());
+            }
+            // The ping is answered and not returned
+            assertFalse(receiver.receive(frame));
+            receiver.close();
+            assertEquals(0, pool.getLeakCount());
+        }
+    }
+
+    @Test
+    void testLingerFlushesPartialBatch() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            Socket clientSocket = new Socket("127.0.0.1", server.getLocalPort());
+            SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+            PeerChannel sender = new PeerChannel(clientSocket, key);
+            PeerChannel receiver = new PeerChannel(server.accept(), key);
+            sender.setFlushPolicy(new FlushPolicy(100, 0, 2_000));
+            sender.send("chat", "lingering");
+            // Only the linger timer can push this message out
+            assertEquals("lingering", receiver.receive().getPayload());
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    @Test
+    void testBatchingReducesSocketWrites() throws Exception {
+        int messages = 5000;
+        assertEquals(messages, countWrites(messages, FlushPolicy.IMMEDIATE, false));
+        int batched = countWrites(messages, new FlushPolicy(64, 16 * 1024, 0), false);
+        assertTrue(batched <= messages / 64 + 1, "batched writes: " + batched);
+        int sendAll = countWrites(messages, FlushPolicy.IMMEDIATE, true);
+        assertTrue(sendAll <= messages / 100 + 1, "sendAll writes: " + sendAll);
+    }
+
+    /**
+     * Sends messages through a channel and returns the number of socket writes it took.
+     */
+    private int countWrites(int messages, FlushPolicy policy, boolean useSendAll) throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+        try (ServerSocket server = new ServerSocket(0)) {
+            Socket clientSocket = new Socket("127.0.0.1", server.getLocalPort()) {
+                @Override
+                public OutputStream getOutputStream() throws IOException {
+                    return new FilterOutputStream(super.getOutputStream()) {
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            writes.incrementAndGet();
+                            out.write(b, off, len);
+                        }
+                    };
+                }
+            };
+            PeerChannel receiver = new PeerChannel(server.accept(), key);
+            CompletableFuture<Integer> received = CompletableFuture.supplyAsync(() -> {
+                try {
+                    int n = 0;
+                    while (n < messages) {
+                        ProtocolMessage msg = receiver.receive();
+                        assertEquals("message " + n, msg.getPayload());
+                        n++;
+                    }
+                    return n;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            PeerChannel sender = new PeerChannel(clientSocket, key);
+            sender.setFlushPolicy(policy);
+            if (useSendAll) {
+                for (int i = 0; i < messages; i += 100) {
+                    List<ProtocolMessage> batch = new ArrayList<>();
+                    for (int j = i; j < Math.min(messages, i + 100); j++) {
+                        batch.add(new ProtocolMessage("chat", "message " + j, 0));
+                    }
+                    sender.sendAll(batch);
+                }
+            } else {
+                for (int i = 0; i < messages; i++) {
+                    sender.send("chat", "message " + i);
+                }
+                sender.flush();
+            }
+            assertEquals(messages, received.get());
+            sender.close();
+            receiver.close();
+            return writes.get();
+        }
+    }
 }
@@ -0,0 +1,124 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerConnectionPoolTest {
+    /**
+     * Dials the loopback server regardless of the address, after a delay standing in for Tor.
+     */
+    private static Dialer loopback(int port, long delayMillis) {
+        return address -> {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new Socket("127.0.0.1", port);
+        };
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void testReusesChannelAndDeliversReplies() throws Exception {
+        BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> channel.send("chat", "echo:" + msg.getPayload()))) {
+            server.start();
+            PeerConnectionPool pool = new PeerConnectionPool(loopback(server.getPort(), 0),
+                    (channel, msg) -> replies.add(msg.getPayload()));
+            pool.send("peer.onion", "chat", "one");
+            pool.send("peer.onion", "chat", "two");
+            assertEquals("echo:one", replies.poll(10, TimeUnit.SECONDS));
+            assertEquals("echo:two", replies.poll(10, TimeUnit.SECONDS));
+            assertSame(pool.get("peer.onion"), pool.get("peer.onion"));
+            assertEquals(1, pool.getConnectCount());
+            pool.close();
+        }
+    }
+
+    @Test
+    void testCoalescesConcurrentConnects() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> { })) {
+            server.start();
+            PeerConnectionPool pool = new PeerConnectionPool(loopback(server.getPort(), 200), (channel, msg) -> { });
+            List<CompletableFuture<PeerChannel>> callers = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                callers.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return pool.get("peer.onion");
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+            PeerChannel first = callers.get(0).get();
+            for (CompletableFuture<PeerChannel> caller : callers) {
+                assertSame(first, caller.get());
+            }
+            assertEquals(1, pool.getConnectCount());
+            pool.close();
+        }
+    }
+
+    @Test
+    void testEvictsIdleChannels() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> { })) {
+            server.start();
+            PeerConnectionPool pool = new PeerConnectionPool(loopback(server.getPort(), 0), (channel, msg) -> { });
+            pool.setIdleTimeoutMillis(100);
+            pool.setKeepaliveIntervalMillis(50);
+            pool.get("peer.onion");
+            assertEquals(1, pool.size());
+            await(() -> pool.size() == 0);
+            assertEquals(0, pool.size());
+            pool.get("peer.onion");
+            assertEquals(2, pool.getConnectCount());
+            pool.close();
+        }
+    }
+
+    @Test
+    void testKeepsAnsweringChannelsAndDropsSilentOnes() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> { });
+             ServerSocket silent = new ServerSocket(0)) {
+            server.start();
+            // Completes the handshake, then never reads or answers anything
+            CompletableFuture.runAsync(() -> {
+                try {
+                    Socket s = silent.accept();
+                    Handshake.respond(s.getInputStream(), s.getOutputStream());
+                } catch (Exception ignored) {
+                }
+            });
+            Dialer dialer = address -> new Socket("127.0.0.1",
+                    address.equals("silent.onion") ? silent.getLocalPort() : server.getPort());
+            PeerConnectionPool pool = new PeerConnectionPool(dialer, (channel, msg) -> { });
+            pool.setKeepaliveIntervalMillis(50);
+            pool.get("alive.onion");
+            pool.get("silent.onion");
+            assertEquals(2, pool.size());
+            await(() -> pool.size() == 1);
+            Thread.sleep(200);
+            assertEquals(1, pool.size());
+            assertEquals(2, pool.getConnectCount());
+            pool.get("alive.onion");
+            assertEquals(2, pool.getConnectCount());
+            pool.close();
+        }
+    }
+}
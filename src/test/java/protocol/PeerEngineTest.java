@@ -0,0 +1,158 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerEngineTest {
+    private static final SecretKey KEY = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+
+    @Test
+    void testManySessionsOnFewThreads() throws Exception {
+        int peers = 200;
+        int messagesPerPeer = 5;
+        CountDownLatch received = new CountDownLatch(peers * messagesPerPeer);
+        AtomicInteger outOfOrder = new AtomicInteger();
+        PeerListener listener = (session, message) -> {
+            if (!message.getPayload().equals("msg-" + message.getCounter())) {
+                outOfOrder.incrementAndGet();
+            }
+            received.countDown();
+        };
+        try (PeerEngine engine = new PeerEngine(2);
+             ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            List<PeerSession> clients = new ArrayList<>();
+            for (int i = 0; i < peers; i++) {
+                SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                engine.register(server.accept(), KEY, listener);
+                clients.add(engine.register(client, KEY, (s, m) -> { }));
+            }
+            assertEquals(2 * peers, engine.getSessionCount());
+            for (PeerSession client : clients) {
+                for (int m = 0; m < messagesPerPeer; m++) {
+                    client.send("chat", "msg-" + m);
+                }
+            }
+            assertTrue(received.await(30, TimeUnit.SECONDS));
+            assertEquals(0, outOfOrder.get());
+        }
+    }
+
+    @Test
+    void testFrameListenerReceivesPlaintextInPlace() throws Exception {
+        int count = 100;
+        List<String> payloads = new ArrayList<>();
+        AtomicInteger direct = new AtomicInteger();
+        CountDownLatch received = new CountDownLatch(count);
+        PeerListener listener = new PeerListener() {
+            @Override
+            public void onMessage(PeerSession session, ProtocolMessage message) {
+                fail("Frames are handled in onFrame");
+            }
+
+            @Override
+            public void onFrame(PeerSession session, Frame frame) {
+                if (frame.getPayload().isDirect()) direct.incrementAndGet();
+                payloads.add(StandardCharsets.UTF_8.decode(frame.getPayload()).toString());
+                received.countDown();
+            }
+        };
+        try (PeerEngine engine = new PeerEngine(1);
+             ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            SocketChannel client = SocketChannel.open(server.getLocalAddress());
+            engine.register(server.accept(), KEY, listener);
+            PeerSession sender = engine.register(client, KEY, (s, m) -> { });
+            ByteBuffer buf = ByteBuffer.allocateDirect(64);
+            for (int i = 0; i < count; i++) {
+                buf.clear();
+                buf.put(("msg-" + i).getBytes(StandardCharsets.UTF_8)).flip();
+                sender.send("chat", buf);
+            }
+            assertTrue(received.await(30, TimeUnit.SECONDS));
+            for (int i = 0; i < count; i++) {
+                assertEquals("msg-" + i, payloads.get(i));
+            }
+            // The session reads into a pooled direct buffer
+            assertEquals(count, direct.get());
+        }
+    }
+
+    @Test
+    void testPeerChannelAdapterInteropsWithBlockingChannel() throws Exception {
+        try (PeerEngine engine = new PeerEngine(1);
+             ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            SocketChannel client = SocketChannel.open(server.getLocalAddress());
+            PeerChannel blocking = new PeerChannel(client.socket(), KEY);
+            PeerChannel adapter = new PeerChannel(engine, server.accept(), KEY);
+
+            // Large enough to arrive in several reads and force the read buffer to grow
+            String large = "x".repeat(100_000);
+            blocking.send("chat", "hello");
+            blocking.send("chat", large);
+            assertEquals("hello", adapter.receive().getPayload());
+            assertEquals(large, adapter.receive().getPayload());
+
+            adapter.send("chat", "reply");
+            assertEquals("reply", blocking.receive().getPayload());
+
+            // Both sides follow each other's key epochs
+            blocking.rekey();
+            adapter.rekey();
+            blocking.send("chat", "after rekey");
+            assertEquals("after rekey", adapter.receive().getPayload());
+            adapter.send("chat", "after rekey too");
+            assertEquals("after rekey too", blocking.receive().getPayload());
+            assertEquals(1, adapter.getSendEpoch());
+
+            blocking.close();
+            assertNull(adapter.receive());
+            adapter.close();
+        }
+    }
+
+    @Test
+    void testSendRacingCloseDoesNotLeakBuffers() throws Exception {
+        BufferPool pool = new BufferPool(4096, true);
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            try (PeerEngine engine = new PeerEngine(2, pool)) {
+                for (int i = 0; i < 200; i++) {
+                    SocketChannel client = SocketChannel.open(server.getLocalAddress());
+                    engine.register(server.accept(), KEY, (s, m) -> { });
+                    PeerSession session = engine.register(client, KEY, (s, m) -> { });
+                    CyclicBarrier start = new CyclicBarrier(2);
+                    Thread sender = new Thread(() -> {
+                        try {
+                            start.await();
+                            for (int m = 0; m < 50; m++) {
+                                session.send("chat", "msg-" + m);
+                            }
+                        } catch (IOException expected) {
+                            // The session was closed under us
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                    sender.start();
+                    start.await();
+                    session.close();
+                    sender.join();
+                }
+            }
+            // Every session is closed and its buffers handed back once the engine has stopped
+            assertEquals(pool.getAllocatedCount(), pool.getFreeCount());
+            assertEquals(0, pool.getLeakCount());
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerServerTest {
+    private static PeerChannel connect(int port) throws Exception {
+        Socket socket = new Socket("127.0.0.1", port);
+        HandshakeResult result = Handshake.initiate(socket.getInputStream(), socket.getOutputStream());
+        return new PeerChannel(socket, result);
+    }
+
+    @Test
+    void testAcceptsHandshakesAndEchoes() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> channel.send(msg.getType(), "echo:" + msg.getPayload()))) {
+            server.start();
+            for (int i = 0; i < 20; i++) {
+                PeerChannel client = connect(server.getPort());
+                client.send("chat", "hello " + i);
+                assertEquals("echo:hello " + i, client.receive().getPayload());
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    void testChannelsUseNegotiatedCipherSuite() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> channel.send("suite", channel.getCipherSuite().name()))) {
+            server.setCipherSuites(List.of(CipherSuite.CHACHA20_POLY1305, CipherSuite.AES_256_GCM));
+            server.start();
+            Socket socket = new Socket("127.0.0.1", server.getPort());
+            HandshakeResult result = Handshake.initiate(socket.getInputStream(), socket.getOutputStream());
+            PeerChannel client = new PeerChannel(socket, result);
+            assertEquals(CipherSuite.CHACHA20_POLY1305, client.getCipherSuite());
+            client.send("chat", "which suite?");
+            assertEquals("CHACHA20_POLY1305", client.receive().getPayload());
+            client.close();
+        }
+    }
+
+    @Test
+    void testRejectsConnectionsOverSessionLimit() throws Exception {
+        CountDownLatch connected = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        PeerHandler handler = new PeerHandler() {
+            @Override
+            public void onMessage(PeerChannel channel, ProtocolMessage message) {
+            }
+
+            @Override
+            public void onConnect(PeerChannel channel) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onClose(PeerChannel channel, Exception cause) {
+                closed.countDown();
+            }
+        };
+        try (PeerServer server = new PeerServer(0, handler)) {
+            server.setMaxSessions(1);
+            server.start();
+            PeerChannel first = connect(server.getPort());
+            assertTrue(connected.await(5, TimeUnit.SECONDS));
+            assertEquals(1, server.getActiveSessions());
+
+            assertThrows(IOException.class, () -> connect(server.getPort()));
+            assertEquals(1, server.getRejectedConnections());
+
+            first.close();
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            PeerChannel again = connect(server.getPort());
+            again.close();
+        }
+    }
+
+    @Test
+    void testHandshakeTimeout() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> { })) {
+            server.setHandshakeTimeoutMillis(200);
+            server.start();
+            // Connect but never send a handshake: the server must drop the connection
+            try (Socket idle = new Socket("127.0.0.1", server.getPort())) {
+                idle.setSoTimeout(5000);
+                assertEquals(-1, idle.getInputStream().read());
+            }
+        }
+    }
+
+    @Test
+    void testSlowHandshakeIsDroppedAtTheDeadline() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> channel.send(msg.getType(), "echo:" + msg.getPayload()))) {
+            server.setHandshakeTimeoutMillis(300);
+            server.setMaxConcurrentHandshakes(1);
+            server.start();
+            try (Socket slow = new Socket("127.0.0.1", server.getPort())) {
+                // A full handshake message, one byte every 100 ms: each read is quick, the whole is not
+                Thread dripper = new Thread(() -> {
+                    try {
+                        slow.getOutputStream().write(1);
+                        for (int i = 0; i < 40; i++) {
+                            Thread.sleep(100);
+                            slow.getOutputStream().write(0);
+                        }
+                    } catch (Exception ignored) {
+                        // Dropped by the server
+                    }
+                });
+                long start = System.nanoTime();
+                dripper.start();
+
+                // The slow peer holds no handshake slot while it drips
+                PeerChannel client = connect(server.getPort());
+                client.send("chat", "hello");
+                assertEquals("echo:hello", client.receive().getPayload());
+                client.close();
+
+                slow.setSoTimeout(5000);
+                try {
+                    assertEquals(-1, slow.getInputStream().read());
+                } catch (IOException e) {
+                    // Reset, as the dripper kept writing after the close
+                }
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue(elapsed < 1500, "dropped after " + elapsed + " ms");
+                dripper.join();
+            }
+        }
+    }
+
+    @Test
+    void testServedSessionUnregistersGauges() throws Exception {
+        SimpleMetrics metrics = new SimpleMetrics();
+        Metrics.install(metrics);
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> channel.send(msg.getType(), "echo:" + msg.getPayload()))) {
+            server.start();
+            Socket socket = new Socket("127.0.0.1", server.getPort());
+            HandshakeResult result = Handshake.initiate(socket.getInputStream(), socket.getOutputStream());
+            PeerChannel client = new PeerChannel(socket, result);
+            client.send("chat", "hello");
+            assertEquals("echo:hello", client.receive().getPayload());
+            assertEquals(4, metrics.getGauges().size());
+
+            // The server sees end of stream and closes its channel; the client then sees it
+            // too, and neither side's gauges outlive the session
+            socket.shutdownOutput();
+            assertNull(client.receive());
+            assertEquals(0, metrics.getGauges().size());
+            socket.close();
+        } finally {
+            Metrics.install(null);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReceivePipelineTest {
+    private static SecretKey key() throws Exception {
+        return SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+    }
+
+    @Test
+    void testDeliversInOrder() throws Exception {
+        int messages = 2000;
+        try (ServerSocket server = new ServerSocket(0)) {
+            PeerChannel sender = new PeerChannel(new Socket("127.0.0.1", server.getLocalPort()), key());
+            PeerChannel receiver = new PeerChannel(server.accept(), key());
+            receiver.enablePipelinedReceive(ForkJoinPool.commonPool(), 32);
+            Thread writer = new Thread(() -> {
+                try {
+                    sender.setFlushPolicy(new FlushPolicy(64, 0, 0));
+                    for (int i = 0; i < messages; i++) {
+                        sender.send("chat", "message " + i);
+                    }
+                    sender.close();
+                } catch (Exception ignored) {}
+            });
+            writer.start();
+            for (int i = 0; i < messages; i++) {
+                ProtocolMessage msg = receiver.receive();
+                assertEquals(i, msg.getCounter());
+                assertEquals("message " + i, msg.getPayload());
+            }
+            assertNull(receiver.receive());
+            writer.join();
+            receiver.close();
+        }
+    }
+
+    @Test
+    void testFollowsSenderRekeys() throws Exception {
+        int messages = 1000;
+        try (ServerSocket server = new ServerSocket(0)) {
+            PeerChannel sender = new PeerChannel(new Socket("127.0.0.1", server.getLocalPort()), key());
+            PeerChannel receiver = new PeerChannel(server.accept(), key());
+            receiver.enablePipelinedReceive(ForkJoinPool.commonPool(), 32);
+            sender.setRekeyPolicy(new RekeyPolicy(100, 0, 0));
+            sender.setFlushPolicy(new FlushPolicy(64, 0, 0));
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        sender.send("chat", "message " + i);
+                    }
+                    sender.close();
+                } catch (Exception ignored) {}
+            });
+            writer.start();
+            for (int i = 0; i < messages; i++) {
+                assertEquals("message " + i, receiver.receive().getPayload());
+            }
+            assertNull(receiver.receive());
+            writer.join();
+            assertEquals(10, sender.getSendEpoch());
+            receiver.close();
+        }
+    }
+
+    @Test
+    void testTamperedFrameFailsAtItsPosition() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        try (ServerSocket server = new ServerSocket(0);
+             Socket raw = new Socket("127.0.0.1", server.getLocalPort())) {
+            PeerChannel receiver = new PeerChannel(server.accept(), key());
+            receiver.enablePipelinedReceive(workers, 8);
+            SessionCrypto crypto = new SessionCrypto(key());
+            OutputStream out = raw.getOutputStream();
+            for (int i = 0; i < 10; i++) {
+                byte[] frame = frame(crypto, i, "m" + i);
+                if (i == 5) frame[frame.length - 1] ^= 1;
+                out.write(frame);
+            }
+            out.flush();
+            for (int i = 0; i < 5; i++) {
+                assertEquals("m" + i, receiver.receive().getPayload());
+            }
+            assertThrows(Exception.class, receiver::receive);
+            receiver.close();
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    @Test
+    void testRejectsReplayedCounter() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             Socket raw = new Socket("127.0.0.1", server.getLocalPort())) {
+            PeerChannel receiver = new PeerChannel(server.accept(), key());
+            receiver.enablePipelinedReceive(ForkJoinPool.commonPool(), 4);
+            SessionCrypto crypto = new SessionCrypto(key());
+            OutputStream out = raw.getOutputStream();
+            byte[] first = frame(crypto, 0, "once");
+            out.write(first);
+            out.write(first);
+            out.flush();
+            assertEquals("once", receiver.receive().getPayload());
+            IOException e = assertThrows(IOException.class, receiver::receive);
+            assertTrue(e.getMessage().contains("replay"));
+            receiver.close();
+        }
+    }
+
+    private static byte[] frame(SessionCrypto crypto, long counter, String text) throws Exception {
+        byte[] plaintext = text.getBytes(StandardCharsets.UTF_8);
+        int length = SessionCrypto.ciphertextLength(plaintext.length);
+        ByteBuffer buf = ByteBuffer.allocate(FrameCodec.encodedLength("chat", counter, length));
+        FrameCodec.writeHeader(buf, "chat", counter, length);
+        // As SessionFramer seals: the header is authenticated along with the payload
+        crypto.encrypt(counter, buf, 0, buf.position(), ByteBuffer.wrap(plaintext), buf);
+        return buf.array();
+    }
+}
@@ -0,0 +1,61 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayWindowTest {
+    @Test
+    void testStrictWindowRequiresOrder() {
+        ReplayWindow window = new ReplayWindow(0);
+        assertTrue(window.accept(0));
+        assertTrue(window.accept(1));
+        assertFalse(window.accept(1));
+        assertFalse(window.accept(3));
+        assertTrue(window.accept(2));
+    }
+
+    @Test
+    void testRejectsDuplicates() {
+        ReplayWindow window = new ReplayWindow(64);
+        assertTrue(window.accept(5));
+        assertFalse(window.accept(5));
+        assertTrue(window.accept(3));
+        assertFalse(window.accept(3));
+        assertFalse(window.check(5));
+    }
+
+    @Test
+    void testAcceptsReorderingWithinWindow() {
+        ReplayWindow window = new ReplayWindow(128);
+        long[] order = {10, 3, 7, 0, 130, 20, 129, 9};
+        for (long counter : order) {
+            assertTrue(window.accept(counter), "counter " + counter);
+        }
+        for (long counter : order) {
+            assertFalse(window.accept(counter), "replayed counter " + counter);
+        }
+        assertEquals(130, window.getHighest());
+    }
+
+    @Test
+    void testRejectsCountersOlderThanWindow() {
+        ReplayWindow window = new ReplayWindow(64);
+        assertTrue(window.accept(1000));
+        assertFalse(window.accept(1000 - 64));
+        assertTrue(window.accept(1000 - 63));
+        // A large jump clears the whole bitmap
+        assertTrue(window.accept(100_000));
+        assertFalse(window.accept(1000));
+        assertTrue(window.accept(99_990));
+    }
+
+    @Test
+    void testCheckDoesNotRecord() {
+        ReplayWindow window = new ReplayWindow(32);
+        assertTrue(window.check(4));
+        assertTrue(window.check(4));
+        assertTrue(window.accept(4));
+        assertFalse(window.check(4));
+        assertFalse(window.check(-1));
+    }
+}
@@ -0,0 +1,37 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResumptionCacheTest {
+    private static final byte[] ID = new byte[16];
+    private static final byte[] SECRET = new byte[32];
+
+    @Test
+    void testTicketsAreSingleUse() {
+        ResumptionCache cache = new ResumptionCache(4, 60_000);
+        cache.put("a", ID, SECRET);
+        assertNotNull(cache.take("a"));
+        assertNull(cache.take("a"));
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsed() {
+        ResumptionCache cache = new ResumptionCache(2, 60_000);
+        cache.put("a", ID, SECRET);
+        cache.put("b", ID, SECRET);
+        cache.put("c", ID, SECRET);
+        assertEquals(2, cache.size());
+        assertNull(cache.take("a"));
+        assertNotNull(cache.take("b"));
+        assertNotNull(cache.take("c"));
+    }
+
+    @Test
+    void testExpiresAfterTtl() throws Exception {
+        ResumptionCache cache = new ResumptionCache(4, 20);
+        cache.put("a", ID, SECRET);
+        Thread.sleep(50);
+        assertNull(cache.take("a"));
+    }
+}
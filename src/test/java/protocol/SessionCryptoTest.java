@@ -1,7 +1,9 @@
 package protocol;
 
 import org.junit.jupiter.api.Test;
+import javax.crypto.AEADBadTagException;
 import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
 import static org.junit.jupiter.api.Assertions.*;
 
 class SessionCryptoTest {
@@ -20,4 +22,78 @@ class SessionCryptoTest {
         String decrypted = SessionCrypto.decrypt(ciphertext, key);
         assertEquals(plaintext, decrypted);
     }
+
+    @Test
+    void testSessionInstanceRoundTrip() throws Exception {
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+        SessionCrypto sender = new SessionCrypto(key);
+        SessionCrypto receiver = new SessionCrypto(key);
+        for (long counter = 0; counter < 5; counter++) {
+            byte[] plaintext = ("message " + counter).getBytes();
+            byte[] ciphertext = sender.encrypt(counter, plaintext);
+            assertEquals(SessionCrypto.ciphertextLength(plaintext.length), ciphertext.length);
+            assertArrayEquals(plaintext, receiver.decrypt(counter, ciphertext));
+            // Instance output stays compatible with the one-shot helpers
+            assertArrayEquals(plaintext, SessionCrypto.decrypt(ciphertext, key));
+        }
+    }
+
+    @Test
+    void testCounterIsBoundToNonce() throws Exception {
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+        SessionCrypto crypto = new SessionCrypto(key);
+        byte[] ciphertext = crypto.encrypt(7, "hi".getBytes());
+        assertThrows(AEADBadTagException.class, () -> crypto.decrypt(8, ciphertext));
+        ciphertext[ciphertext.length - 1] ^= 1;
+        assertThrows(AEADBadTagException.class, () -> crypto.decrypt(7, ciphertext));
+    }
+
+    @Test
+    void testCipherSuitesRoundTripAndDoNotMix() throws Exception {
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+        SessionCrypto chacha = new SessionCrypto(key, CipherSuite.CHACHA20_POLY1305);
+        SessionCrypto aes = new SessionCrypto(key, CipherSuite.AES_256_GCM);
+        assertEquals(CipherSuite.CHACHA20_POLY1305, chacha.getCipherSuite());
+        byte[] plaintext = new byte[1000];
+        for (int i = 0; i < plaintext.length; i++) plaintext[i] = (byte) i;
+        byte[] ciphertext = chacha.encrypt(3, plaintext);
+        assertEquals(SessionCrypto.ciphertextLength(plaintext.length), ciphertext.length);
+        assertArrayEquals(plaintext, new SessionCrypto(key, CipherSuite.CHACHA20_POLY1305).decrypt(3, ciphertext));
+        assertThrows(AEADBadTagException.class, () -> aes.decrypt(3, ciphertext));
+        assertThrows(AEADBadTagException.class, () -> chacha.decrypt(3, aes.encrypt(3, plaintext)));
+        assertEquals(CipherSuite.CHACHA20_POLY1305, CipherSuite.fromId(CipherSuite.CHACHA20_POLY1305.getId()));
+        assertNull(CipherSuite.fromId(0));
+    }
+
+    @Test
+    void testInPlaceAndDirectBuffers() throws Exception {
+        for (CipherSuite suite : CipherSuite.values()) {
+            assertInPlaceAndDirectBuffers(suite);
+        }
+    }
+
+    private void assertInPlaceAndDirectBuffers(CipherSuite suite) throws Exception {
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+        SessionCrypto crypto = new SessionCrypto(key, suite);
+        byte[] message = "in-place message".getBytes();
+
+        // In place: plaintext sits right after the nonce slot of the output region
+        byte[] buf = new byte[SessionCrypto.ciphertextLength(message.length)];
+        System.arraycopy(message, 0, buf, 12, message.length);
+        int n = crypto.encrypt(1, buf, 12, message.length, buf, 0);
+        assertEquals(buf.length, n);
+        int m = crypto.decrypt(1, buf, 0, n, buf, 0);
+        assertEquals(message.length, m);
+        assertArrayEquals(message, java.util.Arrays.copyOf(buf, m));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(64);
+        crypto.encrypt(2, ByteBuffer.wrap(message), direct);
+        direct.flip();
+        ByteBuffer out = ByteBuffer.allocateDirect(64);
+        assertEquals(message.length, crypto.decrypt(2, direct, out));
+        out.flip();
+        byte[] decrypted = new byte[out.remaining()];
+        out.get(decrypted);
+        assertArrayEquals(message, decrypted);
+    }
 }
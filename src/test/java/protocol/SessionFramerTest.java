@@ -0,0 +1,106 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionFramerTest {
+    private static final SecretKey KEY = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "test".getBytes());
+
+    private static ByteBuffer seal(SessionFramer framer, String text) throws Exception {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(framer.sealedLength("chat", data.length));
+        framer.seal("chat", ByteBuffer.wrap(data), buf);
+        assertFalse(buf.hasRemaining());
+        return buf.flip();
+    }
+
+    private static ProtocolMessage open(SessionFramer framer, ByteBuffer sealed, Frame frame) throws Exception {
+        assertTrue(FrameCodec.decode(sealed, frame));
+        return framer.open(frame);
+    }
+
+    @Test
+    void testRekeysByMessageCount() throws Exception {
+        SessionFramer sender = new SessionFramer(KEY, CipherSuite.AES_256_GCM);
+        SessionFramer receiver = new SessionFramer(KEY, CipherSuite.AES_256_GCM);
+        sender.setRekeyPolicy(new RekeyPolicy(3, 0, 0));
+        Frame frame = new Frame();
+        for (int i = 0; i < 10; i++) {
+            ProtocolMessage msg = open(receiver, seal(sender, "message " + i), frame);
+            assertEquals(i / 3, frame.getEpoch());
+            assertEquals(i, msg.getCounter());
+            assertEquals("message " + i, msg.getPayload());
+        }
+        assertEquals(3, sender.sendEpoch());
+    }
+
+    @Test
+    void testRekeysByBytesAndAge() throws Exception {
+        SessionFramer framer = new SessionFramer(KEY, CipherSuite.CHACHA20_POLY1305);
+        framer.setRekeyPolicy(new RekeyPolicy(0, 100, 0));
+        seal(framer, "x".repeat(60));
+        assertEquals(0, framer.sendEpoch());
+        seal(framer, "x".repeat(60));
+        assertEquals(1, framer.sendEpoch());
+
+        framer.setRekeyPolicy(new RekeyPolicy(0, 0, 5));
+        seal(framer, "early");
+        assertEquals(1, framer.sendEpoch());
+        Thread.sleep(20);
+        seal(framer, "late");
+        assertEquals(2, framer.sendEpoch());
+    }
+
+    @Test
+    void testPreviousEpochStaysValid() throws Exception {
+        SessionFramer sender = new SessionFramer(KEY, CipherSuite.AES_256_GCM);
+        SessionFramer receiver = new SessionFramer(KEY, CipherSuite.AES_256_GCM);
+        receiver.setReplayWindow(new ReplayWindow(16));
+        Frame frame = new Frame();
+        ByteBuffer old = seal(sender, "sent before the switch");
+        sender.rekey();
+        ByteBuffer current = seal(sender, "sent after the switch");
+        // The new epoch arrives first; the frame still in flight under the old key is accepted
+        assertEquals("sent after the switch", open(receiver, current, frame).getPayload());
+        assertEquals("sent before the switch", open(receiver, old, frame).getPayload());
+
+        // Nothing was sealed in between, so the second rekey keeps the epoch the peer can follow
+        sender.rekey();
+        sender.rekey();
+        assertEquals(2, sender.sendEpoch());
+        assertEquals("after two rekeys", open(receiver, seal(sender, "after two rekeys"), frame).getPayload());
+    }
+
+    @Test
+    void testHeaderIsAuthenticated() throws Exception {
+        SessionFramer sender = new SessionFramer(KEY, CipherSuite.AES_256_GCM);
+        SessionFramer receiver = new SessionFramer(KEY, CipherSuite.AES_256_GCM);
+        Frame frame = new Frame();
+        ByteBuffer sealed = seal(sender, "hello");
+        ByteBuffer copy = ByteBuffer.allocate(sealed.remaining()).put(sealed.duplicate()).flip();
+        // Relabel the chat frame as a group frame; the payload itself is untouched
+        assertEquals(2, copy.get(6));
+        copy.put(6, (byte) 3);
+        assertThrows(java.security.GeneralSecurityException.class, () -> open(receiver, copy, frame));
+        assertEquals("hello", open(receiver, sealed, frame).getPayload());
+
+        byte[] data = "on stream 5".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer streamed = ByteBuffer.allocate(sender.sealedLength("chat", 5, data.length));
+        sender.seal("chat", 5, ByteBuffer.wrap(data), streamed);
+        // Move the frame to stream 7: the stream id follows the one-byte counter
+        streamed.put(8, (byte) 7).flip();
+        assertThrows(java.security.GeneralSecurityException.class, () -> open(receiver, streamed, frame));
+    }
+
+    @Test
+    void testEachEpochHasItsOwnKey() {
+        SecretKey first = SessionFramer.nextKey(KEY, 1);
+        SecretKey second = SessionFramer.nextKey(first, 2);
+        assertFalse(java.util.Arrays.equals(KEY.getEncoded(), first.getEncoded()));
+        assertFalse(java.util.Arrays.equals(first.getEncoded(), second.getEncoded()));
+        assertArrayEquals(first.getEncoded(), SessionFramer.nextKey(KEY, 1).getEncoded());
+    }
+}
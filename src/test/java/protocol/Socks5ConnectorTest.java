@@ -0,0 +1,125 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import static org.junit.jupiter.api.Assertions.*;
+
+class Socks5ConnectorTest {
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void testPoolDialsPeerThroughProxy() throws Exception {
+        BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> channel.send("chat", "echo:" + msg.getPayload()));
+             FakeSocksProxy proxy = newProxy(server);
+             Socks5Connector connector = new Socks5Connector(proxy.getAddress())) {
+            PeerConnectionPool pool = new PeerConnectionPool(connector, (channel, msg) -> replies.add(msg.getPayload()));
+            pool.send("abcdefghijklmnop.onion", "chat", "hello");
+            assertEquals("echo:hello", replies.poll(10, TimeUnit.SECONDS));
+            assertEquals(List.of("abcdefghijklmnop.onion:" + TorManager.VIRTUAL_PORT), proxy.getRequests());
+            pool.close();
+        }
+    }
+
+    @Test
+    void testProxyErrorFailsDial() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> { });
+             FakeSocksProxy proxy = newProxy(server).fail("gone.onion", 0xF0);
+             Socks5Connector connector = new Socks5Connector(proxy.getAddress())) {
+            IOException e = assertThrows(IOException.class, () -> connector.dial("gone.onion:9001"));
+            assertTrue(e.getMessage().contains("descriptor not found"), e.getMessage());
+            assertThrows(IOException.class, () -> connector.dial("no-port:"));
+        }
+    }
+
+    @Test
+    void testDialTimesOut() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> { });
+             FakeSocksProxy proxy = newProxy(server);
+             Socks5Connector connector = new Socks5Connector(proxy.getAddress())) {
+            proxy.setDelayMillis(5_000);
+            connector.setDialTimeoutMillis(200);
+            long start = System.nanoTime();
+            assertThrows(SocketTimeoutException.class, () -> connector.dial("slow.onion"));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2_000);
+        }
+    }
+
+    @Test
+    void testParallelDialsStayWithinLimit() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> { });
+             FakeSocksProxy proxy = newProxy(server);
+             Socks5Connector connector = new Socks5Connector(proxy.getAddress())) {
+            proxy.setDelayMillis(150);
+            connector.setMaxConcurrentDials(3);
+            List<String> addresses = new ArrayList<>();
+            for (int i = 0; i < 9; i++) {
+                addresses.add("peer" + i + ".onion");
+            }
+            Map<String, CompletableFuture<SocketChannel>> dials = connector.connectAll(addresses);
+            for (CompletableFuture<SocketChannel> dial : dials.values()) {
+                assertTrue(dial.get(10, TimeUnit.SECONDS).isConnected());
+                dial.get().close();
+            }
+            assertEquals(3, proxy.getMaxNegotiating());
+            assertEquals(9, proxy.getRequests().size());
+        }
+    }
+
+    @Test
+    void testCancelledDialFreesItsSlot() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> { });
+             FakeSocksProxy proxy = newProxy(server);
+             Socks5Connector connector = new Socks5Connector(proxy.getAddress())) {
+            proxy.setDelayMillis(5_000);
+            connector.setMaxConcurrentDials(1);
+            CompletableFuture<SocketChannel> stuck = connector.connect("stuck.onion");
+            await(() -> proxy.getRequests().size() == 1);
+            stuck.cancel(false);
+            proxy.setDelayMillis(0);
+            // Would wait out the stuck dial if its slot were still taken
+            connector.connect("next.onion").get(2, TimeUnit.SECONDS).close();
+        }
+    }
+
+    @Test
+    void testPrewarmedFavouriteSkipsCircuitBuild() throws Exception {
+        try (PeerServer server = new PeerServer(0, (channel, msg) -> { });
+             FakeSocksProxy proxy = newProxy(server);
+             Socks5Connector connector = new Socks5Connector(proxy.getAddress())) {
+            proxy.setDelayMillis(500);
+            connector.setPrewarmIntervalMillis(50);
+            connector.addFavourite("friend.onion");
+            await(() -> connector.getWarmCount() == 1);
+            long start = System.nanoTime();
+            connector.dial("friend.onion").close();
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 250);
+            assertEquals(1, connector.getWarmHits());
+            // The next warm socket is built in the background
+            await(() -> connector.getWarmCount() == 1);
+            assertEquals(1, connector.getWarmCount());
+            connector.removeFavourite("friend.onion");
+            assertEquals(0, connector.getWarmCount());
+        }
+    }
+
+    private static FakeSocksProxy newProxy(PeerServer server) throws IOException {
+        server.start();
+        return new FakeSocksProxy(server.getPort());
+    }
+}
@@ -0,0 +1,187 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamMultiplexerTest {
+    private static PeerChannel[] channelPair(ServerSocket server) throws IOException {
+        SecretKey key = SessionCrypto.deriveSessionKey(new byte[32], new byte[16], "streams".getBytes());
+        Socket client = new Socket("127.0.0.1", server.getLocalPort());
+        return new PeerChannel[] {new PeerChannel(client, key), new PeerChannel(server.accept(), key)};
+    }
+
+    @Test
+    void testConcurrentStreamsShareOneChannel() throws Exception {
+        int streams = 4;
+        int messages = 200;
+        try (ServerSocket server = new ServerSocket(0)) {
+            PeerChannel[] channels = channelPair(server);
+            StreamMultiplexer alice = new StreamMultiplexer(channels[0], true);
+            StreamMultiplexer bob = new StreamMultiplexer(channels[1], false);
+
+            List<Thread> senders = new ArrayList<>();
+            for (int s = 0; s < streams; s++) {
+                PeerStream stream = alice.openStream();
+                assertEquals(1, stream.getId() % 2);
+                Thread sender = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < messages; i++) {
+                            stream.send("chat", Long.toString(i));
+                        }
+                        stream.close();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                senders.add(sender);
+                sender.start();
+            }
+            channels[0].send("chat", "on stream 0");
+
+            Map<Long, Integer> received = new HashMap<>();
+            for (int s = 0; s < streams; s++) {
+                PeerStream stream = bob.accept();
+                int count = 0;
+                ProtocolMessage msg;
+                while ((msg = stream.receive()) != null) {
+                    assertEquals(stream.getId(), msg.getStreamId());
+                    assertEquals(Integer.toString(count++), msg.getPayload());
+                }
+                received.put(stream.getId(), count);
+                stream.close();
+            }
+            assertEquals(streams, received.size());
+            received.values().forEach(count -> assertEquals(messages, count));
+            assertEquals("on stream 0", bob.receive().getPayload());
+
+            // Streams opened by the responder use even ids
+            PeerStream reply = bob.openStream();
+            assertEquals(0, reply.getId() % 2);
+            reply.send("chat", "hello back");
+            PeerStream accepted = alice.accept();
+            assertEquals(reply.getId(), accepted.getId());
+            assertEquals("hello back", accepted.receive().getPayload());
+
+            for (Thread sender : senders) sender.join();
+            alice.close();
+            assertNull(bob.accept());
+            assertNull(bob.receive());
+            bob.close();
+        }
+    }
+
+    @Test
+    void testSlowStreamDoesNotBlockOthers() throws Exception {
+        int window = 4096;
+        try (ServerSocket server = new ServerSocket(0)) {
+            PeerChannel[] channels = channelPair(server);
+            StreamMultiplexer alice = new StreamMultiplexer(channels[0], true, window);
+            StreamMultiplexer bob = new StreamMultiplexer(channels[1], false, window);
+            PeerStream bulk = alice.openStream();
+            PeerStream chat = alice.openStream();
+            String chunk = "x".repeat(1024);
+            int chunks = 64;
+            CountDownLatch bulkDone = new CountDownLatch(1);
+            Thread bulkSender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < chunks; i++) {
+                        bulk.send("file-chunk", chunk);
+                    }
+                    bulkDone.countDown();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            bulkSender.start();
+
+            // Bob does not read the bulk stream, so it stalls once its window is used up
+            PeerStream bulkIn = bob.accept();
+            assertFalse(bulkDone.await(200, TimeUnit.MILLISECONDS));
+            chat.send("chat", "still here");
+            PeerStream chatIn = bob.accept();
+            assertEquals(chat.getId(), chatIn.getId());
+            assertEquals("still here", chatIn.receive().getPayload());
+
+            // Reading the bulk stream returns credit and lets the sender finish
+            for (int i = 0; i < chunks; i++) {
+                assertEquals(chunk, bulkIn.receive().getPayload());
+            }
+            assertTrue(bulkDone.await(5, TimeUnit.SECONDS));
+            assertThrows(IllegalArgumentException.class, () -> chat.send("chat", "y".repeat(window)));
+            // Half the window in characters, but the window is counted in UTF-8 bytes
+            assertThrows(IllegalArgumentException.class, () -> chat.send("chat", "\u00e9".repeat(window / 2)));
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Test
+    void testCreditCountsUtf8Bytes() {
+        for (String s : new String[] {"", "ascii", "caf\u00e9", "\u20ac5", "\uD83D\uDE00 emoji", "lone \uD83D", "\uDE00 low"}) {
+            assertEquals(s.getBytes(StandardCharsets.UTF_8).length, StreamMultiplexer.payloadBytes(s), s);
+        }
+    }
+
+    @Test
+    void testRefusesStreamsOverTheInboundLimit() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            PeerChannel[] channels = channelPair(server);
+            StreamMultiplexer alice = new StreamMultiplexer(channels[0], true);
+            StreamMultiplexer bob = new StreamMultiplexer(channels[1], false);
+            bob.setMaxInboundStreams(2);
+            PeerStream first = alice.openStream();
+            PeerStream second = alice.openStream();
+            PeerStream third = alice.openStream();
+            first.send("chat", "one");
+            second.send("chat", "two");
+            third.send("chat", "three");
+
+            PeerStream firstIn = bob.accept();
+            PeerStream secondIn = bob.accept();
+            assertEquals("one", firstIn.receive().getPayload());
+            assertEquals("two", secondIn.receive().getPayload());
+            // The third stream is refused, and fails on the opener's side
+            assertThrows(IOException.class, third::receive);
+            assertThrows(IOException.class, () -> third.send("chat", "again"));
+            assertEquals(2, bob.getStreamCount());
+
+            // Once a stream is closed on both sides there is room for another
+            first.close();
+            assertNull(firstIn.receive());
+            firstIn.close();
+            PeerStream fourth = alice.openStream();
+            fourth.send("chat", "four");
+            PeerStream fourthIn = bob.accept();
+            assertEquals(fourth.getId(), fourthIn.getId());
+            assertEquals("four", fourthIn.receive().getPayload());
+            alice.close();
+            bob.close();
+        }
+    }
+
+    @Test
+    void testPeerExceedingWindowFailsTheMultiplexer() throws Exception {
+        try (ServerSocket server = new ServerSocket(0)) {
+            PeerChannel[] channels = channelPair(server);
+            StreamMultiplexer bob = new StreamMultiplexer(channels[1], false, 100);
+            // A misbehaving peer ignores flow control
+            channels[0].sendOnStream(1, "chat", "x".repeat(120), true);
+            PeerStream stream = bob.accept();
+            assertThrows(IOException.class, stream::receive);
+            assertThrows(IOException.class, bob::openStream);
+            channels[0].close();
+            bob.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TorControlClientTest {
+    @Test
+    void testPipelinesCommands() throws Exception {
+        try (FakeControlPort fake = new FakeControlPort()) {
+            fake.on("GETINFO version", "250-version=0.4.8.9", "250 OK");
+            fake.on("GETINFO bad", "552 Unrecognized key \"bad\"");
+            // Nothing is answered until all three commands are in flight
+            fake.setBatchSize(3);
+            try (TorControlClient tor = new TorControlClient("127.0.0.1", fake.getPort())) {
+                CompletableFuture<ControlReply> a = tor.command("GETINFO version");
+                CompletableFuture<ControlReply> b = tor.command("GETINFO bad");
+                CompletableFuture<ControlReply> c = tor.command("SIGNAL NEWNYM");
+                assertEquals("0.4.8.9", a.get(10, TimeUnit.SECONDS).get("version"));
+                assertEquals(552, b.get(10, TimeUnit.SECONDS).getStatus());
+                assertTrue(c.get(10, TimeUnit.SECONDS).isOk());
+            }
+        }
+    }
+
+    @Test
+    void testParsesDataBlocks() throws Exception {
+        try (FakeControlPort fake = new FakeControlPort()) {
+            fake.on("GETINFO config-text", "250+config-text=", "ControlPort 9051", "..dotted", ".", "250 OK");
+            try (TorControlClient tor = new TorControlClient("127.0.0.1", fake.getPort())) {
+                ControlReply reply = tor.command("GETINFO config-text").get(10, TimeUnit.SECONDS);
+                assertEquals(List.of("config-text=\nControlPort 9051\n.dotted", "OK"), reply.getLines());
+            }
+        }
+    }
+
+    @Test
+    void testAddOnionAndAuthenticate() throws Exception {
+        try (FakeControlPort fake = new FakeControlPort()) {
+            fake.on("ADD_ONION", "250-ServiceID=abcdefghijklmnop", "250-PrivateKey=ED25519-V3:secret", "250 OK");
+            try (TorControlClient tor = new TorControlClient("127.0.0.1", fake.getPort())) {
+                tor.authenticate();
+                assertEquals("abcdefghijklmnop.onion", tor.addOnion(9001, 9001));
+            }
+            assertEquals("ADD_ONION NEW:ED25519-V3 Port=9001,127.0.0.1:9001", fake.getReceived().get(1));
+        }
+        try (FakeControlPort fake = new FakeControlPort()) {
+            fake.on("AUTHENTICATE", "515 Authentication failed");
+            try (TorControlClient tor = new TorControlClient("127.0.0.1", fake.getPort())) {
+                assertThrows(IOException.class, tor::authenticate);
+            }
+        }
+    }
+
+    @Test
+    void testPublishesIdentityOnionServicesInOneBatch() throws Exception {
+        List<Identity> identities = List.of(Identity.generate(), Identity.generate(), Identity.generate());
+        try (FakeControlPort fake = new FakeControlPort()) {
+            for (Identity id : identities) {
+                fake.on("ADD_ONION " + id.getOnionServiceKey() + " ", "250-ServiceID=" + id.getOnionServiceId(), "250 OK");
+            }
+            // Only answered once all three ADD_ONION commands are in flight
+            fake.setBatchSize(3);
+            try (TorControlClient tor = new TorControlClient("127.0.0.1", fake.getPort())) {
+                List<String> addresses = tor.addOnions(identities, 9878, List.of(15001, 15002, 15003));
+                for (int i = 0; i < identities.size(); i++) {
+                    assertEquals(identities.get(i).getOnionAddress(), addresses.get(i));
+                    assertTrue(fake.getReceived().get(i).endsWith("Port=9878,127.0.0.1:" + (15001 + i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testRejectsUnexpectedServiceId() throws Exception {
+        Identity id = Identity.generate();
+        try (FakeControlPort fake = new FakeControlPort()) {
+            fake.on("ADD_ONION", "250-ServiceID=" + Identity.generate().getOnionServiceId(), "250 OK");
+            try (TorControlClient tor = new TorControlClient("127.0.0.1", fake.getPort())) {
+                assertThrows(IOException.class, () -> tor.addOnion(id, 9878, 15001));
+            }
+        }
+    }
+
+    @Test
+    void testDispatchesEventsBetweenReplies() throws Exception {
+        try (FakeControlPort fake = new FakeControlPort()) {
+            try (TorControlClient tor = new TorControlClient("127.0.0.1", fake.getPort())) {
+                BlockingQueue<ControlReply> events = new LinkedBlockingQueue<>();
+                tor.addEventListener("STATUS_CLIENT", events::add).get(10, TimeUnit.SECONDS);
+                assertEquals("SETEVENTS STATUS_CLIENT", fake.getReceived().get(0));
+                fake.push("650 STATUS_CLIENT NOTICE BOOTSTRAP PROGRESS=50 TAG=loading_descriptors");
+                fake.push("650 CIRC 1 BUILT");
+                assertTrue(tor.command("GETINFO version").get(10, TimeUnit.SECONDS).isOk());
+                ControlReply event = events.poll(10, TimeUnit.SECONDS);
+                assertEquals("STATUS_CLIENT", event.getEventType());
+                assertTrue(event.getLines().get(0).contains("PROGRESS=50"));
+                assertTrue(events.isEmpty());
+            }
+        }
+    }
+
+    @Test
+    void testFailsOutstandingCommandsWhenConnectionCloses() throws Exception {
+        try (FakeControlPort fake = new FakeControlPort()) {
+            fake.setBatchSize(100);
+            try (TorControlClient tor = new TorControlClient("127.0.0.1", fake.getPort())) {
+                CompletableFuture<ControlReply> reply = tor.command("GETINFO version");
+                // Wait until the fake has accepted the connection and is holding the command
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (fake.getReceived().isEmpty() && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                fake.dropClients();
+                ExecutionException e = assertThrows(ExecutionException.class, () -> reply.get(10, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+}
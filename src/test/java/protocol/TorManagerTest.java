@@ -0,0 +1,55 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TorManagerTest {
+    @TempDir
+    Path dataDir;
+
+    private TorManager manager() {
+        TorManager tor = new TorManager(dataDir);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        tor.setTorCommand(List.of(java, "-cp", System.getProperty("java.class.path"), FakeTor.class.getName()));
+        tor.setStartupTimeoutMillis(30_000);
+        return tor;
+    }
+
+    @Test
+    void testStartsFromBootstrapEventsAndReusesDataDirectory() throws Exception {
+        TorManager cold = manager();
+        String onion = cold.startHiddenService(9001);
+        Map<String, Long> coldTimings = cold.getStartupTimings();
+        cold.stop();
+        assertEquals("fakeonionaddressfakeonionaddressfakeonionaddressfake.onion", onion);
+        assertEquals(List.of("process", "control", "bootstrap", "onion"), List.copyOf(coldTimings.keySet()));
+        assertEquals("127.0.0.1:19050", cold.getSocksAddress());
+        assertTrue(Files.exists(dataDir.resolve("torrc")));
+        assertTrue(Files.readString(dataDir.resolve("torrc")).contains("ControlPort auto"));
+
+        // Second start reuses the DataDirectory and its cached state
+        TorManager warm = manager();
+        assertEquals(onion, warm.startHiddenService(9001));
+        Map<String, Long> warmTimings = warm.getStartupTimings();
+        warm.stop();
+        long coldBootstrap = coldTimings.get("bootstrap") - coldTimings.get("control");
+        long warmBootstrap = warmTimings.get("bootstrap") - warmTimings.get("control");
+        assertTrue(coldBootstrap >= 300, "cold bootstrap " + coldBootstrap);
+        assertTrue(warmBootstrap < coldBootstrap, "warm " + warmBootstrap + " ms vs cold " + coldBootstrap + " ms");
+    }
+
+    @Test
+    void testReportsTorThatExitsEarly() {
+        TorManager tor = new TorManager(dataDir);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        tor.setTorCommand(List.of(java, "-version"));
+        Exception e = assertThrows(Exception.class, () -> tor.startHiddenService(9001));
+        assertTrue(e.getMessage().contains("exited"), e.getMessage());
+    }
+}